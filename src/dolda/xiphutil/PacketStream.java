@@ -12,6 +12,7 @@ import com.jcraft.jogg.*;
 public class PacketStream {
     private StreamState strm = null;
     private Page page = null;
+    private final Page pbuf = new Page();
     private final PageStream in;
     private boolean eos = false;
 	
@@ -35,14 +36,29 @@ public class PacketStream {
      * stream.
      */
     public Packet packet() throws IOException {
+	return(packet(new Packet()));
+    }
+	
+    /**
+     * Fetches one packet from the stream into a given
+     * <code>Packet</code> object, which remains valid until the next
+     * packet is fetched.
+     *
+     * @return <code>pkt</code>, or <code>null</code> if at the end
+     * of the stream.
+     * @exception java.io.IOException if the <code>PageStream</code>
+     * itself throws an <code>IOException</code>.
+     * @exception FormatException if a format error is found in the
+     * stream.
+     */
+    public Packet packet(Packet pkt) throws IOException {
 	if(eos)
 	    return(null);
 	if(strm == null) {
 	    strm = new StreamState();
-	    page = in.page();
+	    page = in.page(pbuf);
 	    strm.init(page.serialno());
 	}
-	Packet pkt = new Packet();
 	while(true) {
 	    int ret = strm.packetout(pkt);
 	    if(ret < 0)
@@ -50,7 +66,7 @@ public class PacketStream {
 	    if(ret == 1)
 		return(pkt);
 	    if(page == null) {
-		if((page = in.page()) == null) {
+		if((page = in.page(pbuf)) == null) {
 		    eos = true;
 		    return(null);
 		}
@@ -61,6 +77,19 @@ public class PacketStream {
 	}
     }
 	
+    /**
+     * Discards any partially read packet, so that packets are read
+     * anew from whatever page the underlying {@link PageStream}
+     * returns next. Packets continued from a previous page are
+     * skipped. This should be called after seeking the page stream.
+     */
+    public void reset() {
+	if(strm != null)
+	    strm.reset();
+	page = null;
+	eos = false;
+    }
+	
     /**
      * Closes the stream backing this object.
      *
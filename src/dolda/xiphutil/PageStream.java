@@ -1,5 +1,6 @@
 package dolda.xiphutil;
 
+import java.util.*;
 import java.io.*;
 import com.jcraft.jogg.*;
 
@@ -12,7 +13,11 @@ import com.jcraft.jogg.*;
 public class PageStream {
     private SyncState sync = new SyncState();
     private final InputStream in;
+    private final byte[] data;
+    private int pos = 0;
     private boolean eos = false;
+    private int[] poff = null;
+    private long[] pgran = null;
     
     /**
      * Constructs a new <code>PageStream</code> object.
@@ -22,6 +27,21 @@ public class PageStream {
      */
     public PageStream(InputStream in) {
 	this.in = in;
+	this.data = null;
+	sync.init();
+    }
+    
+    /**
+     * Constructs a new <code>PageStream</code> object reading pages
+     * from an array of Ogg data. Unlike a stream constructed from an
+     * <code>InputStream</code>, it can be repositioned with {@link
+     * #seek(int)}.
+     *
+     * @param data the Ogg data to fetch pages from.
+     */
+    public PageStream(byte[] data) {
+	this.in = null;
+	this.data = data;
 	sync.init();
     }
     
@@ -36,9 +56,24 @@ public class PageStream {
      * stream.
      */
     public Page page() throws IOException {
+	return(page(new Page()));
+    }
+    
+    /**
+     * Fetches one page from the byte stream into a given
+     * <code>Page</code> object, which is valid until the next page
+     * is fetched.
+     *
+     * @return <code>page</code>, or <code>null</code> if at the end
+     * of the stream.
+     * @exception java.io.IOException if the <code>InputStream</code>
+     * itself throws an <code>IOException</code>.
+     * @exception FormatException if a format error is found in the
+     * stream.
+     */
+    public Page page(Page page) throws IOException {
 	if(eos)
 	    return(null);
-	Page page = new Page();
 	while(true) {
 	    int ret = sync.pageout(page);
 	    if(ret < 0)
@@ -49,13 +84,114 @@ public class PageStream {
 		return(page);
 	    }
 	    int off = sync.buffer(4096);
-	    int len = in.read(sync.data, off, 4096);
-	    if(len < 0)
-		return(null);
+	    int len;
+	    if(data != null) {
+		if((len = Math.min(data.length - pos, 4096)) <= 0)
+		    return(null);
+		System.arraycopy(data, pos, sync.data, off, len);
+		pos += len;
+	    } else {
+		len = in.read(sync.data, off, 4096);
+		if(len < 0)
+		    return(null);
+	    }
 	    sync.wrote(len);
 	}
     }
     
+    private void index() {
+	if(poff != null)
+	    return;
+	int[] poff = new int[16];
+	long[] pgran = new long[16];
+	int n = 0, p = 0;
+	while(p + 27 <= data.length) {
+	    if((data[p] != 'O') || (data[p + 1] != 'g') || (data[p + 2] != 'g') || (data[p + 3] != 'S')) {
+		p++;
+		continue;
+	    }
+	    int nseg = data[p + 26] & 0xff;
+	    if(p + 27 + nseg > data.length)
+		break;
+	    int len = 27 + nseg;
+	    for(int i = 0; i < nseg; i++)
+		len += data[p + 27 + i] & 0xff;
+	    long gran = 0;
+	    for(int i = 7; i >= 0; i--)
+		gran = (gran << 8) | (data[p + 6 + i] & 0xff);
+	    if(n >= poff.length) {
+		poff = Arrays.copyOf(poff, n * 2);
+		pgran = Arrays.copyOf(pgran, n * 2);
+	    }
+	    poff[n] = p;
+	    pgran[n] = gran;
+	    n++;
+	    p += len;
+	}
+	this.pgran = Arrays.copyOf(pgran, n);
+	this.poff = Arrays.copyOf(poff, n);
+    }
+    
+    /**
+     * Returns whether this stream can be repositioned, which is the
+     * case for streams constructed from arrays.
+     */
+    public boolean seekable() {
+	return(data != null);
+    }
+    
+    /**
+     * Returns the number of pages in a seekable stream.
+     */
+    public int pages() {
+	index();
+	return(poff.length);
+    }
+    
+    /**
+     * Returns the granule position of a page in a seekable stream,
+     * or -1 if no packet ends on that page.
+     *
+     * @param page the index of the page, counting from zero.
+     */
+    public long granule(int page) {
+	index();
+	return(pgran[page]);
+    }
+    
+    /**
+     * Returns the number of packets that end on a page in a seekable
+     * stream.
+     *
+     * @param page the index of the page, counting from zero.
+     */
+    public int packets(int page) {
+	index();
+	int p = poff[page], n = 0;
+	for(int i = 0, nseg = data[p + 26] & 0xff; i < nseg; i++) {
+	    if((data[p + 27 + i] & 0xff) < 255)
+		n++;
+	}
+	return(n);
+    }
+    
+    /**
+     * Repositions a seekable stream so that the next page fetched is
+     * the given one.
+     *
+     * @param page the index of the page, counting from zero.
+     * @exception java.lang.IllegalStateException if the stream is
+     * not seekable.
+     */
+    public void seek(int page) {
+	if(data == null)
+	    throw(new IllegalStateException("Stream is not seekable"));
+	index();
+	sync.reset();
+	pos = (page < poff.length) ? poff[page] : data.length;
+	eos = false;
+    }
+    
     /**
      * Closes the stream backing this object.
      *
@@ -63,6 +199,7 @@ public class PageStream {
      * itself throws an <code>IOException</code>.
      */
     public void close() throws IOException {
-	in.close();
+	if(in != null)
+	    in.close();
     }
 }
@@ -27,12 +27,19 @@ import com.jcraft.jorbis.*;
  */
 public class VorbisStream {
     private PacketStream in;
+    private PageStream pages = null;
     private Info info = new Info();
     private Comment cmt = new Comment();
     private DspState dsp = new DspState();
     private Block blk = new Block(dsp);
+    private final Packet pkt = new Packet();
     private float[][][] pcmp;
     private int[] idxp;
+    private int firstpage = -1;
+    private long pos = 0, skip = 0;
+    private long lead = 0;
+    private boolean haslead = false;
+    private int seq = 0;
     /**
      * A <code>java.util.Map</code> instance, providing the Vorbis
      * comments as key-value pairs decoded as normal
@@ -101,6 +108,11 @@ public class VorbisStream {
 	idxp = new int[chn];
     }
     
+    private VorbisStream(PageStream pages) throws IOException {
+	this(new PacketStream(pages));
+	this.pages = pages;
+    }
+    
     /**
      * Constructs a <code>VorbisStream</code> from a Java IO
      * <code>InputStream</code>. The data from the stream will be
@@ -117,6 +129,17 @@ public class VorbisStream {
 	this(new PacketStream(new PageStream(in)));
     }
     
+    /**
+     * Constructs a seekable <code>VorbisStream</code> from an array
+     * of Ogg data. See {@link #seek(long)}.
+     *
+     * @exception FormatException if a format error is found in
+     * the input.
+     */
+    public VorbisStream(byte[] data) throws IOException {
+	this(new PageStream(data));
+    }
+    
     /**
      * Perform a decode cycle. The return value is an array of float
      * arrays. It contains one float array for each channel in the
@@ -140,25 +163,198 @@ public class VorbisStream {
      * the input.
      */
     public float[][] decode() throws IOException {
+	int len = pcmout();
+	if(len < 0)
+	    return(null);
+	float[][] ret = new float[chn][];
+	for(int i = 0; i < chn; i++) {
+	    ret[i] = new float[len];
+	    System.arraycopy(pcmp[0][i], idxp[i], ret[i], 0, len);
+	}
+	read(len);
+	return(ret);
+    }
+    
+    /**
+     * Decodes samples into caller-supplied arrays, without allocating
+     * any of its own. At most <code>len</code> samples are written to
+     * each channel, starting at <code>off</code>, and at least one is
+     * unless the stream has ended.
+     *
+     * @param buf an array of at least {@link #chn} sample arrays.
+     * @return The number of samples written to each channel, or -1
+     * when the stream ends.
+     * @exception java.io.IOException if the backing input stream
+     * itself throws an <code>IOException</code>.
+     * @exception FormatException if a format error is found in
+     * the input.
+     */
+    public int decode(float[][] buf, int off, int len) throws IOException {
+	int n = pcmout();
+	if(n < 0)
+	    return(-1);
+	n = Math.min(n, len);
+	for(int i = 0; i < chn; i++)
+	    System.arraycopy(pcmp[0][i], idxp[i], buf[i], off, n);
+	read(n);
+	return(n);
+    }
+    
+    /* Makes decoded samples available in pcmp and idxp and returns
+     * how many there are, having skipped any before the position
+     * sought to. */
+    private int pcmout() throws IOException {
 	while(true) {
 	    int len = dsp.synthesis_pcmout(pcmp, idxp);
 	    if(len > 0) {
-		float[][] ret = new float[chn][];
-		for(int i = 0; i < chn; i++) {
-		    ret[i] = new float[len];
-		    System.arraycopy(pcmp[0][i], idxp[i], ret[i], 0, len);
+		if(pos < 0) {
+		    dsp.synthesis_read(len);
+		    continue;
+		}
+		if(pos < skip) {
+		    int n = (int)Math.min(len, skip - pos);
+		    read(n);
+		    continue;
 		}
-		dsp.synthesis_read(len);
-		return(ret);
+		return(len);
 	    }
-	    Packet pkt = in.packet();
+	    Packet pkt = in.packet(this.pkt);
 	    if(pkt == null)
-		return(null);
+		return(-1);
 	    if((blk.synthesis(pkt) != 0) || (dsp.synthesis_blockin(blk) != 0))
 		throw(new VorbisException());
+	    if(pkt.granulepos >= 0) {
+		int avail = Math.max(dsp.synthesis_pcmout(pcmp, idxp), 0);
+		if(pos < 0) {
+		    pos = pkt.granulepos + lead - avail;
+		} else if(!haslead) {
+		    /* jorbis yields more samples from the first block
+		     * than granule positions count, so positions are
+		     * kept as a decode from the start sees them. */
+		    lead = pos + avail - pkt.granulepos;
+		    haslead = true;
+		}
+	    }
 	}
     }
     
+    private void read(int n) {
+	dsp.synthesis_read(n);
+	if(pos >= 0)
+	    pos += n;
+    }
+    
+    /**
+     * Returns the position, in samples from the start of the stream,
+     * of the next sample to be decoded, or -1 if it is not yet known
+     * after a seek.
+     */
+    public long tell() {
+	return(pos);
+    }
+    
+    private static java.lang.reflect.Field[] restartf = null;
+    private static boolean norestart = false;
+    
+    /* jorbis lacks vorbis_synthesis_restart(), so the decoder is put
+     * back the way synthesis_init() leaves it without rebuilding its
+     * tables. Should its fields be inaccessible, it is initialized
+     * anew instead. */
+    private void restart() {
+	if(!norestart) {
+	    try {
+		if(restartf == null) {
+		    java.lang.reflect.Field[] f = {
+			DspState.class.getDeclaredField("W"),
+			DspState.class.getDeclaredField("lW"),
+			DspState.class.getDeclaredField("centerW"),
+			DspState.class.getDeclaredField("pcm_current"),
+			DspState.class.getDeclaredField("pcm_returned"),
+			DspState.class.getDeclaredField("granulepos"),
+			DspState.class.getDeclaredField("sequence"),
+			DspState.class.getDeclaredField("eofflag"),
+			DspState.class.getDeclaredField("pcm"),
+			Info.class.getDeclaredField("blocksizes"),
+		    };
+		    for(java.lang.reflect.Field fl : f)
+			fl.setAccessible(true);
+		    restartf = f;
+		}
+		java.lang.reflect.Field[] f = restartf;
+		int[] bs = (int[])f[9].get(info);
+		int cw = bs[1] / 2;
+		f[0].setInt(dsp, 0);
+		f[1].setInt(dsp, 0);
+		f[2].setInt(dsp, cw - ((bs[0] / 4) + (bs[0] / 4)));
+		f[3].setInt(dsp, cw);
+		f[4].setInt(dsp, cw);
+		f[5].setLong(dsp, -1);
+		f[6].setLong(dsp, -1);
+		f[7].setInt(dsp, 0);
+		for(float[] ch : (float[][])f[8].get(dsp))
+		    Arrays.fill(ch, 0);
+		return;
+	    } catch(Exception e) {
+		norestart = true;
+	    }
+	}
+	dsp = new DspState();
+	dsp.synthesis_init(info);
+	blk = new Block(dsp);
+    }
+    
+    /**
+     * Repositions a stream constructed from an array, so that the
+     * next sample decoded is the one at the given position. The
+     * decoder, its setup and the stream headers are kept, so this is
+     * much cheaper than constructing the stream anew, as is commonly
+     * done to loop a clip by seeking to zero.
+     *
+     * <p>Decoding is restarted some pages before the target, and the
+     * samples up to it are decoded and discarded.
+     *
+     * @param sample the position to seek to, in samples from the
+     * start of the stream.
+     * @exception java.lang.IllegalStateException if the stream was
+     * not constructed from an array.
+     */
+    public void seek(long sample) {
+	if((pages == null) || !pages.seekable())
+	    throw(new IllegalStateException("Stream is not seekable"));
+	int np = pages.pages();
+	if(firstpage < 0) {
+	    /* Audio begins on the page after the one the three
+	     * header packets end on. */
+	    for(int n = 0; (firstpage + 1 < np) && (n < 3);)
+		n += pages.packets(++firstpage);
+	    firstpage++;
+	}
+	int pg = firstpage;
+	if(haslead) {
+	    while((pg < np) && ((pages.granule(pg) < 0) || (pages.granule(pg) + lead < sample)))
+		pg++;
+	    /* Start on the second page back on which a packet ends,
+	     * since nothing is decoded from the first packet, and where
+	     * the second starts is only known once a page ends. A page
+	     * only continuing a packet cannot be started on, as jogg
+	     * skips such a continuation on the first page alone. */
+	    for(int n = 0; (n < 2) && (pg > firstpage);) {
+		if(pages.granule(--pg) >= 0)
+		    n++;
+	    }
+	} else {
+	    /* Until the first page has been decoded, positions can
+	     * only be known by decoding from the start. */
+	    pg = firstpage;
+	}
+	pos = (pg <= firstpage) ? 0 : -1;
+	skip = sample;
+	pages.seek(pg);
+	in.reset();
+	restart();
+	seq++;
+    }
+    
     /**
      * Constructs and returns a <code>java.io.InputStream</code> which
      * uses the {@link #decode()} function to decode data, and encodes
@@ -172,18 +368,16 @@ public class VorbisStream {
      */
     public InputStream pcmstream() {
 	return(new InputStream() {
-		private byte[] buf;
-		private int bufp;
+		private final float[][] inb = new float[chn][1024];
+		private final byte[] buf = new byte[2 * chn * 1024];
+		private int bufp, bufl, bseq = seq;
 		
 		private boolean convert() throws IOException {
-		    float[][] inb = decode();
-		    if(inb == null) {
-			buf = new byte[0];
+		    int len = decode(inb, 0, 1024);
+		    if(len < 0)
 			return(false);
-		    }
-		    buf = new byte[2 * chn * inb[0].length];
 		    int p = 0;
-		    for(int i = 0; i < inb[0].length; i++) {
+		    for(int i = 0; i < len; i++) {
 			for(int c = 0; c < chn; c++) {
 			    int s = (int)(inb[c][i] * 32767);
 			    buf[p++] = (byte)s;
@@ -191,6 +385,7 @@ public class VorbisStream {
 			}
 		    }
 		    bufp = 0;
+		    bufl = p;
 		    return(true);
 		}
 
@@ -206,13 +401,17 @@ public class VorbisStream {
 		}
     
 		public int read(byte[] dst, int off, int len) throws IOException {
-		    if((buf == null) && !convert())
+		    if(bseq != seq) {
+			/* Drop what was decoded before a seek. */
+			bufp = bufl = 0;
+			bseq = seq;
+		    }
+		    if((bufp >= bufl) && !convert())
 			return(-1);
-		    if(buf.length - bufp < len)
-			len = buf.length - bufp;
+		    if(bufl - bufp < len)
+			len = bufl - bufp;
 		    System.arraycopy(buf, bufp, dst, off, len);
-		    if((bufp += len) == buf.length)
-			buf = null;
+		    bufp += len;
 		    return(len);
 		}
     
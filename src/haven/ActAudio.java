@@ -100,11 +100,7 @@ public class ActAudio extends GLState.Abstract {
 		final Resource.Audio clip = res.layer(Resource.audio, "amb");
 		if(clip == null)
 		    throw(new RuntimeException("No ambient clip found in " + res));
-		this.clip = new Audio.DataClip(new RepeatStream(new RepeatStream.Repeater() {
-			public InputStream cons() {
-			    return(clip.pcmstream());
-			}
-		    }), 0.0, 1.0);
+		this.clip = new Audio.DataClip(clip.loopstream(), 0.0, 1.0);
 	    }
 
 	    public int hashCode() {
@@ -51,7 +51,7 @@ public class Audio {
     }
 
     public interface CS {
-	public int get(double[][] sample);
+	public int get(float[][] sample);
     }
     
     public static class DataClip implements CS {
@@ -95,9 +95,10 @@ public class Audio {
 	    }
 	}
 
-	public int get(double[][] buf) {
+	public int get(float[][] buf) {
 	    if(eof)
 		return(-1);
+	    float vol = (float)this.vol;
 	    try {
 		for(int off = 0; off < buf[0].length; off++) {
 		    ack += rate * sp;
@@ -122,7 +123,7 @@ public class Audio {
 			    int v = b1 + (b2 << 8);
 			    if(v >= 32768)
 				v -= 65536;
-			    buf[i][off] = ((double)v / 32768.0) * vol;
+			    buf[i][off] = (v / 32768.0f) * vol;
 			}
 			ack -= trate;
 		    }
@@ -135,6 +136,193 @@ public class Audio {
 	}
     }
     
+    /* Plays a clip from the decoded PCM cache. A clip that is not
+     * cached is decoded in the background, and plays silence until it
+     * is done, so that the mixer never waits for decoding. */
+    public static class PCMClip extends DataClip {
+	public final Resource.Audio res;
+	private float[][] data;
+	private Defer.Future<float[][]> decoding;
+	private double pos = 0;
+
+	public PCMClip(Resource.Audio res, double vol, double sp) {
+	    super(null, vol, sp);
+	    this.res = res;
+	    if(res != null) {
+		if((this.data = pcmcached(res)) == null)
+		    this.decoding = pcmlater(res);
+	    }
+	}
+
+	public PCMClip(Resource.Audio res) {
+	    this(res, 1.0, 1.0);
+	}
+
+	public PCMClip(float[][] data, double vol, double sp) {
+	    this((Resource.Audio)null, vol, sp);
+	    this.data = data;
+	}
+
+	public int get(float[][] buf) {
+	    if(eof)
+		return(-1);
+	    if(data == null) {
+		try {
+		    if(!decoding.done()) {
+			for(int ch = 0; ch < buf.length; ch++)
+			    Arrays.fill(buf[ch], 0);
+			return(buf[0].length);
+		    }
+		    data = decoding.get();
+		    decoding = null;
+		} catch(Defer.DeferredException e) {
+		    eof();
+		    return(-1);
+		}
+	    }
+	    float[] l = data[0], r = data[1];
+	    float[] dl = buf[0], dr = buf[1];
+	    int len = l.length, ns = dl.length, n;
+	    float vol = (float)this.vol;
+	    double sp = this.sp;
+	    if(sp == 1.0) {
+		int p = (int)pos;
+		n = Math.max(Math.min(ns, len - p), 0);
+		for(int i = 0; i < n; i++) {
+		    dl[i] = l[p + i] * vol;
+		    dr[i] = r[p + i] * vol;
+		}
+		pos = p + n;
+	    } else {
+		double pos = this.pos;
+		for(n = 0; (n < ns) && (pos < len); n++, pos += sp) {
+		    int p = (int)pos;
+		    dl[n] = l[p] * vol;
+		    dr[n] = r[p] * vol;
+		}
+		this.pos = pos;
+	    }
+	    if(pos >= len)
+		eof();
+	    return(n);
+	}
+    }
+
+    /* Clips are decoded once, into stereo at the output rate, and kept
+     * here by layer (that is, by resource and clip) until the total
+     * number of cached sample frames exceeds pcmmax. */
+    public static int pcmmax = Config.pcmcache;
+    private static final Map<Resource.Audio, float[][]> pcmcache = new LinkedHashMap<Resource.Audio, float[][]>(16, 0.75f, true);
+    private static final Map<Resource.Audio, Defer.Future<float[][]>> pcmdecoding = new HashMap<Resource.Audio, Defer.Future<float[][]>>();
+    private static long pcmsize = 0;
+    private static int pcmhits = 0, pcmmiss = 0;
+
+    public static float[][] pcmcached(Resource.Audio clip) {
+	synchronized(pcmcache) {
+	    float[][] ret = pcmcache.get(clip);
+	    if(ret != null)
+		pcmhits++;
+	    return(ret);
+	}
+    }
+
+    /* Decodes the clip in the background, sharing the decoding with
+     * any others that are waiting for the same clip. */
+    public static Defer.Future<float[][]> pcmlater(final Resource.Audio clip) {
+	synchronized(pcmcache) {
+	    Defer.Future<float[][]> ret = pcmdecoding.get(clip);
+	    if(ret != null)
+		return(ret);
+	    final Defer.Future<float[][]> f = Defer.later(new Defer.Callable<float[][]>() {
+		    public float[][] call() {
+			try {
+			    return(pcm(clip));
+			} catch(IOException e) {
+			    throw(new RuntimeException(e));
+			}
+		    }
+		});
+	    pcmdecoding.put(clip, f);
+	    f.ondone(() -> {
+		    synchronized(pcmcache) {
+			if(pcmdecoding.get(clip) == f)
+			    pcmdecoding.remove(clip);
+		    }
+		});
+	    return(f);
+	}
+    }
+
+    public static float[][] pcm(Resource.Audio clip) throws IOException {
+	float[][] ret = pcmcached(clip);
+	if(ret != null)
+	    return(ret);
+	synchronized(pcmcache) {
+	    pcmmiss++;
+	}
+	ret = decode(clip.stream());
+	int len = ret[0].length;
+	if(len <= pcmmax / 4) {
+	    synchronized(pcmcache) {
+		if(pcmcache.put(clip, ret) == null)
+		    pcmsize += len;
+		for(Iterator<float[][]> i = pcmcache.values().iterator(); (pcmsize > pcmmax) && i.hasNext();) {
+		    pcmsize -= i.next()[0].length;
+		    i.remove();
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    public static float[][] decode(InputStream coded) throws IOException {
+	return(decode(new VorbisStream(coded)));
+    }
+
+    public static float[][] decode(VorbisStream vs) throws IOException {
+	float[][] buf = new float[vs.chn][vs.rate];
+	int len = 0;
+	while(true) {
+	    if(len == buf[0].length) {
+		for(int ch = 0; ch < vs.chn; ch++)
+		    buf[ch] = Arrays.copyOf(buf[ch], len * 2);
+	    }
+	    int ret = vs.decode(buf, len, buf[0].length - len);
+	    if(ret < 0)
+		break;
+	    len += ret;
+	}
+	float[][] ret = new float[2][];
+	for(int ch = 0; ch < 2; ch++)
+	    ret[ch] = Arrays.copyOf(buf[Math.min(ch, vs.chn - 1)], len);
+	int trate = (int)fmt.getSampleRate();
+	if(vs.rate != trate)
+	    ret = resample(ret, vs.rate, trate);
+	return(ret);
+    }
+
+    private static float[][] resample(float[][] buf, int from, int to) {
+	int len = (int)(((long)buf[0].length * to) / from);
+	float[][] ret = new float[buf.length][len];
+	double step = (double)from / (double)to;
+	for(int ch = 0; ch < buf.length; ch++) {
+	    float[] s = buf[ch], d = ret[ch];
+	    for(int i = 0; i < len; i++) {
+		double p = i * step;
+		int p1 = (int)p, p2 = Math.min(p1 + 1, s.length - 1);
+		float a = (float)(p - p1);
+		d[i] = (s[p1] * (1 - a)) + (s[p2] * a);
+	    }
+	}
+	return(ret);
+    }
+
+    public static String pcmstats() {
+	synchronized(pcmcache) {
+	    return(String.format("%d clips, %.1f s cached, %d decoding, %d hits, %d misses", pcmcache.size(), pcmsize / fmt.getSampleRate(), pcmdecoding.size(), pcmhits, pcmmiss));
+	}
+    }
+    
     public static double[][] pcmi2f(byte[] pcm, int ch) {
 	if(pcm.length % (ch * 2) != 0)
 	    throw(new IllegalArgumentException("Uneven samples in PCM data"));
@@ -154,65 +342,105 @@ public class Audio {
 	return(ret);
     }
 	
-    private static class Player extends HackThread {
-	private Collection<CS> clips = new LinkedList<CS>();
-	private int srate, nch = 2;
-	
-	Player() {
-	    super("Haven audio player");
-	    setDaemon(true);
-	    srate = (int)fmt.getSampleRate();
+    /* Mixes the playing clips into 16-bit PCM, one fixed-size block
+     * at a time, into buffers that are kept between blocks. */
+    public static class Mixer {
+	public static final int blksz = 256;
+	public final int nch = 2;
+	private final List<CS> clips = new ArrayList<CS>();
+	private final float[][] val = new float[nch][blksz];
+	private final float[][] buf = new float[nch][blksz];
+	public long nblk = 0, mixtime = 0, maxtime = 0;
+	public int maxclips = 0;
+
+	public void add(CS clip) {
+	    synchronized(clips) {
+		clips.add(clip);
+	    }
 	}
-	
-	private void fillbuf(byte[] dst, int off, int len) {
-	    int ns = len / (2 * nch);
-	    double[][] val = new double[nch][ns];
-	    double[][] buf = new double[nch][ns];
+
+	public void stop(CS clip) {
 	    synchronized(clips) {
-		clip: for(Iterator<CS> i = clips.iterator(); i.hasNext();) {
-		    int left = ns;
-		    CS cs = i.next();
-		    int boff = 0;
-		    while(left > 0) {
-			int ret = cs.get(buf);
-			if(ret < 0) {
-			    i.remove();
-			    continue clip;
-			}
-			for(int ch = 0; ch < nch; ch++) {
-			    for(int sm = 0; sm < ret; sm++)
-				val[ch][sm + boff] += buf[ch][sm];
-			}
-			left -= ret;
+		for(int i = 0; i < clips.size(); i++) {
+		    if(clips.get(i) == clip) {
+			clips.remove(i);
+			return;
 		    }
 		}
 	    }
-	    for(int i = 0; i < ns; i++) {
-		for(int o = 0; o < nch; o++) {
-		    int iv = (int)(val[o][i] * volume * 32767.0);
-		    if(iv < 0) {
-			if(iv < -32768)
-			    iv = -32768;
-			iv += 65536;
-		    } else {
-			if(iv > 32767)
-			    iv = 32767;
-		    }
-		    dst[off++] = (byte)(iv & 0xff);
-		    dst[off++] = (byte)((iv & 0xff00) >> 8);
-		}
+	}
+
+	public boolean idle() {
+	    synchronized(clips) {
+		return(clips.isEmpty());
 	    }
 	}
 
-	public void stop(CS clip) {
+	private void mix(byte[] dst, int off, int ns) {
+	    long st = System.nanoTime();
+	    for(int ch = 0; ch < nch; ch++)
+		Arrays.fill(val[ch], 0, ns, 0);
+	    int nc;
 	    synchronized(clips) {
-		for(Iterator<CS> i = clips.iterator(); i.hasNext();) {
-		    if(i.next() == clip) {
-			i.remove();
-			return;
+		nc = clips.size();
+		for(int i = 0; i < clips.size(); i++) {
+		    CS cs = clips.get(i);
+		    int ret = cs.get(buf);
+		    if(ret < 0) {
+			clips.remove(i--);
+			continue;
+		    }
+		    for(int ch = 0; ch < nch; ch++) {
+			float[] v = val[ch], b = buf[ch];
+			for(int sm = 0; sm < ret; sm++)
+			    v[sm] += b[sm];
 		    }
 		}
 	    }
+	    float vol = (float)(volume * 32767.0);
+	    for(int i = 0; i < ns; i++) {
+		for(int o = 0; o < nch; o++) {
+		    int iv = (int)(val[o][i] * vol);
+		    if(iv < -32768)
+			iv = -32768;
+		    else if(iv > 32767)
+			iv = 32767;
+		    dst[off++] = (byte)iv;
+		    dst[off++] = (byte)(iv >> 8);
+		}
+	    }
+	    long t = System.nanoTime() - st;
+	    nblk++;
+	    mixtime += t;
+	    maxtime = Math.max(maxtime, t);
+	    maxclips = Math.max(maxclips, nc);
+	}
+
+	public void fill(byte[] dst, int off, int len) {
+	    int ns = len / (2 * nch);
+	    while(ns > 0) {
+		int n = Math.min(ns, blksz);
+		mix(dst, off, n);
+		off += n * 2 * nch;
+		ns -= n;
+	    }
+	}
+
+	public String stats() {
+	    return(String.format("%d blocks, %.1f us/block avg, %.1f us max, %d clips max", nblk, (nblk > 0) ? ((mixtime * 1e-3) / nblk) : 0.0, maxtime * 1e-3, maxclips));
+	}
+    }
+	
+    private static class Player extends HackThread {
+	private final Mixer mixer = new Mixer();
+	
+	Player() {
+	    super("Haven audio player");
+	    setDaemon(true);
+	}
+
+	public void stop(CS clip) {
+	    mixer.stop(clip);
 	}
 
 	public void run() {
@@ -237,13 +465,11 @@ public class Audio {
 			    r.run();
 		    }
 		    synchronized(ncl) {
-			synchronized(clips) {
-			    for(CS cs : ncl)
-				clips.add(cs);
-			    ncl.clear();
-			}
+			for(CS cs : ncl)
+			    mixer.add(cs);
+			ncl.clear();
 		    }
-		    fillbuf(buf, 0, 1024);
+		    mixer.fill(buf, 0, 1024);
 		    for(int off = 0; off < buf.length; off += line.write(buf, off, buf.length - off));
 		}
 	    } catch(InterruptedException e) {
@@ -313,7 +539,9 @@ public class Audio {
 	    if(--s < 0)
 		break;
 	}
-	return(play(clip.pcmstream(), 1.0, 1.0));
+	DataClip cs = new PCMClip(clip);
+	play(cs);
+	return(cs);
     }
 
     public static void play(final Resource clip) {
@@ -357,20 +585,59 @@ public class Audio {
 	return(buf.toByteArray());
     }
     
+    /* With -o, mixes the given files into a raw PCM file instead of
+     * playing them, Ogg files through the PCM cache and others as raw
+     * PCM. Without files, a number (-n) of tones are mixed. */
     public static void main(String[] args) throws Exception {
 	Collection<DataClip> clips = new LinkedList<DataClip>();
+	String out = null;
+	int n = 32;
 	for(int i = 0; i < args.length; i++) {
 	    if(args[i].equals("-b")) {
 		bufsize = Integer.parseInt(args[++i]);
+	    } else if(args[i].equals("-o")) {
+		out = args[++i];
+	    } else if(args[i].equals("-n")) {
+		n = Integer.parseInt(args[++i]);
+	    } else if(args[i].endsWith(".ogg")) {
+		clips.add(new PCMClip(decode(new FileInputStream(args[i])), 1.0, 1.0));
 	    } else {
 		DataClip c = new DataClip(new FileInputStream(args[i]));
 		clips.add(c);
 	    }
 	}
+	if(out == null) {
+	    for(DataClip c : clips)
+		play(c);
+	    for(DataClip c : clips)
+		c.finwait();
+	    return;
+	}
+	if(clips.isEmpty()) {
+	    int rate = (int)fmt.getSampleRate();
+	    for(int i = 0; i < n; i++) {
+		float[][] tone = new float[2][rate * (1 + (i % 3))];
+		for(int o = 0; o < tone[0].length; o++)
+		    tone[0][o] = tone[1][o] = (float)Math.sin(o * (200 + (i * 20)) * 2 * Math.PI / rate) / n;
+		clips.add(new PCMClip(tone, 1.0, ((i % 4) == 0) ? 1.5 : 1.0));
+	    }
+	}
+	Mixer mixer = new Mixer();
 	for(DataClip c : clips)
-	    play(c);
-	for(DataClip c : clips)
-	    c.finwait();
+	    mixer.add(c);
+	OutputStream sink = new BufferedOutputStream(new FileOutputStream(out));
+	try {
+	    byte[] buf = new byte[1024];
+	    long nb = 0;
+	    while(!mixer.idle()) {
+		mixer.fill(buf, 0, buf.length);
+		sink.write(buf);
+		nb += buf.length;
+	    }
+	    System.out.printf("%d bytes; %s%n", nb, mixer.stats());
+	} finally {
+	    sink.close();
+	}
     }
     
     static {
@@ -379,6 +646,14 @@ public class Audio {
 		    play(Resource.load(args[1]));
 		}
 	    });
+	Console.setscmd("sfxstat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    Player pl = player;
+		    if(pl != null)
+			cons.out.println(pl.mixer.stats());
+		    cons.out.println(pcmstats());
+		}
+	    });
 	Console.setscmd("sfxvol", new Console.Command() {
 		public void run(Console cons, String[] args) {
 		    setvolume(Double.parseDouble(args[1]));
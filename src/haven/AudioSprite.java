@@ -68,7 +68,7 @@ public class AudioSprite {
 
 	public ClipSprite(Owner owner, Resource res, Resource.Audio clip) {
 	    super(owner, res);
-	    this.clip = new ActAudio.PosClip(new Audio.DataClip(clip.pcmstream()) {
+	    this.clip = new ActAudio.PosClip(new Audio.PCMClip(clip) {
 		    protected void eof() {
 			super.eof();
 			done = true;
@@ -94,14 +94,17 @@ public class AudioSprite {
 	    super(owner, res);
 	    this.end = end;
 	    RepeatStream.Repeater rep = new RepeatStream.Repeater() {
-		    private boolean f = true;
+		    private int st = (beg != null) ? 0 : 1;
 
 		    public InputStream cons() {
-			if(f && (beg != null)) {
-			    f = false;
+			switch(st++) {
+			case 0:
 			    return(beg.pcmstream());
+			case 1:
+			    return(clip.loopstream());
+			default:
+			    return(null);
 			}
-			return(clip.pcmstream());
 		    }
 		};
 	    this.clip = new ActAudio.PosClip(new Audio.DataClip(new RepeatStream(rep)));
@@ -119,7 +122,7 @@ public class AudioSprite {
 
 	public void delete() {
 	    if(end != null)
-		clip = new ActAudio.PosClip(new Audio.DataClip(end.pcmstream()) {
+		clip = new ActAudio.PosClip(new Audio.PCMClip(end) {
 			protected void eof() {
 			    super.eof();
 			    RepeatSprite.this.clip = null;
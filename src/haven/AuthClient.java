@@ -164,12 +164,13 @@ public class AuthClient {
     }
 
     private void sendmsg(Message msg) throws IOException {
-	if(msg.blob.length > 65535)
-	    throw(new RuntimeException("Too long message in AuthClient (" + msg.blob.length + " bytes)"));
-	byte[] buf = new byte[msg.blob.length + 2];
-	buf[0] = (byte)((msg.blob.length & 0xff00) >> 8);
-	buf[1] = (byte)(msg.blob.length & 0x00ff);
-	System.arraycopy(msg.blob, 0, buf, 2, msg.blob.length);
+	int len = msg.size();
+	if(len > 65535)
+	    throw(new RuntimeException("Too long message in AuthClient (" + len + " bytes)"));
+	byte[] buf = new byte[len + 2];
+	buf[0] = (byte)((len & 0xff00) >> 8);
+	buf[1] = (byte)(len & 0x00ff);
+	System.arraycopy(msg.blob, msg.off, buf, 2, len);
 	skout.write(buf);
     }
     
@@ -0,0 +1,64 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public class BufferInputStream extends InputStream {
+    public final ByteBuffer buf;
+
+    public BufferInputStream(ByteBuffer buf) {
+	this.buf = buf;
+    }
+
+    public int read() {
+	if(!buf.hasRemaining())
+	    return(-1);
+	return(buf.get() & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) {
+	if(len == 0)
+	    return(0);
+	if(!buf.hasRemaining())
+	    return(-1);
+	len = Math.min(len, buf.remaining());
+	buf.get(b, off, len);
+	return(len);
+    }
+
+    public long skip(long n) {
+	int s = (int)Math.min(Math.max(n, 0), buf.remaining());
+	buf.position(buf.position() + s);
+	return(s);
+    }
+
+    public int available() {
+	return(buf.remaining());
+    }
+}
@@ -39,6 +39,9 @@ import java.text.AttributedCharacterIterator.Attribute;
 import java.net.URL;
 import java.util.regex.*;
 import java.io.IOException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.ref.*;
 import java.awt.datatransfer.*;
 
 public class ChatUI extends Widget {
@@ -125,7 +128,7 @@ public class ChatUI extends Widget {
     }
 
     public static abstract class Channel extends Widget {
-	public final List<Message> msgs = new LinkedList<Message>();
+	public final History msgs = new History();
 	private final Scrollbar sb;
 	public IButton cbtn;
 	protected boolean read = true;
@@ -138,16 +141,30 @@ public class ChatUI extends Widget {
 	
 	public static abstract class Message {
 	    public final long time = System.currentTimeMillis();
+	    int idx = -1;
 	    
 	    public abstract Text text();
 	    public abstract Tex tex();
 	    public abstract Coord sz();
+
+	    /* Frees the texture of the message, but not its layout,
+	     * so that CharPos references into it remain valid. */
+	    public void release() {}
+
+	    /* The line and color that the message can be made anew
+	     * from once spilled to disk, or null if it cannot be. */
+	    public String line() {return(null);}
+	    public Color color() {return(null);}
 	}
 	
 	public static class SimpleMessage extends Message {
 	    private final Text t;
+	    private final String text;
+	    private final Color col;
 	    
 	    public SimpleMessage(String text, Color col, int w) {
+		this.text = text;
+		this.col = col;
 		if(col == null)
 		    this.t = fnd.render(RichText.Parser.quote(text), w);
 		else
@@ -165,6 +182,187 @@ public class ChatUI extends Widget {
 	    public Coord sz() {
 		return(t.sz());
 	    }
+
+	    public void release() {
+		t.dispose();
+	    }
+
+	    public String line() {return(text);}
+	    public Color color() {return(col);}
+	}
+
+	/* The log of a channel. Message heights are kept in a Fenwick
+	 * tree, so that the message at a scroll offset is found
+	 * without walking the log. Only the most recently drawn
+	 * messages keep their textures, and all but the latest
+	 * messages are spilled to a temporary file and rendered anew
+	 * from it when scrolled back to. */
+	public class History {
+	    public static final int keep = 500, reload = 200, texres = 128;
+	    private Object[] msgs = new Object[64];
+	    private int[] hs = new int[64], fw = new int[65];
+	    private long[] offs = new long[64];
+	    private int n = 0, total = 0, spilled = 0;
+	    private File logf = null;
+	    private RandomAccessFile log = null;
+	    private boolean nolog = false;
+	    private final Map<Integer, Message> reloaded = new LinkedHashMap<Integer, Message>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Message> e) {
+		    return(size() > reload);
+		}
+	    };
+	    private final Map<Message, Message> drawn = new LinkedHashMap<Message, Message>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Message, Message> e) {
+		    if(size() > texres) {
+			e.getKey().release();
+			return(true);
+		    }
+		    return(false);
+		}
+	    };
+
+	    public int size() {
+		return(n);
+	    }
+
+	    /* Total height of the log */
+	    public int height() {
+		return(total);
+	    }
+
+	    private void fwadd(int i, int d) {
+		for(i++; i < fw.length; i += i & -i)
+		    fw[i] += d;
+	    }
+
+	    /* Offset of the top of message i */
+	    public int top(int i) {
+		int y = 0;
+		for(; i > 0; i -= i & -i)
+		    y += fw[i];
+		return(y);
+	    }
+
+	    /* Index of the message at offset y, or size() if past the end */
+	    public int find(int y) {
+		int i = 0;
+		for(int s = Integer.highestOneBit(fw.length - 1); s > 0; s >>= 1) {
+		    if((i + s <= n) && (fw[i + s] <= y)) {
+			i += s;
+			y -= fw[i];
+		    }
+		}
+		return(i);
+	    }
+
+	    public void add(Message msg) {
+		if(n == msgs.length) {
+		    int nl = msgs.length * 2;
+		    msgs = Arrays.copyOf(msgs, nl);
+		    hs = Arrays.copyOf(hs, nl);
+		    offs = Arrays.copyOf(offs, nl);
+		    fw = new int[nl + 1];
+		    for(int i = 1; i <= n; i++) {
+			fw[i] += hs[i - 1];
+			int p = i + (i & -i);
+			if(p <= nl)
+			    fw[p] += fw[i];
+		    }
+		}
+		msg.idx = n;
+		msgs[n] = msg;
+		hs[n] = msg.sz().y;
+		fwadd(n, hs[n]);
+		total += hs[n];
+		n++;
+		while(n - spilled > keep)
+		    spill(spilled++);
+	    }
+
+	    @SuppressWarnings("unchecked")
+	    public Message get(int i) {
+		if((i < 0) || (i >= n))
+		    throw(new IndexOutOfBoundsException(Integer.toString(i)));
+		if(msgs[i] instanceof Message)
+		    return((Message)msgs[i]);
+		Message msg = ((Reference<Message>)msgs[i]).get();
+		if(msg == null) {
+		    msg = load(i);
+		    msgs[i] = new WeakReference<Message>(msg);
+		}
+		reloaded.put(i, msg);
+		return(msg);
+	    }
+
+	    /* To be called for every message drawn, to keep its
+	     * texture resident and its height current. */
+	    public void shown(Message msg) {
+		drawn.put(msg, msg);
+		int h = msg.sz().y;
+		if(h != hs[msg.idx]) {
+		    fwadd(msg.idx, h - hs[msg.idx]);
+		    total += h - hs[msg.idx];
+		    hs[msg.idx] = h;
+		}
+	    }
+
+	    private void spill(int i) {
+		Message msg = (Message)msgs[i];
+		String line = msg.line();
+		if(nolog || (line == null) || (line.length() > 16384))
+		    return;
+		try {
+		    if(log == null) {
+			logf = File.createTempFile("haven-chat-", ".log");
+			logf.deleteOnExit();
+			log = new RandomAccessFile(logf, "rw");
+		    }
+		    long off = log.length();
+		    log.seek(off);
+		    log.writeUTF(line);
+		    Color col = msg.color();
+		    log.writeBoolean(col != null);
+		    if(col != null)
+			log.writeInt(col.getRGB());
+		    offs[i] = off;
+		} catch(IOException | SecurityException e) {
+		    /* Keep everything in memory, then. */
+		    nolog = true;
+		    return;
+		}
+		msg.release();
+		drawn.remove(msg);
+		msgs[i] = new WeakReference<Message>(msg);
+	    }
+
+	    private Message load(int i) {
+		Message msg;
+		try {
+		    log.seek(offs[i]);
+		    String line = log.readUTF();
+		    Color col = log.readBoolean()?new Color(log.readInt(), true):null;
+		    msg = new SimpleMessage(line, col, iw());
+		} catch(IOException e) {
+		    msg = new SimpleMessage("(message lost)", Color.GRAY, iw());
+		}
+		msg.idx = i;
+		return(msg);
+	    }
+
+	    public void close() {
+		for(Message msg : drawn.keySet())
+		    msg.release();
+		drawn.clear();
+		reloaded.clear();
+		if(log != null) {
+		    try {
+			log.close();
+		    } catch(IOException e) {}
+		    logf.delete();
+		    log = null;
+		}
+		nolog = true;
+	    }
 	}
 
 	public Channel(Coord c, Coord sz, Widget parent, boolean closeable) {
@@ -184,11 +382,8 @@ public class ChatUI extends Widget {
 	public void append(Message msg, boolean attn) {
 	    synchronized(msgs) {
 		msgs.add(msg);
-		int y = 0;
-		for(Message m : msgs)
-		    y += m.sz().y;
 		boolean b = sb.val >= sb.max;
-		sb.max = y - ih();
+		sb.max = msgs.height() - ih();
 		if(b)
 		    sb.val = sb.max;
 		if(attn){
@@ -214,25 +409,19 @@ public class ChatUI extends Widget {
 	    g.chcolor(0, 0, 0, 255);
 	    g.frect(Coord.z, sz);
 	    g.chcolor();
-	    int y = 0;
-	    boolean sel = false;
 	    synchronized(msgs) {
-		for(Message msg : msgs) {
-		    if((selstart != null) && (msg == selstart.msg))
-			sel = true;
-		    int y1 = y - sb.val;
-		    int y2 = y1 + msg.sz().y;
-		    if((y2 > 0) && (y1 < ih())) {
-			if(sel)
-			    drawsel(g, msg, y1);
-			g.image(msg.tex(), new Coord(0, y1));
-		    }
-		    if((selend != null) && (msg == selend.msg))
-			sel = false;
-		    y += msg.sz().y;
+		for(int i = msgs.find(sb.val); i < msgs.size(); i++) {
+		    int y = msgs.top(i) - sb.val;
+		    if(y >= ih())
+			break;
+		    Message msg = msgs.get(i);
+		    if((selstart != null) && (i >= selstart.msg.idx) && (i <= selend.msg.idx))
+			drawsel(g, msg, y);
+		    g.image(msg.tex(), new Coord(0, y));
+		    msgs.shown(msg);
 		}
+		sb.max = msgs.height() - ih();
 	    }
-	    sb.max = y - ih();
 	    super.draw(g);
 	}
 	
@@ -246,11 +435,8 @@ public class ChatUI extends Widget {
 	    if(sb != null) {
 		sb.resize(ih());
 		sb.move(new Coord(sz.x, 0));
-		int y = 0;
-		for(Message m : msgs)
-		    y += m.sz().y;
 		boolean b = sb.val >= sb.max;
-		sb.max = y - ih();
+		sb.max = msgs.height() - ih();
 		if(b)
 		    sb.val = sb.max;
 	    }
@@ -262,6 +448,13 @@ public class ChatUI extends Widget {
 	public void notify(Message msg) {
 	    getparent(ChatUI.class).notify(this, msg);
 	}
+
+	public void destroy() {
+	    synchronized(msgs) {
+		msgs.close();
+	    }
+	    super.destroy();
+	}
 	
 	public static class CharPos {
 	    public final Message msg;
@@ -284,15 +477,7 @@ public class ChatUI extends Widget {
 	public final Comparator<CharPos> poscmp = new Comparator<CharPos>() {
 	    public int compare(CharPos a, CharPos b) {
 		if(a.msg != b.msg) {
-		    synchronized(msgs) {
-			for(Message msg : msgs) {
-			    if(msg == a.msg)
-				return(-1);
-			    else if(msg == b.msg)
-				return(1);
-			}
-		    }
-		    throw(new IllegalStateException("CharPos message is no longer contained in the log"));
+		    return(a.msg.idx - b.msg.idx);
 		} else if(a.part != b.part) {
 		    for(RichText.Part part = ((RichText)a.msg.text()).parts; part != null; part = part.next) {
 			if(part == a.part)
@@ -308,28 +493,27 @@ public class ChatUI extends Widget {
 	};
 
 	public Message messageat(Coord c, Coord hc) {
-	    int y = -sb.val;
+	    int y = c.y + sb.val;
 	    synchronized(msgs) {
-		for(Message msg : msgs) {
-		    Coord sz = msg.sz();
-		    if((c.y >= y) && (c.y < y + sz.y)) {
-			if(hc != null) {
-			    hc.x = c.x;
-			    hc.y = c.y - y;
-			}
-			return(msg);
-		    }
-		    y += sz.y;
+		int i = msgs.find(y);
+		if((y < 0) || (i >= msgs.size()))
+		    return(null);
+		if(hc != null) {
+		    hc.x = c.x;
+		    hc.y = y - msgs.top(i);
 		}
+		return(msgs.get(i));
 	    }
-	    return(null);
 	}
 	
 	public CharPos charat(Coord c) {
 	    if(c.y < -sb.val) {
-		if(msgs.size() < 1)
-		    return(null);
-		Message msg = msgs.get(0);
+		Message msg;
+		synchronized(msgs) {
+		    if(msgs.size() < 1)
+			return(null);
+		    msg = msgs.get(0);
+		}
 		if(!(msg.text() instanceof RichText))
 		    return(null);
 		RichText.TextPart fp = null;
@@ -408,7 +592,8 @@ public class ChatUI extends Widget {
 	    StringBuilder buf = new StringBuilder();
 	    synchronized(msgs) {
 		boolean sel = false;
-		for(Message msg : msgs) {
+		for(int mi = start.msg.idx; mi <= end.msg.idx; mi++) {
+		    Message msg = msgs.get(mi);
 		    if(!(msg.text() instanceof RichText))
 			continue;
 		    RichText rt = (RichText)msg.text();
@@ -449,8 +634,6 @@ public class ChatUI extends Widget {
 			if(sel)
 			    buf.append('\n');
 		    }
-		    if(msg == end.msg)
-			break;
 		}
 	    }
 	    Clipboard cl;
@@ -701,6 +884,18 @@ public class ChatUI extends Widget {
 		else
 		    return(r.sz());
 	    }
+
+	    public void release() {
+		if(r != null)
+		    r.dispose();
+	    }
+
+	    public String line() {
+		text();
+		return(String.format("%s: %s", cn, text));
+	    }
+
+	    public Color color() {return(col);}
 	}
 
 	public class MyMessage extends SimpleMessage {
@@ -139,7 +139,7 @@ public class Composited implements Rendered {
     private class Model implements Rendered {
 	private final MorphedMesh m;
 	int z = 0, lz = 0;
-	private class Layer implements FRendered {
+	private class Layer implements FRendered.Meshed {
 	    private final Material mat;
 	    private final int z1, z2;
 	    
@@ -157,6 +157,10 @@ public class Composited implements Rendered {
 		if(z2 == 0)
 		    m.drawflat(g);
 	    }
+
+	    public FastMesh flatmesh() {
+		return((z2 == 0) ? m : null);
+	    }
 	    
 	    public boolean setup(RenderList r) {
 		r.prepo(modorder);
@@ -48,6 +48,8 @@ public class Config {
     public static boolean profile = getprop("haven.profile", "off").equals("on");
     public static boolean nolocalres = getprop("haven.nolocalres", "").equals("yesimsure");
     public static boolean fscache = getprop("haven.fscache", "on").equals("on");
+    public static boolean packcache = getprop("haven.packcache", "on").equals("on");
+    public static int cachesize = getint("haven.cachesize", 256);
     public static boolean authcertstrict = getprop("haven.auth-cert-strict", "off").equals("on");
     public static String resdir = getprop("haven.resdir", null);
     public static boolean nopreload = getprop("haven.nopreload", "no").equals("yes");
@@ -57,6 +59,16 @@ public class Config {
     public static int authport = getint("haven.authport", 1871);
     public static String authmech = getprop("haven.authmech", "native");
     public static boolean softres = getprop("haven.softres", "on").equals("on");
+    public static int resthreads = getint("haven.resthreads", Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    public static int httpthreads = getint("haven.httpthreads", 16);
+    public static int pcmcache = getint("haven.pcmcache", 1 << 21);
+    public static int texupload = getint("haven.texupload", 1 << 22);
+    public static int uibudget = getint("haven.uibudget", 4);
+    public static int deferthreads = getint("haven.deferthreads", Math.max(Runtime.getRuntime().availableProcessors() - 1, 2));
+    public static boolean httppipe = getprop("haven.httppipe", "on").equals("on");
+    public static boolean cpupick = getprop("haven.cpupick", "on").equals("on");
+    public static boolean partick = getprop("haven.partick", "off").equals("on");
+    public static String netrec = getprop("haven.netrec", null);
     public static byte[] authck = null;
     public static String prefspec = "salem";
     public static final String confid = "";
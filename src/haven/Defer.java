@@ -30,9 +30,11 @@ import java.util.*;
 
 public class Defer extends ThreadGroup {
     private static final Map<ThreadGroup, Defer> groups = new WeakHashMap<ThreadGroup, Defer>();
-    private final Queue<Future<?>> queue = new PrioQueue<Future<?>>();
+    private final PrioQueue<Future<?>> queue = new PrioQueue<Future<?>>();
     private final Collection<Thread> pool = new LinkedList<Thread>();
-    private final int maxthreads = 2;
+    private final int maxthreads = Config.deferthreads;
+    private long nrun, ndone, nparked, nwoken, npolled;
+    private long qtime, rtime, ltime;
     
     public interface Callable<T> {
 	public T call() throws InterruptedException;
@@ -68,6 +70,10 @@ public class Defer extends ThreadGroup {
 		    future.wait();
 	    }
 	}
+	public boolean waitfor(Runnable cb) {
+	    future.ondone(cb);
+	    return(true);
+	}
     }
 
     public class Future<T> implements Runnable, Prioritized {
@@ -77,11 +83,29 @@ public class Defer extends ThreadGroup {
 	private volatile String state = "";
 	private RuntimeException exc = null;
 	private Thread running = null;
+	private Collection<Runnable> donecbs = null;
+	private int parkseq = 0;
+	private final long created = System.nanoTime();
+	private long qstart;
 	
 	private Future(Callable<T> task) {
 	    this.task = task;
 	}
 
+	/* Runs cb once this future is done, immediately if it already
+	 * is. */
+	public void ondone(Runnable cb) {
+	    synchronized(this) {
+		if(state != "done") {
+		    if(donecbs == null)
+			donecbs = new LinkedList<Runnable>();
+		    donecbs.add(cb);
+		    return;
+		}
+	    }
+	    cb.run();
+	}
+
 	public void cancel() {
 	    synchronized(this) {
 		if(running != null) {
@@ -94,9 +118,36 @@ public class Defer extends ThreadGroup {
 	}
 
 	private void chstate(String nst) {
+	    Collection<Runnable> cbs = null;
 	    synchronized(this) {
 		this.state = nst;
 		notifyAll();
+		if(nst == "done") {
+		    cbs = donecbs;
+		    donecbs = null;
+		}
+	    }
+	    if(nst == "done") {
+		synchronized(queue) {
+		    ndone++;
+		    ltime += System.nanoTime() - created;
+		}
+	    }
+	    if(cbs != null) {
+		for(Runnable cb : cbs)
+		    cb.run();
+	    }
+	}
+
+	private void wake(int seq) {
+	    synchronized(this) {
+		if((state != "wait") || (seq != parkseq))
+		    return;
+		state = "";
+		defer(this);
+	    }
+	    synchronized(queue) {
+		nwoken++;
 	    }
 	}
 
@@ -106,6 +157,12 @@ public class Defer extends ThreadGroup {
 		    return;
 		running = Thread.currentThread();
 	    }
+	    long st = System.nanoTime();
+	    synchronized(queue) {
+		nrun++;
+		qtime += st - qstart;
+	    }
+	    Loading wait = null;
 	    try {
 		val = task.call();
 		chstate("done");
@@ -113,14 +170,40 @@ public class Defer extends ThreadGroup {
 		this.exc = new CancelledException(exc);
 		chstate("done");
 	    } catch(Loading exc) {
+		wait = exc;
 	    } catch(RuntimeException exc) {
 		this.exc = exc;
 		chstate("done");
 	    } finally {
+		synchronized(queue) {
+		    rtime += System.nanoTime() - st;
+		}
 		if(state != "done")
-		    chstate("resched");
+		    chstate((wait != null) ? "wait" : "resched");
 		running = null;
 	    }
+	    if(wait != null) {
+		/* Park until whatever was being loaded is available,
+		 * or, if that cannot be known, until polled by
+		 * get() or done() as before. */
+		final int seq;
+		synchronized(this) {
+		    seq = ++parkseq;
+		}
+		if(wait.waitfor(() -> wake(seq))) {
+		    synchronized(queue) {
+			nparked++;
+		    }
+		} else {
+		    synchronized(this) {
+			if(state == "wait")
+			    state = "resched";
+		    }
+		    synchronized(queue) {
+			npolled++;
+		    }
+		}
+	    }
 	}
 	
 	public T get() {
@@ -156,8 +239,12 @@ public class Defer extends ThreadGroup {
 	
 	public void boostprio(int prio) {
 	    synchronized(this) {
-		if(this.prio < prio)
+		if(this.prio < prio) {
 		    this.prio = prio;
+		    synchronized(queue) {
+			queue.update(this);
+		    }
+		}
 	    }
 	}
     }
@@ -206,6 +293,7 @@ public class Defer extends ThreadGroup {
     
     private void defer(Future<?> f) {
 	synchronized(queue) {
+	    f.qstart = System.nanoTime();
 	    boolean e = queue.isEmpty();
 	    queue.add(f);
 	    queue.notify();
@@ -244,4 +332,34 @@ public class Defer extends ThreadGroup {
     public static <T> Future<T> later(Callable<T> task) {
 	return(later(task, true));
     }
+
+    public String stats() {
+	synchronized(queue) {
+	    return(String.format("%s: q %d, thr %d/%d, run %d, done %d, parked %d, woken %d, polled %d, " +
+				 "wait %.1f ms, run %.1f ms, total %.1f ms",
+				 getParent().getName(), queue.size(), pool.size(), maxthreads,
+				 nrun, ndone, nparked, nwoken, npolled,
+				 (nrun == 0) ? 0.0 : (qtime / nrun) * 1e-6,
+				 (nrun == 0) ? 0.0 : (rtime / nrun) * 1e-6,
+				 (ndone == 0) ? 0.0 : (ltime / ndone) * 1e-6));
+	}
+    }
+
+    public static List<String> allstats() {
+	List<String> ret = new ArrayList<String>();
+	synchronized(groups) {
+	    for(Defer d : groups.values())
+		ret.add(d.stats());
+	}
+	return(ret);
+    }
+
+    static {
+	Console.setscmd("defstat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    for(String ln : allstats())
+			cons.out.println(ln);
+		}
+	    });
+    }
 }
@@ -28,4 +28,10 @@ package haven;
 
 public interface FRendered extends Rendered {
     public void drawflat(GOut g);
+
+    /* Flat renderables whose flat image is exactly that of a mesh, so
+     * that they can be picked without drawing them. */
+    public interface Meshed extends FRendered {
+	public FastMesh flatmesh();
+    }
 }
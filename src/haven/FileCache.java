@@ -85,6 +85,11 @@ public class FileCache implements ResCache {
 	return(new BufferedInputStream(new FileInputStream(forres(name))));
     }
     
+    public void remove(String name) throws IOException {
+	if(!forres(name).delete())
+	    throw(new FileNotFoundException(name));
+    }
+
     public String toString() {
 	return("FileCache(" + base + ")");
     }
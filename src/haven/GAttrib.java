@@ -28,6 +28,11 @@ package haven;
 
 public abstract class GAttrib {
     public final Gob gob;
+
+    /* Attributes whose ctick() touches nothing but their own state
+     * may implement this, so that they can be ticked in parallel
+     * with those of other gobs when haven.partick is on. */
+    public interface Parallel {}
 	
     public GAttrib(Gob gob) {
 	this.gob = gob;
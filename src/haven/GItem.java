@@ -82,6 +82,10 @@ public class GItem extends AWidget implements ItemInfo.ResOwner {
 	return(info);
     }
     
+    public Object[] rawinfo() {
+	return(rawinfo);
+    }
+    
     public Resource resource() {
 	return(res.get());
     }
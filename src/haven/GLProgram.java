@@ -133,7 +133,8 @@ public class GLProgram implements java.io.Serializable {
 	}
     }
     
-    public void apply(GOut g) {
+    /* Compiles and links without making the program current. */
+    public void link(GOut g) {
 	synchronized(this) {
 	    if((glp != null) && (glp.gl != g.gl))
 		dispose();
@@ -141,6 +142,12 @@ public class GLProgram implements java.io.Serializable {
 		glp = new ProgOb(g.gl);
 		glp.link(this);
 	    }
+	}
+    }
+    
+    public void apply(GOut g) {
+	synchronized(this) {
+	    link(g);
 	    g.gl.glUseProgramObjectARB(glp.id);
 	}
     }
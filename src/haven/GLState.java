@@ -349,6 +349,10 @@ public abstract class GLState {
 	public ShaderMacro.Program prog;
 	public boolean usedprog;
 	public boolean pdirty = false, sdirty = false;
+	/* Set while rendering lists whose objects may be skipped
+	 * whilst loading, in which case programs are built in the
+	 * background instead of stalling the frame. */
+	public boolean defer = false;
 	public long time = 0;
 	
 	/* It seems ugly to treat these so specially, but right now I
@@ -445,7 +449,7 @@ public abstract class GLState {
 		    break;
 		}
 		if(usesl) {
-		    np = findprog(nproghash, nshaders);
+		    np = findprog(nproghash, nshaders, next.states);
 		} else {
 		    np = null;
 		}
@@ -600,23 +604,48 @@ public abstract class GLState {
 	/* Program internation */
 	public static class SavedProg {
 	    public final int hash;
-	    public final ShaderMacro.Program prog;
+	    public ShaderMacro.Program prog;
 	    public final ShaderMacro[][] shaders;
 	    public SavedProg next;
-	    boolean used = true;
+	    boolean used = true, shared = false;
+	    private Collection<ShaderMacro> mods;
+	    private Defer.Future<ShaderMacro.Program> dprog;
 	    
 	    public SavedProg(int hash, ShaderMacro.Program prog, ShaderMacro[][] shaders) {
 		this.hash = hash;
 		this.prog = prog;
 		this.shaders = Utils.splice(shaders, 0);
 	    }
+
+	    SavedProg(int hash, Collection<ShaderMacro> mods, Defer.Future<ShaderMacro.Program> dprog, boolean shared, ShaderMacro[][] shaders) {
+		this(hash, (ShaderMacro.Program)null, shaders);
+		this.mods = mods;
+		this.dprog = dprog;
+		this.shared = shared;
+	    }
+
+	    ShaderMacro.Program get(boolean defer) {
+		if(prog == null) {
+		    try {
+			prog = dprog.get();
+		    } catch(Loading l) {
+			if(defer)
+			    throw(RenderList.RLoad.wrap(l));
+			prog = ShaderMacro.Program.build(mods);
+			shared = false;
+		    }
+		    mods = null;
+		    dprog = null;
+		}
+		return(prog);
+	    }
 	}
 	
 	private SavedProg[] ptab = new SavedProg[32];
 	private int nprog = 0;
 	private long lastclean = System.currentTimeMillis();
 	
-	private ShaderMacro.Program findprog(int hash, ShaderMacro[][] shaders) {
+	private ShaderMacro.Program findprog(int hash, ShaderMacro[][] shaders, GLState[] states) {
 	    int idx = hash & (ptab.length - 1);
 	    outer: for(SavedProg s = ptab[idx]; s != null; s = s.next) {
 		if(s.hash != hash)
@@ -631,23 +660,33 @@ public abstract class GLState {
 			continue outer;
 		}
 		s.used = true;
-		return(s.prog);
+		return(s.get(defer));
 	    }
-	    Collection<ShaderMacro> mods = new LinkedList<ShaderMacro>();
+	    List<ShaderMacro> mods = new ArrayList<ShaderMacro>();
+	    List<Class<?>> from = new ArrayList<Class<?>>();
 	    for(int i = 0; i < shaders.length; i++) {
 		if(shaders[i] == null)
 		    continue;
-		for(int o = 0; o < shaders[i].length; o++)
+		Class<?> cl = ((i < states.length) && (states[i] != null))?states[i].getClass():null;
+		for(int o = 0; o < shaders[i].length; o++) {
 		    mods.add(shaders[i][o]);
+		    from.add(cl);
+		}
 	    }
-	    ShaderMacro.Program prog = ShaderMacro.Program.build(mods);
-	    SavedProg s = new SavedProg(hash, prog, shaders);
+	    SavedProg s;
+	    ProgCache.Entry e = ProgCache.get(mods, from);
+	    if(e != null)
+		s = new SavedProg(hash, mods, e.prog, true, shaders);
+	    else if(defer)
+		s = new SavedProg(hash, mods, ProgCache.build(mods), false, shaders);
+	    else
+		s = new SavedProg(hash, ShaderMacro.Program.build(mods), shaders);
 	    s.next = ptab[idx];
 	    ptab[idx] = s;
 	    nprog++;
 	    if(nprog > ptab.length)
 		rehash(ptab.length * 2);
-	    return(prog);
+	    return(s.get(defer));
 	}
 	
 	private void rehash(int nlen) {
@@ -675,7 +714,10 @@ public abstract class GLState {
 				p.next = c.next;
 			    else
 				ptab[i] = c.next;
-			    c.prog.dispose();
+			    /* Shared programs may be current in
+			     * another applier. */
+			    if((c.prog != null) && !c.shared)
+				c.prog.dispose();
 			    nprog--;
 			} else {
 			    c.used = false;
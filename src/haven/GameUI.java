@@ -1312,6 +1312,26 @@ public class GameUI extends ConsoleHost implements Console.Directory {
 		    gettype(args[1]).create(new Coord(200, 200), GameUI.this, new Object[0]);
 		}
 	    });
+	cmdmap.put("netstat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    cons.out.println(ui.sess.stats());
+		}
+	    });
+	cmdmap.put("skinstat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    cons.out.println(PoseMorph.stats());
+		}
+	    });
+	cmdmap.put("cutstat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    cons.out.println(ui.sess.glob.map.cutstats());
+		}
+	    });
+	cmdmap.put("tipstat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    cons.out.println(ui.sess.glob.tips.stats());
+		}
+	    });
 
 	cmdmap.put("flatness", new Console.Command(){
 		public void run(Console cons, String[] args){
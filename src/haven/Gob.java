@@ -34,6 +34,7 @@ public class Gob implements Sprite.Owner, Skeleton.ModOwner, Rendered {
     public double a;
     public boolean virtual = false;
     int clprio = 0;
+    OCache.Cell ocell = null;
     public long id;
     public int frame, initdelay = (int)(Math.random() * 3000) + 3000;
     public final Glob glob;
@@ -97,10 +98,21 @@ public class Gob implements Sprite.Owner, Skeleton.ModOwner, Rendered {
 	public void ch(T n);
     }
 	
+    /* Ticks the attributes that may be ticked in parallel with other
+     * gobs; ctick() then ticks the rest. */
+    public void partick(int dt) {
+	for(GAttrib a : attr.values()) {
+	    if(a instanceof GAttrib.Parallel)
+		a.ctick((a instanceof Drawable) ? (dt + initdelay) : dt);
+	}
+    }
+
     public void ctick(int dt) {
 	int dt2 = dt + initdelay;
 	initdelay = 0;
 	for(GAttrib a : attr.values()) {
+	    if(Config.partick && (a instanceof GAttrib.Parallel))
+		continue;
 	    if(a instanceof Drawable)
 		a.ctick(dt2);
 	    else
@@ -120,8 +132,13 @@ public class Gob implements Sprite.Owner, Skeleton.ModOwner, Rendered {
 	    }
 	}
 	if(virtual && ols.isEmpty())
-	    glob.oc.remove(id);
-	loc.tick();
+	    glob.oc.defer(() -> glob.oc.remove(id));
+	/* Followers are placed relative to what they follow, which must
+	 * have been ticked first. */
+	if(getattr(Moving.class) instanceof Following)
+	    glob.oc.defer(loc::tick);
+	else
+	    loc.tick();
     }
 	
     public Overlay findol(int id) {
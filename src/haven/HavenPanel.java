@@ -277,6 +277,7 @@ public class HavenPanel extends GLCanvas implements Runnable, Console.Directory
 	GOut g = new GOut(gl, getContext(), glconf, state, ibuf, new Coord(w, h));
 	UI ui = this.ui;
 	state.set(ibuf);
+	TexI.frame();
 
 	g.state(rtstate);
 	TexRT.renderall(g);
@@ -302,8 +303,10 @@ public class HavenPanel extends GLCanvas implements Runnable, Console.Directory
 	    long free = rt.freeMemory(), total = rt.totalMemory();
 	    FastText.aprintf(g, new Coord(10, y -= 15), 0, 1, "Mem: %,011d/%,011d/%,011d/%,011d", free, total - free, total, rt.maxMemory());
 	    FastText.aprintf(g, new Coord(10, y -= 15), 0, 1, "Tex-current: %d", TexGL.num());
+	    FastText.aprintf(g, new Coord(10, y -= 15), 0, 1, "Tex-prep: %s", TexI.stats());
 	    FastText.aprintf(g, new Coord(10, y -= 15), 0, 1, "RT-current: %d", TexRT.current.get(gl).size());
 	    FastText.aprintf(g, new Coord(10, y -= 15), 0, 1, "GL progs: %d", g.st.numprogs());
+	    FastText.aprintf(g, new Coord(10, y -= 15), 0, 1, "GL prog-cache: %s", ProgCache.stats());
 	    GameUI gi = ui.root.findchild(GameUI.class);
 	    if((gi != null) && (gi.map != null)) {
 		try {
@@ -369,6 +372,7 @@ public class HavenPanel extends GLCanvas implements Runnable, Console.Directory
 	    }
 	}
 	state.clean();
+	ProgCache.frame(g);
 	if(glconf.pref.dirty) {
 	    glconf.pref.save();
 	    glconf.pref.dirty = false;
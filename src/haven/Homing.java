@@ -26,7 +26,7 @@
 
 package haven;
 
-public class Homing extends Moving {
+public class Homing extends Moving implements GAttrib.Parallel {
     long tgt;
     Coord tc;
     int v;
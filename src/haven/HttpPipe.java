@@ -0,0 +1,379 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+/*
+ * A minimal HTTP/1.1 client for fetching many small files from one
+ * server. It keeps a few persistent connections open and pipelines
+ * up to a number of outstanding GET requests on each of them. If a
+ * connection is closed with requests still outstanding, those are
+ * put back in the queue and retried on a new connection. It neither
+ * goes through proxies nor follows redirects, which are instead
+ * reported to the caller as RedirectExceptions.
+ */
+public class HttpPipe {
+    public final String host;
+    public final int port;
+    private final SslHelper ssl;
+    private final int maxconns, depth;
+    private final LinkedList<Request> queue = new LinkedList<Request>();
+    private final Collection<Conn> conns = new LinkedList<Conn>();
+    private long nreq = 0, nbytes = 0, busytime = 0, busystart = 0;
+    private int outstanding = 0;
+
+    public HttpPipe(URL base, SslHelper ssl, int maxconns, int depth) {
+	this.host = base.getHost();
+	this.port = (base.getPort() < 0) ? base.getDefaultPort() : base.getPort();
+	this.ssl = base.getProtocol().equals("https") ? ssl : null;
+	this.maxconns = maxconns;
+	this.depth = depth;
+    }
+
+    public static class RedirectException extends IOException {
+	public final int status;
+	public final String location;
+
+	public RedirectException(String path, int status, String location) {
+	    super("HTTP redirect " + status + " for " + path + " to " + location);
+	    this.status = status;
+	    this.location = location;
+	}
+    }
+
+    private static class Request {
+	final String path;
+	byte[] body = null;
+	IOException err = null;
+	int tries = 0;
+	boolean done = false;
+
+	Request(String path) {
+	    this.path = path;
+	}
+
+	synchronized void finish(byte[] body, IOException err) {
+	    this.body = body;
+	    this.err = err;
+	    done = true;
+	    notifyAll();
+	}
+    }
+
+    private static String readline(InputStream in) throws IOException {
+	StringBuilder buf = new StringBuilder();
+	while(true) {
+	    int c = in.read();
+	    if(c < 0)
+		throw(new EOFException("Unexpected end of HTTP response"));
+	    if(c == '\n')
+		break;
+	    if(c != '\r')
+		buf.append((char)c);
+	}
+	return(buf.toString());
+    }
+
+    private static void readfully(InputStream in, byte[] buf, int off, int len) throws IOException {
+	while(len > 0) {
+	    int rv = in.read(buf, off, len);
+	    if(rv < 0)
+		throw(new EOFException("Unexpected end of HTTP response"));
+	    off += rv;
+	    len -= rv;
+	}
+    }
+
+    private class Conn extends HackThread {
+	private final LinkedList<Request> sent = new LinkedList<Request>();
+	private Socket sk;
+	private OutputStream out;
+	private InputStream in;
+	private boolean closing;
+
+	Conn() {
+	    super("HTTP pipe (" + host + ")");
+	    setDaemon(true);
+	}
+
+	private void connect() throws IOException {
+	    if(ssl != null) {
+		sk = ssl.connect(host, port);
+	    } else {
+		sk = new HackSocket();
+		sk.connect(new InetSocketAddress(host, port), 5000);
+	    }
+	    sk.setTcpNoDelay(true);
+	    sk.setSoTimeout(30000);
+	    out = new BufferedOutputStream(sk.getOutputStream());
+	    in = new BufferedInputStream(sk.getInputStream());
+	    closing = false;
+	}
+
+	/* Writes as many queued requests as the pipeline depth
+	 * allows. Returns false if the connection is idle and
+	 * should be shut down. */
+	private boolean fill(boolean wait) throws IOException, InterruptedException {
+	    List<Request> nr = new ArrayList<Request>();
+	    synchronized(queue) {
+		if(wait && sent.isEmpty()) {
+		    long st = System.currentTimeMillis();
+		    while(queue.isEmpty()) {
+			long left = 10000 - (System.currentTimeMillis() - st);
+			if(left <= 0) {
+			    conns.remove(this);
+			    return(false);
+			}
+			queue.wait(left);
+		    }
+		}
+		while(!closing && (sent.size() + nr.size() < depth) && !queue.isEmpty())
+		    nr.add(queue.removeFirst());
+	    }
+	    if(nr.isEmpty())
+		return(true);
+	    if(sk == null)
+		connect();
+	    for(Request req : nr) {
+		String hdr = String.format("GET %s HTTP/1.1\r\nHost: %s\r\nUser-Agent: Haven/1.0\r\n\r\n", req.path, host);
+		out.write(hdr.getBytes("US-ASCII"));
+		sent.add(req);
+	    }
+	    out.flush();
+	    return(true);
+	}
+
+	private void response() throws IOException {
+	    Request req = sent.getFirst();
+	    String[] sl = readline(in).split(" ", 3);
+	    if((sl.length < 2) || !sl[0].startsWith("HTTP/"))
+		throw(new IOException("Malformed HTTP status line"));
+	    int status = Integer.parseInt(sl[1]);
+	    long clen = -1;
+	    boolean chunked = false;
+	    String location = null;
+	    for(String ln = readline(in); ln.length() > 0; ln = readline(in)) {
+		int p = ln.indexOf(':');
+		if(p < 0)
+		    continue;
+		String nm = ln.substring(0, p).trim().toLowerCase(), val = ln.substring(p + 1).trim();
+		if(nm.equals("content-length"))
+		    clen = Long.parseLong(val);
+		else if(nm.equals("transfer-encoding") && val.toLowerCase().contains("chunked"))
+		    chunked = true;
+		else if(nm.equals("connection") && val.toLowerCase().contains("close"))
+		    closing = true;
+		else if(nm.equals("location"))
+		    location = val;
+	    }
+	    if(sl[0].equals("HTTP/1.0"))
+		closing = true;
+	    byte[] body;
+	    if(chunked) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		while(true) {
+		    String cl = readline(in);
+		    int p = cl.indexOf(';');
+		    int len = Integer.parseInt(((p < 0) ? cl : cl.substring(0, p)).trim(), 16);
+		    if(len == 0)
+			break;
+		    byte[] chunk = new byte[len];
+		    readfully(in, chunk, 0, len);
+		    buf.write(chunk);
+		    readline(in);
+		}
+		while(readline(in).length() > 0);
+		body = buf.toByteArray();
+	    } else if(clen >= 0) {
+		body = new byte[(int)clen];
+		readfully(in, body, 0, body.length);
+	    } else {
+		body = Utils.readall(in);
+		closing = true;
+	    }
+	    sent.removeFirst();
+	    synchronized(queue) {
+		if(status == 200) {
+		    nreq++;
+		    nbytes += body.length;
+		}
+		if(--outstanding == 0)
+		    busytime += System.nanoTime() - busystart;
+	    }
+	    if(status == 200)
+		req.finish(body, null);
+	    else if((status == 404) || (status == 410))
+		req.finish(null, new FileNotFoundException(req.path));
+	    else if((status >= 300) && (status < 400))
+		req.finish(null, new RedirectException(req.path, status, location));
+	    else
+		req.finish(null, new IOException("HTTP error " + status + " for " + req.path));
+	}
+
+	private void close() {
+	    try {
+		if(sk != null)
+		    sk.close();
+	    } catch(IOException e) {
+	    }
+	    sk = null;
+	}
+
+	private void requeue(IOException cause) {
+	    synchronized(queue) {
+		for(Iterator<Request> i = sent.descendingIterator(); i.hasNext();) {
+		    Request req = i.next();
+		    if(++req.tries >= 5) {
+			req.finish(null, new IOException("Request failed five times", cause));
+			if(--outstanding == 0)
+			    busytime += System.nanoTime() - busystart;
+		    } else {
+			queue.addFirst(req);
+		    }
+		}
+		sent.clear();
+		queue.notifyAll();
+	    }
+	}
+
+	public void run() {
+	    try {
+		while(true) {
+		    try {
+			if(!fill(true))
+			    break;
+			while(!sent.isEmpty()) {
+			    response();
+			    if(closing) {
+				requeue(null);
+				close();
+				break;
+			    }
+			    fill(false);
+			}
+		    } catch(IOException e) {
+			close();
+			requeue(e);
+			Thread.sleep(100);
+		    } catch(RuntimeException e) {
+			/* Most likely a malformed response. */
+			close();
+			requeue(new IOException(e));
+			Thread.sleep(100);
+		    }
+		}
+	    } catch(InterruptedException e) {
+		requeue(null);
+	    } finally {
+		close();
+		synchronized(queue) {
+		    conns.remove(this);
+		}
+	    }
+	}
+    }
+
+    public byte[] get(String path) throws IOException {
+	Request req = new Request(path);
+	synchronized(queue) {
+	    if(outstanding++ == 0)
+		busystart = System.nanoTime();
+	    queue.add(req);
+	    queue.notify();
+	    if((conns.size() < maxconns) && (conns.isEmpty() || (queue.size() > depth))) {
+		Conn c = new Conn();
+		conns.add(c);
+		c.start();
+	    }
+	}
+	boolean intr = false;
+	try {
+	    synchronized(req) {
+		while(!req.done) {
+		    try {
+			req.wait();
+		    } catch(InterruptedException e) {
+			intr = true;
+		    }
+		}
+	    }
+	} finally {
+	    if(intr)
+		Thread.currentThread().interrupt();
+	}
+	if(req.err != null)
+	    throw(req.err);
+	return(req.body);
+    }
+
+    public String stats() {
+	synchronized(queue) {
+	    long bt = busytime;
+	    if(outstanding > 0)
+		bt += System.nanoTime() - busystart;
+	    double s = bt * 1e-9;
+	    return(String.format("%s:%d: %d conns, %d outstanding, %d fetched, %,d bytes, %.1f res/s, %,.0f bytes/s",
+				 host, port, conns.size(), outstanding, nreq, nbytes,
+				 (s > 0) ? (nreq / s) : 0.0, (s > 0) ? (nbytes / s) : 0.0));
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	if(args.length < 2) {
+	    System.err.println("usage: HttpPipe BASE-URL LIST [CONNS [DEPTH]]");
+	    System.exit(1);
+	}
+	URL base = new URL(args[0]);
+	HttpPipe pipe = new HttpPipe(base, new SslHelper(), (args.length > 2) ? Integer.parseInt(args[2]) : 2,
+				     (args.length > 3) ? Integer.parseInt(args[3]) : 8);
+	List<String> names = new ArrayList<String>();
+	try(BufferedReader in = new BufferedReader(new FileReader(args[1]))) {
+	    for(String ln = in.readLine(); ln != null; ln = in.readLine()) {
+		int p = ln.indexOf(':');
+		names.add((p < 0) ? ln : ln.substring(0, p));
+	    }
+	}
+	List<Thread> th = new ArrayList<Thread>();
+	for(String nm : names) {
+	    Thread t = new Thread(() -> {
+		    try {
+			pipe.get(new URL(base, nm + ".res").getFile());
+		    } catch(IOException e) {
+			System.err.println(nm + ": " + e);
+		    }
+	    });
+	    t.start();
+	    th.add(t);
+	}
+	for(Thread t : th)
+	    t.join();
+	System.out.println(pipe.stats());
+    }
+}
@@ -118,12 +118,14 @@ public class IntMap<V> extends AbstractMap<Integer, V> {
 
 			    public void remove() {
 				vals[li] = null;
+				sz--;
 			    }
 			});
 		}
 
 		public void clear() {
 		    vals = new Object[0];
+		    sz = 0;
 		}
 	    };
 	return(entries);
@@ -141,13 +143,15 @@ public class IntMap<V> extends AbstractMap<Integer, V> {
 
     public V put(int k, V v) {
 	if(vals.length <= k) {
-	    Object[] n = new Object[k + 1];
+	    Object[] n = new Object[Math.max(k + 1, vals.length * 2)];
 	    System.arraycopy(vals, 0, n, 0, vals.length);
 	    vals = n;
 	}
-	V ret = ocast(vals[k]);
+	Object p = vals[k];
+	if(p == null)
+	    sz++;
 	vals[k] = icast(v);
-	return(ret);
+	return(ocast(p));
     }
 
     public V put(Integer k, V v) {
@@ -157,9 +161,12 @@ public class IntMap<V> extends AbstractMap<Integer, V> {
     public V remove(int k) {
 	if(k >= vals.length)
 	    return(null);
-	V ret = ocast(vals[k]);
+	Object p = vals[k];
+	if(p == null)
+	    return(null);
 	vals[k] = null;
-	return(ret);
+	sz--;
+	return(ocast(p));
     }
 
     public V remove(Integer k) {
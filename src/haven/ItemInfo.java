@@ -185,6 +185,77 @@ public abstract class ItemInfo {
 	return(ret);
     }
     
+    /* Rendered tips keyed by the raw info they were built from, so
+     * that items showing the same info share one image. The images
+     * are rendered on Defer; until one is ready, get() returns a
+     * future that is not yet done. */
+    public static class TipCache {
+	public static final int size = 256;
+	private final Map<Key, Defer.Future<BufferedImage>> cache = new LinkedHashMap<Key, Defer.Future<BufferedImage>>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<Key, Defer.Future<BufferedImage>> eldest) {
+		return(size() > size);
+	    }
+	};
+	private int hits = 0, misses = 0, nrend = 0;
+	private long rtime = 0;
+
+	public static class Key {
+	    public final Object[] raw;
+	    public final Object[] ctx;
+	    private final int hash;
+
+	    public Key(Object[] raw, Object... ctx) {
+		this.raw = raw;
+		this.ctx = ctx;
+		this.hash = (Arrays.deepHashCode(raw) * 31) + Arrays.hashCode(ctx);
+	    }
+
+	    public int hashCode() {
+		return(hash);
+	    }
+
+	    public boolean equals(Object o) {
+		if(!(o instanceof Key))
+		    return(false);
+		Key k = (Key)o;
+		return((k.hash == hash) && Arrays.equals(k.ctx, ctx) && Arrays.deepEquals(k.raw, raw));
+	    }
+	}
+
+	public Defer.Future<BufferedImage> get(Key key, final Defer.Callable<BufferedImage> render) {
+	    synchronized(cache) {
+		Defer.Future<BufferedImage> f = cache.get(key);
+		if(f != null) {
+		    hits++;
+		    return(f);
+		}
+		misses++;
+		f = Defer.later(new Defer.Callable<BufferedImage>() {
+			public BufferedImage call() throws InterruptedException {
+			    long st = System.nanoTime();
+			    BufferedImage ret = render.call();
+			    synchronized(cache) {
+				nrend++;
+				rtime += System.nanoTime() - st;
+			    }
+			    return(ret);
+			}
+		    });
+		cache.put(key, f);
+		return(f);
+	    }
+	}
+
+	public String stats() {
+	    synchronized(cache) {
+		int n = hits + misses;
+		return(String.format("%d cached, %d/%d hits (%.1f%%), %d rendered, %.2f ms avg",
+				     cache.size(), hits, n, (n == 0)?0.0:(hits * 100.0 / n),
+				     nrend, (nrend == 0)?0.0:(rtime / (nrend * 1e6))));
+	    }
+	}
+    }
+
     private static String dump(Object arg) {
 	if(arg instanceof Object[]) {
 	    StringBuilder buf = new StringBuilder();
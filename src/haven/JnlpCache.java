@@ -141,6 +141,16 @@ public class JnlpCache implements ResCache {
 	return(ret);
     }
     
+    public void remove(String name) throws IOException {
+	try {
+	    back.delete(new URL(base, mangle(name)));
+	} catch(IOException e) {
+	    throw(e);
+	} catch(Exception e) {
+	    throw((IOException)(new IOException("Virtual NetX IO exception").initCause(e)));
+	}
+    }
+
     public InputStream fetch(String name) throws IOException {
 	try {
 	    URL loc = new URL(base, mangle(name));
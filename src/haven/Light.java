@@ -249,6 +249,11 @@ public class Light implements Rendered {
 	public int index(Light l) {
 	    return(ll.indexOf(l));
 	}
+
+	public void clear() {
+	    ll.clear();
+	    vl.clear();
+	}
     }
     
     public static class Model extends GLState {
@@ -26,7 +26,7 @@
 
 package haven;
 
-public class LinMove extends Moving {
+public class LinMove extends Moving implements GAttrib.Parallel {
     public Coord s, t;
     public int c;
     public double a;
@@ -50,4 +50,14 @@ public class Loading extends RuntimeException {
     public void waitfor() throws InterruptedException {
 	throw(new RuntimeException("Tried to wait for unwaitable event", this));
     }
+
+    /* Arranges for cb to be run, possibly immediately and from any
+     * thread, once whatever is being waited for has become
+     * available. Returns false if that is not known, in which case cb
+     * is never run. */
+    public boolean waitfor(Runnable cb) {
+	if(getCause() instanceof Loading)
+	    return(((Loading)getCause()).waitfor(cb));
+	return(false);
+    }
 }
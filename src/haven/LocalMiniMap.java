@@ -31,21 +31,25 @@ import static haven.MCache.cmaps;
 import static haven.MCache.tilesz;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.*;
+import java.io.*;
+import javax.imageio.ImageIO;
 import haven.resutil.RidgeTile;
 
 public class LocalMiniMap extends Window {
     public final MapView mv;
     private Coord cc = null;
-    private MapTile cur = null;
-    private final Map<Coord, Defer.Future<MapTile>> cache = new LinkedHashMap<Coord, Defer.Future<MapTile>>(9, 0.75f, true) {
-	protected boolean removeEldestEntry(Map.Entry<Coord, Defer.Future<MapTile>> eldest) {
+
+    /* Grid images are kept by grid ID, which stays the same across
+     * sessions. The most recently drawn ones are kept as textures,
+     * and all are saved in the resource cache, along with the hash of
+     * the grid data they were made from, so that they need only be
+     * made again when that changes. */
+    private static final Map<Long, MapTile> tiles = new LinkedHashMap<Long, MapTile>(16, 0.75f, true) {
+	protected boolean removeEldestEntry(Map.Entry<Long, MapTile> eldest) {
 	    if(size() > 75) {
-		try {
-		    MapTile t = eldest.getValue().get();
-		    t.img.dispose();
-		} catch(RuntimeException e) {
-		}
+		eldest.getValue().dispose();
 		return(true);
 	    }
 	    return(false);
@@ -53,93 +57,172 @@ public class LocalMiniMap extends Window {
     };
     
     public static class MapTile {
-	public final Tex img;
-	public final Coord ul, c;
+	public final long id;
+	public final long hash;
+	private final Defer.Future<BufferedImage> img;
+	private Tex tex = null;
 	
-	public MapTile(Tex img, Coord ul, Coord c) {
+	public MapTile(long id, long hash, Defer.Future<BufferedImage> img) {
+	    this.id = id;
+	    this.hash = hash;
 	    this.img = img;
-	    this.ul = ul;
-	    this.c = c;
+	}
+
+	public Tex tex() {
+	    if(tex == null) {
+		if(!img.done())
+		    return(null);
+		BufferedImage img = this.img.get();
+		if(img != null)
+		    tex = new TexI(img);
+	    }
+	    return(tex);
+	}
+
+	void dispose() {
+	    if(tex != null)
+		tex.dispose();
+	    else
+		img.cancel();
+	}
+    }
+
+    private static MapTile tile(final MCache map, final MCache.Grid g) {
+	synchronized(tiles) {
+	    MapTile t = tiles.get(g.id);
+	    if((t != null) && (t.hash == g.chash))
+		return(t);
+	    final boolean stored = (t == null);
+	    final long hash = g.chash;
+	    if(t != null)
+		t.dispose();
+	    t = new MapTile(g.id, hash, Defer.later(new Defer.Callable<BufferedImage>() {
+		    public BufferedImage call() {
+			if(stored) {
+			    BufferedImage img = fetch(g.id, hash);
+			    if(img != null)
+				return(img);
+			}
+			BufferedImage img = drawmap(map, g);
+			store(g.id, hash, img);
+			return(img);
+		    }
+		}));
+	    tiles.put(g.id, t);
+	    return(t);
+	}
+    }
+
+    private static String cachename(long id) {
+	return(String.format("mm/local/%016x", id));
+    }
+
+    private static BufferedImage fetch(long id, long hash) {
+	if(ResCache.global == null)
+	    return(null);
+	try {
+	    DataInputStream in = new DataInputStream(ResCache.global.fetch(cachename(id)));
+	    try {
+		if(in.readLong() != hash)
+		    return(null);
+		return(ImageIO.read(in));
+	    } finally {
+		in.close();
+	    }
+	} catch(IOException e) {
+	    return(null);
+	}
+    }
+
+    private static void store(long id, long hash, BufferedImage img) {
+	if(ResCache.global == null)
+	    return;
+	try {
+	    DataOutputStream out = new DataOutputStream(ResCache.global.store(cachename(id)));
+	    try {
+		out.writeLong(hash);
+		ImageIO.write(img, "PNG", out);
+	    } finally {
+		out.close();
+	    }
+	} catch(IOException e) {
 	}
     }
 
-    private BufferedImage tileimg(int t, BufferedImage[] texes) throws Loading{
-	BufferedImage img = texes[t];
+    private static int[] tileimg(MCache map, int t, int[][] texes, int[] tw) {
+	int[] img = texes[t];
 	if(img == null) {
-	    Resource r = ui.sess.glob.map.tilesetr(t);
+	    Resource r = map.tilesetr(t);
 	    if(r == null)
 		return(null);
 	    Resource.Image ir = r.layer(Resource.imgc);
 	    if(ir == null)
 		return(null);
-	    img = ir.img;
+	    int w = ir.img.getWidth(), h = ir.img.getHeight();
+	    img = ir.img.getRGB(0, 0, w, h, null, 0, w);
 	    texes[t] = img;
+	    tw[t] = w;
 	}
 	return(img);
     }
+
+    private static int gettile(MCache map, MCache.Grid g, int x, int y) {
+	if((x >= 0) && (y >= 0) && (x < cmaps.x) && (y < cmaps.y))
+	    return(g.tiles[x + (y * cmaps.x)]);
+	return(map.gettile(g.ul.x + x, g.ul.y + y));
+    }
     
-    public BufferedImage drawmap(Coord ul, Coord sz) {
-	BufferedImage[] texes = new BufferedImage[256];
-	MCache m = ui.sess.glob.map;
-	BufferedImage buf = TexI.mkbuf(sz);
-	Coord c = new Coord();
-	for(c.y = 0; c.y < sz.y; c.y++) {
-	    for(c.x = 0; c.x < sz.x; c.x++) {
-		Coord c2 = ul.add(c);
-		int t;
-		try{
-		    t = m.gettile(c2);
-		} catch (LoadingMap e){
-		    return null;
-		}
-		try{
-		    BufferedImage tex = tileimg(t, texes);
-		    int rgb = 0;
-		    if(tex != null){
-			rgb = tex.getRGB(Utils.floormod(c.x, tex.getWidth()), Utils.floormod(c.y, tex.getHeight()));
-		    }
-		    buf.setRGB(c.x, c.y, rgb);
-		} catch(Loading e){
-		    return null;
+    public static BufferedImage drawmap(MCache map, MCache.Grid g) {
+	int[][] texes = new int[256][];
+	int[] tw = new int[256];
+	int w = cmaps.x, h = cmaps.y;
+	int[] tiles = g.tiles, z = g.z;
+	BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+	int[] buf = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+	for(int y = 0, i = 0; y < h; y++) {
+	    for(int x = 0; x < w; x++, i++) {
+		int t = tiles[i];
+		int[] tex = tileimg(map, t, texes, tw);
+		int rgb = 0;
+		if(tex != null) {
+		    int tx = tw[t], ty = tex.length / tx;
+		    rgb = tex[(x % tx) + ((y % ty) * tx)];
 		}
-		try{
-		    if((m.gettile(c2.add(-1, 0)) > t) ||
-		       (m.gettile(c2.add(1, 0)) > t) ||
-		       (m.gettile(c2.add(0, -1)) > t) ||
-		       (m.gettile(c2.add(0, 1)) > t))
-			buf.setRGB(c.x, c.y, Color.BLACK.getRGB());
-		} catch (LoadingMap e){
-		    continue;
+		try {
+		    if((gettile(map, g, x - 1, y) > t) ||
+		       (gettile(map, g, x + 1, y) > t) ||
+		       (gettile(map, g, x, y - 1) > t) ||
+		       (gettile(map, g, x, y + 1) > t))
+			rgb = Color.BLACK.getRGB();
+		} catch(LoadingMap e) {
 		}
-	       
+		buf[i] = rgb;
 	    }
 	}
-	 
-	drawRidges(ul, sz, m, buf, c);
-	return(buf);
-    }
-
-    private static void drawRidges(Coord ul, Coord sz, MCache m, BufferedImage buf, Coord c) {
-        for(c.y = 1; c.y < sz.y - 1; c.y++) {
-	    for(c.x = 1; c.x < sz.x - 1; c.x++) {
-		int t = m.gettile(ul.add(c));
-		Tiler tl = m.tiler(t);
-		if(tl instanceof RidgeTile) {
-		    if(((RidgeTile)tl).ridgep(m, ul.add(c))) {
-			for(int y = c.y; y <= c.y + 1; y++) {
-			    for(int x = c.x; x <= c.x + 1; x++) {
-				int rgb = buf.getRGB(x, y);
-				rgb = (rgb & 0xff000000) |
-				    (((rgb & 0x00ff0000) >> 17) << 16) |
-				    (((rgb & 0x0000ff00) >> 9) << 8) |
-				    (((rgb & 0x000000ff) >> 1) << 0);
-				buf.setRGB(x, y, rgb);
-			    }
-			}
+	Tiler[] tls = new Tiler[256];
+	boolean[] got = new boolean[256];
+	for(int y = 1; y < h - 1; y++) {
+	    for(int x = 1; x < w - 1; x++) {
+		int i = x + (y * w), t = tiles[i];
+		if(!got[t]) {
+		    tls[t] = map.tiler(t);
+		    got[t] = true;
+		}
+		Tiler tl = tls[t];
+		if(!(tl instanceof RidgeTile))
+		    continue;
+		int diff = ((RidgeTile)tl).breaks[0];
+		int z00 = z[i], z10 = z[i + 1], z01 = z[i + w], z11 = z[i + w + 1];
+		if((Math.abs(z00 - z10) >= diff) || (Math.abs(z10 - z11) >= diff) ||
+		   (Math.abs(z11 - z01) >= diff) || (Math.abs(z01 - z00) >= diff)) {
+		    for(int o : new int[] {i, i + 1, i + w, i + w + 1}) {
+			int rgb = buf[o];
+			buf[o] = (rgb & 0xff000000) | ((rgb & 0x00fefefe) >> 1);
 		    }
 		}
 	    }
-        }
+	}
+	return(img);
     }
 
     public LocalMiniMap(Coord c, Coord sz, Widget parent, MapView mv) {
@@ -203,7 +286,6 @@ public class LocalMiniMap extends Window {
     public void draw(GOut g) {
 	if(cc == null)
 	    return;
-	final Coord plg = cc.div(cmaps);
 	Coord cc = this.cc.add(off);
 	Coord ulg = cc.div(cmaps);
 	int dy = -cc.y + (sz.y / 2);
@@ -213,35 +295,16 @@ public class LocalMiniMap extends Window {
 	while((ulg.y * cmaps.y) + dy > 0)
 	    ulg.y--;
 
+	MCache map = ui.sess.glob.map;
 	Coord cg = new Coord();
-	synchronized(cache){
-	    for(cg.y = ulg.y; (cg.y * cmaps.y) + dy < sz.y; cg.y++){
-		for(cg.x = ulg.x; (cg.x * cmaps.x) + dx < sz.x; cg.x++) {
-		    Defer.Future<MapTile> f = cache.get(cg);
-		    final Coord tcg = new Coord(cg);
-		    final Coord ul = cg.mul(cmaps);
-		    Coord diff = cg.sub(plg).abs();
-		    if((f == null) && (Math.max(diff.x,diff.y) <= 1)){
-			f = Defer.later(new Defer.Callable<MapTile> () {
-			    public MapTile call() {
-				BufferedImage img = drawmap(ul, cmaps);
-				if(img == null){return null;}
-				return(new MapTile(new TexI(img), ul, tcg));
-			    }
-			});
-		    cache.put(tcg, f);
-		    }
-		    if((f == null || (!f.done()))){
-			continue;
-		    }
-		    MapTile mt = f.get();
-		    if(mt == null){
-			cache.put(cg, null);
-			continue;
-		    }
-		    Tex img = mt.img;
-		    g.image(img, ul.add(cc.inv()).add(sz.div(2)));
-		}
+	for(cg.y = ulg.y; (cg.y * cmaps.y) + dy < sz.y; cg.y++) {
+	    for(cg.x = ulg.x; (cg.x * cmaps.x) + dx < sz.x; cg.x++) {
+		MCache.Grid grid = map.findgrid(cg.x, cg.y);
+		if(grid == null)
+		    continue;
+		Tex img = tile(map, grid).tex();
+		if(img != null)
+		    g.image(img, cg.mul(cmaps).add(cc.inv()).add(sz.div(2)));
 	    }
 	}
 	Coord c0 = sz.div(2).sub(cc);
@@ -80,6 +80,22 @@ public class LockedFile implements AutoCloseable {
         }
     }
 
+    /* Returns null if the lock is held by another process. */
+    public static LockedFile trylock(Path path, long pos, long len, boolean shared) throws IOException {
+	FileChannel fp = Utils.ioretry(() -> FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+	try {
+	    FileLock lk = fp.tryLock(pos, len, shared);
+	    if(lk == null)
+		return(null);
+	    LockedFile ret = new LockedFile(fp, lk);
+	    fp = null;
+	    return(ret);
+	} finally {
+	    if(fp != null)
+		fp.close();
+	}
+    }
+
     public static LockedFile lock(Path path) throws IOException {
 	return(lock(path, 0, 1, false));
     }
@@ -28,6 +28,7 @@ package haven;
 
 import java.util.*;
 import java.lang.ref.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import haven.Resource.Tileset;
 import haven.Resource.Tile;
 
@@ -45,16 +46,45 @@ public class MCache {
     private final Reference<Tiler>[] tiles = new Reference[256];
     Map<Coord, Request> req = new HashMap<Coord, Request>();
     Map<Coord, Grid> grids = new HashMap<Coord, Grid>();
+    private volatile GridIndex gindex = new GridIndex(new ArrayList<Grid>());
+    private volatile Cached cached = null;
+    private final Map<Coord, Collection<Runnable>> gridcbs = new HashMap<Coord, Collection<Runnable>>();
     Session sess;
     Set<Overlay> ols = new HashSet<Overlay>();
+    /* The overlays intersecting each cut, by global cut coordinates.
+     * The arrays are replaced rather than changed, so that they can
+     * be used outside the lock. */
+    private final Map<Coord, Overlay[]> olidx = new HashMap<Coord, Overlay[]>();
+    private static final Overlay[] nools = {};
     int olseq = 0;
+    /* Map updates, cuts built because of them, and builds skipped
+     * for having been superseded before they got to run. */
+    private int nfill = 0, nbuilt = 0, lbuilt = 0;
+    private final AtomicInteger nsuper = new AtomicInteger(0);
     Random gen = new Random();
     Map<Integer, Defrag> fragbufs = new TreeMap<Integer, Defrag>();
 
     public static class LoadingMap extends Loading {
-	public LoadingMap() {}
+	private final MCache map;
+	private final Coord gc;
+
+	public LoadingMap() {this(null, null);}
 	public LoadingMap(Throwable cause) {
 	    super(cause);
+	    this.map = null;
+	    this.gc = null;
+	}
+	public LoadingMap(MCache map, Coord gc) {
+	    this.map = map;
+	    this.gc = gc;
+	}
+
+	public boolean waitfor(Runnable cb) {
+	    if(map != null) {
+		map.ongrid(gc, cb);
+		return(true);
+	    }
+	    return(super.waitfor(cb));
 	}
     }
 
@@ -71,40 +101,180 @@ public class MCache {
 	    this.c1 = c1;
 	    this.c2 = c2;
 	    this.mask = mask;
-	    ols.add(this);
-	    olseq++;
+	    synchronized(ols) {
+		ols.add(this);
+		olindex(this, true);
+	    }
+	    olchanged(c1, c2);
 	}
 
 	public void destroy() {
-	    ols.remove(this);
-	    olseq++;
+	    synchronized(ols) {
+		ols.remove(this);
+		olindex(this, false);
+	    }
+	    olchanged(c1, c2);
 	}
 
 	public void update(Coord c1, Coord c2) {
 	    if(!c1.equals(this.c1) || !c2.equals(this.c2)) {
-		olseq++;
-		this.c1 = c1;
-		this.c2 = c2;
+		Coord o1 = this.c1, o2 = this.c2;
+		synchronized(ols) {
+		    olindex(this, false);
+		    this.c1 = c1;
+		    this.c2 = c2;
+		    olindex(this, true);
+		}
+		olchanged(o1, o2);
+		olchanged(c1, c2);
+	    }
+	}
+    }
+
+    private void olindex(Overlay ol, boolean add) {
+	Coord cc1 = ol.c1.div(cutsz), cc2 = ol.c2.div(cutsz);
+	for(int y = cc1.y; y <= cc2.y; y++) {
+	    for(int x = cc1.x; x <= cc2.x; x++) {
+		Coord cc = new Coord(x, y);
+		Overlay[] prev = olidx.get(cc), n;
+		if(prev == null)
+		    prev = nools;
+		if(add) {
+		    n = Arrays.copyOf(prev, prev.length + 1);
+		    n[prev.length] = ol;
+		} else {
+		    n = new Overlay[prev.length - 1];
+		    for(int i = 0, o = 0; i < prev.length; i++) {
+			if(prev[i] != ol)
+			    n[o++] = prev[i];
+		    }
+		}
+		if(n.length == 0)
+		    olidx.remove(cc);
+		else
+		    olidx.put(cc, n);
+	    }
+	}
+    }
+
+    private Overlay[] olbucket(Coord cc) {
+	synchronized(ols) {
+	    Overlay[] ret = olidx.get(cc);
+	    return((ret == null)?nools:ret);
+	}
+    }
+
+    private static int olbits(Overlay[] b, int tx, int ty) {
+	int ret = 0;
+	for(Overlay ol : b) {
+	    if((tx >= ol.c1.x) && (ty >= ol.c1.y) && (tx <= ol.c2.x) && (ty <= ol.c2.y))
+		ret |= ol.mask;
+	}
+	return(ret);
+    }
+
+    /* Updates the overlay bits of the cuts intersecting the given
+     * tiles, so that only the meshes of bits that changed are
+     * remade. */
+    private void olchanged(Coord c1, Coord c2) {
+	Coord cc1 = c1.div(cutsz), cc2 = c2.div(cutsz);
+	for(int y = cc1.y; y <= cc2.y; y++) {
+	    for(int x = cc1.x; x <= cc2.x; x++) {
+		Grid g = gindex.get(Utils.floordiv(x, cutn.x), Utils.floordiv(y, cutn.y));
+		if(g != null)
+		    g.olchanged(new Coord(Utils.floormod(x, cutn.x), Utils.floormod(y, cutn.y)), c1, c2);
+	    }
+	}
+    }
+
+    /* An immutable open-addressing table of grids, so that lookups
+     * can be made without locking. It is rebuilt from grids whenever
+     * that changes, which is rare. */
+    private static class GridIndex {
+	final long[] keys;
+	final Grid[] vals;
+	final int mask;
+
+	GridIndex(Collection<Grid> grids) {
+	    int sz = 16;
+	    while(sz < grids.size() * 3)
+		sz <<= 1;
+	    keys = new long[sz];
+	    vals = new Grid[sz];
+	    mask = sz - 1;
+	    for(Grid g : grids) {
+		long k = key(g.gc.x, g.gc.y);
+		int i = hash(k) & mask;
+		while(vals[i] != null)
+		    i = (i + 1) & mask;
+		keys[i] = k;
+		vals[i] = g;
+	    }
+	}
+
+	static long key(int x, int y) {
+	    return((((long)x) << 32) | (y & 0xffffffffL));
+	}
+
+	static int hash(long k) {
+	    k *= 0x9e3779b97f4a7c15L;
+	    return((int)(k ^ (k >>> 32)));
+	}
+
+	Grid get(int x, int y) {
+	    long k = key(x, y);
+	    for(int i = hash(k) & mask; vals[i] != null; i = (i + 1) & mask) {
+		if(keys[i] == k)
+		    return(vals[i]);
 	    }
+	    return(null);
 	}
     }
 
+    /* The last grid looked up by getgrid(), along with the index it
+     * was found in, so that it is not used once that is replaced,
+     * even if stored by a reader that raced with reindex(). */
+    private static class Cached {
+	final GridIndex idx;
+	final Grid g;
+
+	Cached(GridIndex idx, Grid g) {
+	    this.idx = idx;
+	    this.g = g;
+	}
+    }
+
+    /* Must be called with grids locked after changing it. */
+    void reindex() {
+	gindex = new GridIndex(grids.values());
+    }
+
     public class Grid {
 	public final int tiles[] = new int[cmaps.x * cmaps.y];
 	public final int z[] = new int[cmaps.x * cmaps.y];
 	public final int ol[] = new int[cmaps.x * cmaps.y];
+	/* Height ranges of each cut, indexed like cuts. */
+	public final int czmin[] = new int[cutn.x * cutn.y], czmax[] = new int[cutn.x * cutn.y];
 	private final Cut cuts[];
 	int olseq = -1;
 	private Collection<Gob>[] fo = null;
 	public final Coord gc, ul;
 	public long id;
+	/* A hash of the tiles and heights, which changes only when
+	 * fill() brings different ones. */
+	public long chash;
 	String mnm;
+	private boolean filled = false;
 
 	private class Cut {
 	    MapMesh mesh;
 	    Defer.Future<MapMesh> dmesh;
+	    /* The overlay bits of each tile, and the overlay meshes made
+	     * from them; a bit missing from olbuilt has to be remade. */
+	    int[] olm;
 	    Rendered[] ols;
-	    int deftag;
+	    int olbuilt;
+	    volatile int deftag;
 	}
 
 	private class Flavobj extends Gob {
@@ -133,10 +303,18 @@ public class MCache {
 	    return(tiles[tc.x + (tc.y * cmaps.x)]);
 	}
 
+	public int gettile(int x, int y) {
+	    return(tiles[x + (y * cmaps.x)]);
+	}
+
 	public int getz(Coord tc) {
 	    return(z[tc.x + (tc.y * cmaps.x)]);
 	}
 
+	public int getz(int x, int y) {
+	    return(z[x + (y * cmaps.x)]);
+	}
+
 	public int getol(Coord tc) {
 	    return(ol[tc.x + (tc.y * cmaps.x)]);
 	}
@@ -180,50 +358,112 @@ public class MCache {
 
 	public MapMesh getcut(Coord cc) {
 	    Cut cut = geticut(cc);
-	    if(cut.dmesh != null) {
-		if(cut.dmesh.done() || (cut.mesh == null)) {
-		    MapMesh old = cut.mesh;
-		    cut.mesh = cut.dmesh.get();
-		    cut.dmesh = null;
-		    if(old != null)
-			old.dispose();
+	    synchronized(cut) {
+		if(cut.dmesh != null) {
+		    if(cut.dmesh.done() || (cut.mesh == null)) {
+			MapMesh old = cut.mesh;
+			cut.mesh = cut.dmesh.get();
+			cut.dmesh = null;
+			if(old != null) {
+			    old.dispose();
+			    /* The overlays are made from the old mesh's surface. */
+			    dropols(cut);
+			}
+		    }
 		}
+		return(cut.mesh);
+	    }
+	}
+
+	private void dropols(Cut cut) {
+	    if(cut.ols != null) {
+		for(Rendered r : cut.ols) {
+		    if(r instanceof Disposable)
+			((Disposable)r).dispose();
+		}
+	    }
+	    cut.ols = null;
+	    cut.olbuilt = 0;
+	}
+
+	/* Recomputes the overlay bits of the given cut-local tiles,
+	 * and returns those that changed. */
+	private int olfill(Coord cc, int[] olm, int x1, int y1, int x2, int y2) {
+	    Overlay[] b = olbucket(gc.mul(cutn).add(cc));
+	    int ox = cc.x * cutsz.x, oy = cc.y * cutsz.y;
+	    int ch = 0;
+	    for(int y = y1; y <= y2; y++) {
+		for(int x = x1; x <= x2; x++) {
+		    int tx = ox + x, ty = oy + y;
+		    int m = ol[tx + (ty * cmaps.x)] | olbits(b, ul.x + tx, ul.y + ty);
+		    int i = x + (y * cutsz.x);
+		    ch |= m ^ olm[i];
+		    olm[i] = m;
+		}
+	    }
+	    return(ch);
+	}
+
+	private void olchanged(Coord cc, Coord c1, Coord c2) {
+	    Cut cut = geticut(cc);
+	    synchronized(cut) {
+		if(cut.olm == null)
+		    return;
+		int ox = ul.x + (cc.x * cutsz.x), oy = ul.y + (cc.y * cutsz.y);
+		/* The meshes are disposed of by the render thread, as
+		 * it remakes them. */
+		cut.olbuilt &= ~olfill(cc, cut.olm,
+				       Math.max(c1.x - ox, 0), Math.max(c1.y - oy, 0),
+				       Math.min(c2.x - ox, cutsz.x - 1), Math.min(c2.y - oy, cutsz.y - 1));
 	    }
-	    return(cut.mesh);
 	}
 	
 	public Rendered getolcut(int ol, Coord cc) {
 	    int nseq = MCache.this.olseq;
 	    if(this.olseq != nseq) {
-		for(int i = 0; i < cutn.x * cutn.y; i++) {
-		    if(cuts[i].ols != null) {
-			for(Rendered r : cuts[i].ols) {
-			    if(r instanceof Disposable)
-				((Disposable)r).dispose();
-			}
-		    }
-		    cuts[i].ols = null;
-		}
 		this.olseq = nseq;
 		FlatnessTool.recalcheight();
 	    }
+	    MapMesh mesh = getcut(cc);
 	    Cut cut = geticut(cc);
-	    if(cut.ols == null)
-		cut.ols = getcut(cc).makeols();
-	    return(cut.ols[ol]);
+	    synchronized(cut) {
+		if(cut.olm == null) {
+		    cut.olm = new int[cutsz.x * cutsz.y];
+		    olfill(cc, cut.olm, 0, 0, cutsz.x - 1, cutsz.y - 1);
+		    cut.olbuilt = 0;
+		}
+		if(cut.ols == null)
+		    cut.ols = new Rendered[32];
+		if((cut.olbuilt & (1 << ol)) == 0) {
+		    if(cut.ols[ol] instanceof Disposable)
+			((Disposable)cut.ols[ol]).dispose();
+		    cut.ols[ol] = mesh.makeol(cut.olm, ol);
+		    cut.olbuilt |= 1 << ol;
+		}
+		return(cut.ols[ol]);
+	    }
 	}
 	
 	private void buildcut(final Coord cc) {
 	    final Cut cut = geticut(cc);
-	    final int deftag = ++cut.deftag;
-	    cut.dmesh = Defer.later(new Defer.Callable<MapMesh>() {
-		    public MapMesh call() {
-			Random rnd = new Random(id);
-			rnd.setSeed(rnd.nextInt() ^ cc.x);
-			rnd.setSeed(rnd.nextInt() ^ cc.y);
-			return(MapMesh.build(MCache.this, rnd, ul.add(cc.mul(cutsz)), cutsz));
-		    }
-		});
+	    synchronized(cut) {
+		final int deftag = ++cut.deftag;
+		nbuilt++;
+		cut.dmesh = Defer.later(new Defer.Callable<MapMesh>() {
+			public MapMesh call() {
+			    /* Superseded by a later build before getting to
+			     * run; its result cannot be seen by getcut(). */
+			    if(cut.deftag != deftag) {
+				nsuper.incrementAndGet();
+				return(null);
+			    }
+			    Random rnd = new Random(id);
+			    rnd.setSeed(rnd.nextInt() ^ cc.x);
+			    rnd.setSeed(rnd.nextInt() ^ cc.y);
+			    return(MapMesh.build(MCache.this, rnd, ul.add(cc.mul(cutsz)), cutsz));
+			}
+		    });
+	    }
 	}
 
 	public void ivneigh(Coord nc) {
@@ -252,6 +492,12 @@ public class MCache {
 		for(int x = 0; x < cutn.x; x++)
 		    buildcut(new Coord(x, y));
 	    }
+	    for(Cut cut : cuts) {
+		synchronized(cut) {
+		    cut.olm = null;
+		    cut.olbuilt = 0;
+		}
+	    }
 	    fo = null;
 	    for(Coord ic : new Coord[] {
 		    new Coord(-1, -1), new Coord( 0, -1), new Coord( 1, -1),
@@ -276,7 +522,11 @@ public class MCache {
 	    }
 	}
 
-	public void fill(Message msg) {
+	/* Returns whether the heights or overlays changed, which the
+	 * cuts' overlays depend on. */
+	public boolean fill(Message msg) {
+	    int[] otiles = tiles.clone(), oz = z.clone(), ool = ol.clone();
+	    long oid = id;
 	    String mmname = msg.string().intern();
 	    if(mmname.equals(""))
 		mnm = null;
@@ -327,7 +577,107 @@ public class MCache {
 		    }
 		}
 	    }
-	    invalidate();
+	    chash = chash();
+	    zranges();
+	    nfill++;
+	    int built = nbuilt;
+	    boolean ret;
+	    if(!filled || (id != oid)) {
+		filled = true;
+		invalidate();
+		ret = true;
+	    } else {
+		ret = update(otiles, oz, ool);
+	    }
+	    lbuilt = nbuilt - built;
+	    return(ret);
+	}
+
+	/* Rebuilds only the cuts, in this grid and its neighbours,
+	 * whose meshes depend on tiles or heights that have changed. A
+	 * mesh depends on the tiles one step outside its cut, for
+	 * transitions, and on the heights up to two steps outside it,
+	 * for normals. */
+	private boolean update(int[] otiles, int[] oz, int[] ool) {
+	    boolean[][] dirty = null;
+	    boolean tc = false, zc = false, oc = false;
+	    for(int y = 0, i = 0; y < cmaps.y; y++) {
+		for(int x = 0; x < cmaps.x; x++, i++) {
+		    if(ol[i] != ool[i]) {
+			Cut cut = cuts[(x / cutsz.x) + ((y / cutsz.y) * cutn.x)];
+			synchronized(cut) {
+			    cut.olm = null;
+			    cut.olbuilt = 0;
+			}
+			oc = true;
+		    }
+		    boolean t = tiles[i] != otiles[i], h = z[i] != oz[i];
+		    if(!t && !h)
+			continue;
+		    tc |= t;
+		    zc |= h;
+		    if(dirty == null)
+			dirty = new boolean[9][cutn.x * cutn.y];
+		    for(int gy = -1; gy <= 1; gy++) {
+			int y1 = Math.max(y - 2 - (gy * cmaps.y), 0), y2 = Math.min(y + 1 - (gy * cmaps.y), cmaps.y - 1);
+			if(y1 > y2)
+			    continue;
+			for(int gx = -1; gx <= 1; gx++) {
+			    int x1 = Math.max(x - 2 - (gx * cmaps.x), 0), x2 = Math.min(x + 1 - (gx * cmaps.x), cmaps.x - 1);
+			    if(x1 > x2)
+				continue;
+			    boolean[] gd = dirty[(gx + 1) + ((gy + 1) * 3)];
+			    for(int cy = y1 / cutsz.y; cy <= y2 / cutsz.y; cy++) {
+				for(int cx = x1 / cutsz.x; cx <= x2 / cutsz.x; cx++)
+				    gd[cx + (cy * cutn.x)] = true;
+			    }
+			}
+		    }
+		}
+	    }
+	    if(tc)
+		fo = null;
+	    if(dirty != null) {
+		for(int gy = -1; gy <= 1; gy++) {
+		    for(int gx = -1; gx <= 1; gx++) {
+			Grid g = ((gx == 0) && (gy == 0))?this:grids.get(gc.add(gx, gy));
+			if(g == null)
+			    continue;
+			boolean[] gd = dirty[(gx + 1) + ((gy + 1) * 3)];
+			for(int i = 0; i < gd.length; i++) {
+			    if(gd[i])
+				g.buildcut(new Coord(i % cutn.x, i / cutn.x));
+			}
+		    }
+		}
+	    }
+	    return(zc || oc);
+	}
+
+	private long chash() {
+	    long h = id;
+	    for(int i = 0; i < tiles.length; i++)
+		h = (h * 31) + tiles[i];
+	    for(int i = 0; i < z.length; i++)
+		h = (h * 31) + z[i];
+	    return(h);
+	}
+
+	private void zranges() {
+	    for(int cy = 0; cy < cutn.y; cy++) {
+		for(int cx = 0; cx < cutn.x; cx++) {
+		    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		    for(int y = cy * cutsz.y; y < (cy + 1) * cutsz.y; y++) {
+			for(int x = cx * cutsz.x; x < (cx + 1) * cutsz.x; x++) {
+			    int h = z[x + (y * cmaps.x)];
+			    if(h < min) min = h;
+			    if(h > max) max = h;
+			}
+		    }
+		    czmin[cx + (cy * cutn.x)] = min;
+		    czmax[cx + (cy * cutn.x)] = max;
+		}
+	    }
 	}
     }
 
@@ -363,41 +713,64 @@ public class MCache {
 	}
     }
 
-    private Grid cached = null;
-    public Grid getgrid(Coord gc) {
-	synchronized(grids) {
-	    if((cached == null) || !cached.gc.equals(cached)) {
-		cached = grids.get(gc);
-		if(cached == null) {
-		    request(gc);
-		    throw(new LoadingMap());
-		}
-	    }
-	    return(cached);
+    public Grid getgrid(int gx, int gy) {
+	GridIndex idx = gindex;
+	Cached c = cached;
+	if((c != null) && (c.idx == idx) && (c.g.gc.x == gx) && (c.g.gc.y == gy))
+	    return(c.g);
+	Grid g = idx.get(gx, gy);
+	if(g == null) {
+	    Coord gc = new Coord(gx, gy);
+	    request(gc);
+	    throw(new LoadingMap(this, gc));
 	}
+	cached = new Cached(idx, g);
+	return(g);
+    }
+
+    public Grid getgrid(Coord gc) {
+	return(getgrid(gc.x, gc.y));
+    }
+
+    /* Like getgrid, but returns null rather than requesting grids
+     * that are not loaded. */
+    public Grid findgrid(int gx, int gy) {
+	return(gindex.get(gx, gy));
+    }
+
+    public Grid getgridt(int tx, int ty) {
+	return(getgrid(Utils.floordiv(tx, cmaps.x), Utils.floordiv(ty, cmaps.y)));
     }
 
     public Grid getgridt(Coord tc) {
-	return(getgrid(tc.div(cmaps)));
+	return(getgridt(tc.x, tc.y));
+    }
+
+    public int gettile(int tx, int ty) {
+	Grid g = getgridt(tx, ty);
+	return(g.gettile(tx - g.ul.x, ty - g.ul.y));
     }
 
     public int gettile(Coord tc) {
-	Grid g = getgridt(tc);
-	return(g.gettile(tc.sub(g.ul)));
+	return(gettile(tc.x, tc.y));
+    }
+
+    public int getz(int tx, int ty) {
+	Grid g = getgridt(tx, ty);
+	return(g.getz(tx - g.ul.x, ty - g.ul.y));
     }
 
     public int getz(Coord tc) {
-	Grid g = getgridt(tc);
-	return(g.getz(tc.sub(g.ul)));
+	return(getz(tc.x, tc.y));
     }
 
     public float getcz(float px, float py) {
 	float tw = tilesz.x, th = tilesz.y;
-	Coord ul = new Coord(Utils.floordiv(px, tw), Utils.floordiv(py, th));
+	int ux = Utils.floordiv(px, tw), uy = Utils.floordiv(py, th);
 	float sx = Utils.floormod(px, tw) / tw;
 	float sy = Utils.floormod(py, th) / th;
-	return(((1.0f - sy) * (((1.0f - sx) * getz(ul)) + (sx * getz(ul.add(1, 0))))) +
-	       (sy * (((1.0f - sx) * getz(ul.add(0, 1))) + (sx * getz(ul.add(1, 1))))));
+	return(((1.0f - sy) * (((1.0f - sx) * getz(ux, uy)) + (sx * getz(ux + 1, uy)))) +
+	       (sy * (((1.0f - sx) * getz(ux, uy + 1)) + (sx * getz(ux + 1, uy + 1)))));
     }
 
     public float getcz(Coord pc) {
@@ -406,12 +779,7 @@ public class MCache {
 
     public int getol(Coord tc) {
 	Grid g = getgridt(tc);
-	int ol = g.getol(tc.sub(g.ul));
-	for(Overlay lol : ols) {
-	    if(tc.isect(lol.c1, lol.c2.add(lol.c1.inv()).add(new Coord(1, 1))))
-		ol |= lol.mask;
-	}
-	return(ol);
+	return(g.getol(tc.sub(g.ul)) | olbits(olbucket(tc.div(cutsz)), tc.x, tc.y));
     }
     
     public MapMesh getcut(Coord cc) {
@@ -426,20 +794,75 @@ public class MCache {
 	return(getgrid(cc.div(cutn)).getolcut(ol, cc.mod(cutn)));
     }
 
+    /* Runs cb once the grid at gc has arrived or is no longer being
+     * requested, immediately if either is already the case. */
+    public void ongrid(Coord gc, Runnable cb) {
+	synchronized(gridcbs) {
+	    boolean wait;
+	    synchronized(req) {
+		wait = (gindex.get(gc.x, gc.y) == null) && req.containsKey(gc);
+	    }
+	    if(wait) {
+		Collection<Runnable> cbs = gridcbs.get(gc);
+		if(cbs == null)
+		    gridcbs.put(gc, cbs = new LinkedList<Runnable>());
+		cbs.add(cb);
+		return;
+	    }
+	}
+	cb.run();
+    }
+
+    /* Must be called with neither grids nor req locked, after the
+     * given coordinates have been removed from req. */
+    private void gridwake(Collection<Coord> gcs) {
+	if(gcs.isEmpty())
+	    return;
+	Collection<Runnable> run = new ArrayList<Runnable>();
+	synchronized(gridcbs) {
+	    for(Coord gc : gcs) {
+		Collection<Runnable> cbs = gridcbs.remove(gc);
+		if(cbs != null)
+		    run.addAll(cbs);
+	    }
+	}
+	for(Runnable cb : run)
+	    cb.run();
+    }
+
+    public String cutstats() {
+	synchronized(grids) {
+	    return(String.format("%d updates, %d cuts built (%.1f per update, %d last), %d superseded",
+				 nfill, nbuilt, (nfill > 0)?(((double)nbuilt) / nfill):0.0, lbuilt, nsuper.get()));
+	}
+    }
+
     public void mapdata2(Message msg) {
 	Coord c = msg.coord();
+	boolean wake = false;
 	synchronized(grids) {
 	    synchronized(req) {
 		if(req.containsKey(c)) {
 		    Grid g = grids.get(c);
-		    if(g == null)
+		    boolean added = false;
+		    if(g == null) {
 			grids.put(c, g = new Grid(c));
-		    g.fill(msg);
+			added = true;
+		    }
+		    boolean ch = g.fill(msg);
+		    /* Not published before being filled, since lookups
+		     * do not lock grids. */
+		    if(added)
+			reindex();
 		    req.remove(c);
-		    olseq++;
+		    if(ch)
+			olseq++;
+		    wake = true;
 		}
 	    }
 	}
+	if(wake)
+	    gridwake(Collections.singleton(c));
     }
 
     public void mapdata(Message msg) {
@@ -453,7 +876,7 @@ public class MCache {
 		fragbuf = new Defrag(len);
 		fragbufs.put(pktid, fragbuf);
 	    }
-	    fragbuf.add(msg.blob, 8, msg.blob.length - 8, off);
+	    fragbuf.add(msg.blob, msg.off, msg.size(), off);
 	    fragbuf.last = now;
 	    if(fragbuf.done()) {
 		mapdata2(fragbuf.msg());
@@ -525,17 +948,22 @@ public class MCache {
     }
 
     public void trimall() {
+	Collection<Coord> dropped;
 	synchronized(grids) {
 	    synchronized(req) {
 		for(Grid g : grids.values())
 		    g.dispose();
 		grids.clear();
+		reindex();
+		dropped = new ArrayList<Coord>(req.keySet());
 		req.clear();
 	    }
 	}
+	gridwake(dropped);
     }
 
     public void trim(Coord ul, Coord lr) {
+	Collection<Coord> dropped = new ArrayList<Coord>();
 	synchronized(grids) {
 	    synchronized(req) {
 		for(Iterator<Map.Entry<Coord, Grid>> i = grids.entrySet().iterator(); i.hasNext();) {
@@ -547,13 +975,17 @@ public class MCache {
 			i.remove();
 		    }
 		}
+		reindex();
 		for(Iterator<Coord> i = req.keySet().iterator(); i.hasNext();) {
 		    Coord gc = i.next();
-		    if((gc.x < ul.x) || (gc.y < ul.y) || (gc.x > lr.x) || (gc.y > lr.y))
+		    if((gc.x < ul.x) || (gc.y < ul.y) || (gc.x > lr.x) || (gc.y > lr.y)) {
+			dropped.add(gc);
 			i.remove();
+		    }
 		}
 	    }
 	}
+	gridwake(dropped);
     }
 
     public void request(Coord gc) {
@@ -577,6 +1009,7 @@ public class MCache {
 
     public void sendreqs() {
 	long now = System.currentTimeMillis();
+	Collection<Coord> dropped = new ArrayList<Coord>();
 	synchronized(req) {
 	    for(Iterator<Map.Entry<Coord, Request>> i = req.entrySet().iterator(); i.hasNext();) {
 		Map.Entry<Coord, Request> e = i.next();
@@ -585,6 +1018,7 @@ public class MCache {
 		if(now - r.lastreq > 1000) {
 		    r.lastreq = now;
 		    if(++r.reqs >= 5) {
+			dropped.add(c);
 			i.remove();
 		    } else {
 			Message msg = new Message(Session.MSG_MAPREQ);
@@ -594,5 +1028,110 @@ public class MCache {
 		}
 	    }
 	}
+	gridwake(dropped);
+    }
+
+    /* Fills in a 3x3 block of empty grids around the origin, for
+     * the benchmarks to run against without a server. */
+    void synthgrids() {
+	synchronized(grids) {
+	    for(int y = -1; y <= 1; y++) {
+		for(int x = -1; x <= 1; x++) {
+		    Coord gc = new Coord(x, y);
+		    grids.put(gc, new Grid(gc));
+		}
+	    }
+	    reindex();
+	}
+    }
+
+    /* Microbenchmark of the per-tile accessors over a 3x3 block of
+     * grids, as traversed when building map meshes. */
+    public static void main(String[] args) throws Exception {
+	int passes = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+	MCache map = new MCache(null);
+	map.synthgrids();
+	Coord ul = cmaps.mul(-1), br = cmaps.mul(2);
+	for(int round = 0; round < 3; round++) {
+	    long st = System.nanoTime(), sum = 0;
+	    Coord tc = new Coord();
+	    for(int i = 0; i < passes; i++) {
+		for(tc.y = ul.y; tc.y < br.y; tc.y++) {
+		    for(tc.x = ul.x; tc.x < br.x; tc.x++)
+			sum += map.gettile(tc) + map.getz(tc);
+		}
+	    }
+	    long t1 = System.nanoTime();
+	    for(int i = 0; i < passes; i++) {
+		for(int y = ul.y; y < br.y; y++) {
+		    for(int x = ul.x; x < br.x; x++)
+			sum += map.gettile(x, y) + map.getz(x, y);
+		}
+	    }
+	    long t2 = System.nanoTime();
+	    for(int i = 0; i < passes; i++) {
+		for(int y = ul.y; y < br.y - 1; y++) {
+		    for(int x = ul.x; x < br.x - 1; x++)
+			sum += (long)map.getcz((x * tilesz.x) + 3.5f, (y * tilesz.y) + 7.5f);
+		}
+	    }
+	    long t3 = System.nanoTime();
+	    double n = (double)passes * (br.x - ul.x) * (br.y - ul.y);
+	    System.out.printf("Coord: %.1f ns/tile, int: %.1f ns/tile, getcz: %.1f ns/point (%d)%n",
+			      (t1 - st) / n, (t2 - t1) / n, (t3 - t2) / n, sum);
+	}
+
+	/* Overlay bits with many overlapping claims, computed by
+	 * checking every overlay as getol() used to, and from the
+	 * index; then the cost of moving each overlay by a tile, and
+	 * how many cut overlay meshes that leaves to be remade. */
+	int nol = (args.length > 1) ? Integer.parseInt(args[1]) : 400;
+	Random rnd = new Random(1);
+	List<Overlay> ols = new ArrayList<Overlay>();
+	for(int i = 0; i < nol; i++) {
+	    Coord c1 = new Coord(rnd.nextInt(cmaps.x * 3) - cmaps.x, rnd.nextInt(cmaps.y * 3) - cmaps.y);
+	    ols.add(map.new Overlay(c1, c1.add(rnd.nextInt(30) + 5, rnd.nextInt(30) + 5), 1 << rnd.nextInt(4)));
+	}
+	for(int round = 0; round < 3; round++) {
+	    long st = System.nanoTime(), sum = 0;
+	    for(int y = ul.y; y < br.y; y++) {
+		for(int x = ul.x; x < br.x; x++) {
+		    int m = 0;
+		    for(Overlay ol : map.ols) {
+			if((x >= ol.c1.x) && (y >= ol.c1.y) && (x <= ol.c2.x) && (y <= ol.c2.y))
+			    m |= ol.mask;
+		    }
+		    sum += m;
+		}
+	    }
+	    long t1 = System.nanoTime();
+	    for(Grid g : map.grids.values()) {
+		for(int i = 0; i < g.cuts.length; i++) {
+		    Grid.Cut cut = g.cuts[i];
+		    cut.olm = new int[cutsz.x * cutsz.y];
+		    g.olfill(new Coord(i % cutn.x, i / cutn.x), cut.olm, 0, 0, cutsz.x - 1, cutsz.y - 1);
+		    cut.olbuilt = 0xf;
+		    for(int m : cut.olm)
+			sum -= m;
+		}
+	    }
+	    long t2 = System.nanoTime(), mt = 0;
+	    int remade = 0, total = 0;
+	    for(Overlay ol : ols) {
+		long ms = System.nanoTime();
+		ol.update(ol.c1.add(1, 0), ol.c2.add(1, 0));
+		mt += System.nanoTime() - ms;
+		for(Grid g : map.grids.values()) {
+		    for(Grid.Cut cut : g.cuts) {
+			remade += Integer.bitCount(~cut.olbuilt & 0xf);
+			cut.olbuilt = 0xf;
+		    }
+		}
+	    }
+	    total = map.grids.size() * cutn.x * cutn.y * 4;
+	    double n = (double)(br.x - ul.x) * (br.y - ul.y);
+	    System.out.printf("%d overlays: scan: %.1f ns/tile, index: %.1f ns/tile, move: %.1f us, %.1f of %d cut meshes to remake per move (%d)%n",
+			      nol, (t1 - st) / n, (t2 - t1) / n, mt / (1000.0 * nol), ((double)remade) / nol, total, sum);
+	}
     }
 }
@@ -33,7 +33,7 @@ import java.awt.Color;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 
-public class MapMesh implements Rendered, Disposable {
+public class MapMesh implements Rendered.Retained, Disposable {
     public final Coord ul, sz;
     public final MCache map;
     private Map<Tex, GLState[]> texmap = new HashMap<Tex, GLState[]>();
@@ -137,7 +137,7 @@ public class MapMesh implements Rendered, Disposable {
 	    int i = 0;
 	    for(c.y = -1; c.y <= sz.y + 1; c.y++) {
 		for(c.x = -1; c.x <= sz.x + 1; c.x++) {
-		    surf[i++] = new SPoint(new Coord3f(c.x * tilesz.x, c.y * -tilesz.y, map.getz(ul.add(c))));
+		    surf[i++] = new SPoint(new Coord3f(c.x * tilesz.x, c.y * -tilesz.y, map.getz(ul.x + c.x, ul.y + c.y)));
 		}
 	    }
 	}
@@ -339,7 +339,7 @@ public class MapMesh implements Rendered, Disposable {
 	    for(int x = -1; x <= 1; x++) {
 		if((x == 0) && (y == 0))
 		    continue;
-		int tn = m.map.gettile(gc.add(x, y));
+		int tn = m.map.gettile(gc.x + x, gc.y + y);
 		tr[x + 1][y + 1] = tn;
 		if(tn > max)
 		    max = tn;
@@ -517,56 +517,63 @@ public class MapMesh implements Rendered, Disposable {
     }
     
     public static final Order olorder = new Order.Default(1002);
-    public Rendered[] makeols() {
-	Surface surf = new Surface();
-	surf.calcnrm();
-	MeshBuf buf = new MeshBuf();
-	MeshBuf.Vertex[][] v = new MeshBuf.Vertex[sz.x + 1][sz.y + 1];
-	Coord t = new Coord();
-	for(t.y = 0; t.y <= sz.y; t.y++) {
-	    for(t.x = 0; t.x <= sz.x; t.x++) {
-		SPoint p = surf.spoint(t);
-		v[t.x][t.y] = buf.new Vertex(p.pos, p.nrm);
-	    }
+    private static class OL implements Rendered, Disposable {
+	private final FastMesh mesh;
+
+	private OL(FastMesh mesh) {
+	    this.mesh = mesh;
 	}
-	int[][] ol = new int[sz.x][sz.y];
-	for(t.y = 0; t.y < sz.y; t.y++) {
-	    for(t.x = 0; t.x < sz.x; t.x++) {
-		ol[t.x][t.y] = map.getol(ul.add(t));
-	    }
+
+	public void draw(GOut g) {
+	    mesh.draw(g);
 	}
-	Rendered[] ret = new Rendered[32];
-	for(int i = 0; i < 32; i++) {
-	    boolean h = false;
-	    buf.clearfaces();
-	    for(t.y = 0; t.y < sz.y; t.y++) {
-		for(t.x = 0; t.x < sz.x; t.x++) {
-		    if((ol[t.x][t.y] & (1 << i)) != 0) {
-			h = true;
-			splitquad(buf, v[t.x][t.y], v[t.x][t.y + 1], v[t.x + 1][t.y + 1], v[t.x + 1][t.y]);
-		    }
-		}
-	    }
-	    if(h) {
-		final FastMesh mesh = buf.mkmesh(i);
-		class OL implements Rendered, Disposable {
-		    public void draw(GOut g) {
-			mesh.draw(g);
-		    }
 
-		    public void dispose() {
-			mesh.dispose();
-		    }
+	public void dispose() {
+	    mesh.dispose();
+	}
 
-		    public boolean setup(RenderList rl) {
-			rl.prepo(olorder);
-			return(true);
+	public boolean setup(RenderList rl) {
+	    rl.prepo(olorder);
+	    return(true);
+	}
+    }
+
+    private Surface olsurf = null;
+    private MeshBuf.Vertex olv(MeshBuf buf, MeshBuf.Vertex[] v, int x, int y) {
+	int i = x + (y * (sz.x + 1));
+	if(v[i] == null) {
+	    SPoint p = olsurf.surf[(x + 1) + ((y + 1) * (sz.x + 3))];
+	    v[i] = buf.new Vertex(p.pos, p.nrm);
+	}
+	return(v[i]);
+    }
+
+    /* Makes the mesh of one overlay bit from the overlay bits of
+     * each tile of the cut, or returns null if no tile has it. Every
+     * mesh has vertices of its own, so that it can be remade and
+     * disposed of without the others. */
+    public Rendered makeol(int[] ol, int bit) {
+	int m = 1 << bit;
+	MeshBuf buf = null;
+	MeshBuf.Vertex[] v = null;
+	for(int y = 0; y < sz.y; y++) {
+	    for(int x = 0; x < sz.x; x++) {
+		if((ol[x + (y * sz.x)] & m) == 0)
+		    continue;
+		if(buf == null) {
+		    if(olsurf == null) {
+			olsurf = new Surface();
+			olsurf.calcnrm();
 		    }
+		    buf = new MeshBuf();
+		    v = new MeshBuf.Vertex[(sz.x + 1) * (sz.y + 1)];
 		}
-		ret[i] = new OL();
+		splitquad(buf, olv(buf, v, x, y), olv(buf, v, x, y + 1), olv(buf, v, x + 1, y + 1), olv(buf, v, x + 1, y));
 	    }
 	}
-	return(ret);
+	if(buf == null)
+	    return(null);
+	return(new OL(buf.mkmesh(bit)));
     }
 
     private void clean() {
@@ -647,8 +654,14 @@ public class MapMesh implements Rendered, Disposable {
     public void dispose() {
 	for(Disposable p : dparts)
 	    p.dispose();
+	olsurf = null;
     }
     
+    /* Cuts are made anew rather than changed. */
+    public int version() {
+	return(0);
+    }
+
     public boolean setup(RenderList rl) {
 	for(Layer l : layers)
 	    rl.add(l, null);
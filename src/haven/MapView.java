@@ -416,16 +416,29 @@ public class MapView extends PView implements DTarget, Console.Directory {
     }
 
     private final Rendered map = new Rendered() {
+	    /* Kept between frames so that cuts are added with the same
+	     * state, and can be retained by the render list. */
+	    private Coord lcc = null;
+	    private Location[] locs = null;
+
 	    public void draw(GOut g) {}
 	    
 	    public boolean setup(RenderList rl) {
 		Coord cc = MapView.this.cc.div(tilesz).div(MCache.cutsz);
+		int w = (view * 2) + 1;
+		if((locs == null) || (locs.length != w * w) || !cc.equals(lcc)) {
+		    locs = new Location[w * w];
+		    lcc = cc;
+		}
 		Coord o = new Coord();
 		for(o.y = -view; o.y <= view; o.y++) {
 		    for(o.x = -view; o.x <= view; o.x++) {
 			Coord pc = cc.add(o).mul(MCache.cutsz).mul(tilesz);
 			MapMesh cut = glob.map.getcut(cc.add(o));
-			rl.add(cut, Location.xlate(new Coord3f(pc.x, -pc.y, 0)));
+			int li = (o.x + view) + ((o.y + view) * w);
+			if(locs[li] == null)
+			    locs[li] = Location.xlate(new Coord3f(pc.x, -pc.y, 0));
+			rl.add(cut, locs[li]);
 			Collection<Gob> fol;
 			try {
 			    fol = glob.map.getfo(cc.add(o));
@@ -503,13 +516,29 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	    rl.add(gob, GLState.compose(xf, gob.olmod, gob.save));
     }
 
+    private ViewCull gobcull(RenderList rl) {
+	Matrix4f clip = camera.proj.fin(Matrix4f.id).mul(camera.view.fin(Matrix4f.id));
+	Coord cc = this.cc.div(tilesz).div(MCache.cutsz);
+	/* Leave room for shadows cast into view from outside it. */
+	float margin = rl.cfg.pref.lshadow.val ? 300 : 100;
+	return(new ViewCull(glob.map, clip, cc, view, margin, 20, 200));
+    }
+
     private final Rendered gobs = new Rendered() {
+	    private final List<Gob> vis = new ArrayList<Gob>();
+
 	    public void draw(GOut g) {}
 	    
 	    public boolean setup(RenderList rl) {
+		ViewCull cull = gobcull(rl);
 		synchronized(glob.oc) {
-		    for(Gob gob : glob.oc)
-			addgob(rl, gob);
+		    try {
+			glob.oc.visible(cull, vis);
+			for(Gob gob : vis)
+			    addgob(rl, gob);
+		    } finally {
+			vis.clear();
+		    }
 		}
 		return(false);
 	    }
@@ -777,6 +806,101 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	rl.render(g);
 	return(rl.get(g, c));
     }
+
+    /* Stands for a pick that could not be decided on the CPU. */
+    private static final ClickInfo unpicked = new ClickInfo(null, null, null);
+    private boolean cpupick = Config.cpupick;
+    private final long[] picktime = new long[2], pickn = new long[2];
+
+    private Picker picker(Coord c) {
+	Matrix4f clip = camera.proj.fin(Matrix4f.id).mul(camera.view.fin(Matrix4f.id));
+	return(Picker.unproject(clip, sz, c));
+    }
+
+    private Picker.MapHit pickmap(Picker ray) {
+	Coord cc = this.cc.div(tilesz).div(MCache.cutsz);
+	Coord ul = cc.sub(view, view).mul(MCache.cutsz), br = cc.add(view + 1, view + 1).mul(MCache.cutsz);
+	return(ray.map(glob.map, ul, br));
+    }
+
+    private static class Picklist extends RenderList {
+	private final Map<Slot, ClickInfo> info = new IdentityHashMap<Slot, ClickInfo>();
+	private Gob curgob;
+	private Gob.Overlay curol;
+	private ClickInfo curinfo;
+
+	private Picklist(GLConfig cfg) {
+	    super(cfg);
+	}
+
+	public void add(Rendered r, GLState t) {
+	    Gob prevg = curgob;
+	    Gob.Overlay prevo = curol;
+	    if(r instanceof Gob)
+		curgob = (Gob)r;
+	    else if(r instanceof Gob.Overlay)
+		curol = (Gob.Overlay)r;
+	    if((curgob == null) || !(r instanceof FRendered))
+		curinfo = null;
+	    else
+		curinfo = new ClickInfo(curgob, curol, r);
+	    super.add(r, t);
+	    curgob = prevg;
+	    curol = prevo;
+	}
+
+	protected void setup(Slot s, Rendered r) {
+	    if(curinfo != null)
+		info.put(s, curinfo);
+	    super.setup(s, r);
+	}
+    }
+
+    /* Finds the nearest gob part in front of @maxt, or unpicked if
+     * some part could only be tested by drawing it. */
+    private ClickInfo pickgob(GLConfig cfg, Picker ray, float maxt) {
+	Picklist rl = new Picklist(cfg);
+	GLState.Buffer buf = new GLState.Buffer(cfg);
+	camera.prep(buf);
+	rl.setup(gobs, buf);
+	rl.fin();
+	ClickInfo ret = null;
+	for(RenderList.Slot s : rl.slots()) {
+	    if(!s.d)
+		break;
+	    ClickInfo inf = rl.info.get(s);
+	    if(inf == null)
+		continue;
+	    if(!Picker.known(s.r))
+		return(unpicked);
+	    FastMesh m = Picker.flatmesh(s.r);
+	    if(m == null)
+		continue;
+	    Location.Chain loc = s.os.get(PView.loc);
+	    float t = ray.mesh((loc == null) ? Matrix4f.id : loc.fin(Matrix4f.id), m);
+	    if((t >= 0) && (t < maxt)) {
+		ret = inf;
+		maxt = t;
+	    }
+	}
+	return(ret);
+    }
+
+    private void picked(boolean cpu, long st) {
+	int i = cpu ? 0 : 1;
+	synchronized(picktime) {
+	    picktime[i] += System.nanoTime() - st;
+	    pickn[i]++;
+	}
+    }
+
+    public String pickstats() {
+	synchronized(picktime) {
+	    return(String.format("cpu: %d picks, %.3f ms avg; gpu: %d picks, %.3f ms avg",
+				 pickn[0], (pickn[0] == 0) ? 0.0 : (picktime[0] / (pickn[0] * 1e6)),
+				 pickn[1], (pickn[1] == 0) ? 0.0 : (picktime[1] / (pickn[1] * 1e6))));
+	}
+    }
     
     public void delay(Delayed d) {
 	synchronized(delayed) {
@@ -1009,16 +1133,24 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	}
 
 	public void run(GOut g) {
-	    GLState.Buffer bk = g.st.copy();
+	    long st = System.nanoTime();
 	    Coord mc;
-	    try {
-		GL gl = g.gl;
-		g.st.set(clickbasic(g));
-		g.apply();
-		gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
-		mc = checkmapclick(g, pc);
-	    } finally {
-		g.st.set(bk);
+	    if(cpupick) {
+		Picker.MapHit mh = pickmap(picker(pc));
+		mc = (mh == null) ? null : mh.mc;
+		picked(true, st);
+	    } else {
+		GLState.Buffer bk = g.st.copy();
+		try {
+		    GL gl = g.gl;
+		    g.st.set(clickbasic(g));
+		    g.apply();
+		    gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
+		    mc = checkmapclick(g, pc);
+		} finally {
+		    g.st.set(bk);
+		}
+		picked(false, st);
 	    }
 	    if(mc != null)
 		hit(pc, mc);
@@ -1038,22 +1170,38 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	}
 	
 	public void run(GOut g) {
-	    GLState.Buffer bk = g.st.copy();
-	    Coord mapcl;
-	    ClickInfo gobcl;
-	    try {
-		GL gl = g.gl;
-		g.st.set(clickbasic(g));
-		g.apply();
-		gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
-		mapcl = checkmapclick(g, clickc);
-		g.st.set(bk);
-		g.st.set(clickbasic(g));
-		g.apply();
-		gl.glClear(GL.GL_COLOR_BUFFER_BIT);
-		gobcl = checkgobclick(g, clickc);
-	    } finally {
-		g.st.set(bk);
+	    long st = System.nanoTime();
+	    Coord mapcl = null;
+	    ClickInfo gobcl = unpicked;
+	    if(cpupick) {
+		Picker ray = picker(clickc);
+		Picker.MapHit mh = pickmap(ray);
+		if(mh != null) {
+		    mapcl = mh.mc;
+		    gobcl = pickgob(g.gc, ray, mh.t);
+		} else {
+		    gobcl = null;
+		}
+		if(gobcl != unpicked)
+		    picked(true, st);
+	    }
+	    if(gobcl == unpicked) {
+		GLState.Buffer bk = g.st.copy();
+		try {
+		    GL gl = g.gl;
+		    g.st.set(clickbasic(g));
+		    g.apply();
+		    gl.glClear(GL.GL_DEPTH_BUFFER_BIT | GL.GL_COLOR_BUFFER_BIT);
+		    mapcl = checkmapclick(g, clickc);
+		    g.st.set(bk);
+		    g.st.set(clickbasic(g));
+		    g.apply();
+		    gl.glClear(GL.GL_COLOR_BUFFER_BIT);
+		    gobcl = checkgobclick(g, clickc);
+		} finally {
+		    g.st.set(bk);
+		}
+		picked(false, st);
 	    }
 	    if(mapcl != null) {
 		if(gobcl == null)
@@ -1252,6 +1400,19 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		    l.printStackTrace(cons.out);
 		}
 	    });
+	cmdmap.put("pick", new Console.Command() {
+		public void run(Console cons, String[] args) throws Exception {
+		    if(args.length < 2) {
+			cons.out.println(pickstats());
+		    } else if(args[1].equals("cpu")) {
+			cpupick = true;
+		    } else if(args[1].equals("gpu")) {
+			cpupick = false;
+		    } else {
+			throw(new Exception("usage: pick [cpu|gpu]"));
+		    }
+		}
+	    });
 }
     public Map<String, Console.Command> findcmds() {
 	return(cmdmap);
@@ -83,6 +83,12 @@ public class MeshAnim {
 	return(false);
     }
 
+    private static void copy(FloatBuffer dst, FloatBuffer src) {
+	dst.rewind();
+	dst.put((FloatBuffer)src.duplicate().rewind());
+	dst.rewind();
+    }
+
     public class Anim implements Morpher.Factory {
 	public float time = 0.0f;
 	private Frame cf, nf;
@@ -140,11 +146,8 @@ public class MeshAnim {
 			Frame f;
 			float a;
 
-			if(dst != src) {
-			    int l = dst.capacity();
-			    for(int i = 0; i < l; i++)
-				dst.put(i, src.get(i));
-			}
+			if(dst != src)
+			    copy(dst, src);
 			f = cf;
 			a = 1.0f - Anim.this.a;
 			for(int i = 0, po = 0; i < f.idx.length; i++, po += 3) {
@@ -167,11 +170,8 @@ public class MeshAnim {
 			Frame f;
 			float a;
 
-			if(dst != src) {
-			    int l = dst.capacity();
-			    for(int i = 0; i < l; i++)
-				dst.put(i, src.get(i));
-			}
+			if(dst != src)
+			    copy(dst, src);
 			f = cf;
 			a = 1.0f - Anim.this.a;
 			for(int i = 0, po = 0; i < f.idx.length; i++, po += 3) {
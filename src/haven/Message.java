@@ -63,8 +63,14 @@ public class Message implements java.io.Serializable {
 	
     public static final Message nil = new Message(0);
 
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>();
     public int type;
+    /* Messages being built may have spare capacity at the end of
+     * blob, and views may start into it; only the bytes from off up
+     * to wh are valid. Call fin() to get an array of the exact
+     * size. */
     public byte[] blob;
+    public int wh;
     public long last = 0;
     public int retx = 0;
     public int seq;
@@ -73,34 +79,67 @@ public class Message implements java.io.Serializable {
     public Message(int type, byte[] blob) {
 	this.type = type;
 	this.blob = blob;
+	this.wh = blob.length;
     }
 	
     public Message(int type, byte[] blob, int offset, int len) {
 	this.type = type;
 	this.blob = new byte[len];
+	this.wh = len;
 	System.arraycopy(blob, offset, this.blob, 0, len);
     }
 	
     public Message(int type) {
 	this.type = type;
 	blob = new byte[0];
+	wh = 0;
+    }
+
+    /* Makes a message reading directly from a region of buf, which
+     * must therefore not be modified while the message is in use. */
+    public static Message view(int type, byte[] buf, int off, int len) {
+	Message ret = new Message(type, buf);
+	ret.off = off;
+	ret.wh = off + len;
+	return(ret);
     }
 	
     public boolean equals(Object o2) {
 	if(!(o2 instanceof Message))
 	    return(false);
 	Message m2 = (Message)o2;
-	if(m2.blob.length != blob.length)
+	if(m2.size() != size())
 	    return(false);
-	for(int i = 0; i < blob.length; i++) {
-	    if(m2.blob[i] != blob[i])
+	for(int i = 0; i < size(); i++) {
+	    if(m2.blob[m2.off + i] != blob[off + i])
 		return(false);
 	}
 	return(true);
     }
 
     public Message clone() {
-	return(new Message(type, blob));
+	return(new Message(type, blob, off, size()));
+    }
+
+    /* The number of bytes left to read, which for a message being
+     * built is its whole length. */
+    public int size() {
+	return(wh - off);
+    }
+
+    public byte[] fin() {
+	if(blob.length != wh)
+	    blob = Arrays.copyOf(blob, wh);
+	return(blob);
+    }
+
+    private void ensure(int len) {
+	if(wh + len > blob.length) {
+	    int nl = Math.max(blob.length * 2, 32);
+	    while(nl < wh + len)
+		nl *= 2;
+	    blob = Arrays.copyOf(blob, nl);
+	}
     }
 	
     public Message derive(int type, int len) {
@@ -110,10 +149,9 @@ public class Message implements java.io.Serializable {
     }
 	
     public void addbytes(byte[] src, int off, int len) {
-	byte[] n = new byte[blob.length + len];
-	System.arraycopy(blob, 0, n, 0, blob.length);
-	System.arraycopy(src, off, n, blob.length, len);
-	blob = n;
+	ensure(len);
+	System.arraycopy(src, off, blob, wh, len);
+	wh += len;
     }
 
     public void addbytes(byte[] src) {
@@ -121,25 +159,26 @@ public class Message implements java.io.Serializable {
     }
 	
     public void adduint8(int num) {
-	addbytes(new byte[] {Utils.sb(num)});
+	ensure(1);
+	blob[wh++] = Utils.sb(num);
     }
 	
     public void adduint16(int num) {
-	byte[] buf = new byte[2];
-	Utils.uint16e(num, buf, 0);
-	addbytes(buf);
+	ensure(2);
+	Utils.uint16e(num, blob, wh);
+	wh += 2;
     }
 	
     public void addint32(int num) {
-	byte[] buf = new byte[4];
-	Utils.int32e(num, buf, 0);
-	addbytes(buf);
+	ensure(4);
+	Utils.int32e(num, blob, wh);
+	wh += 4;
     }
     
     public void adduint32(long num) {
-	byte[] buf = new byte[4];
-	Utils.uint32e(num, buf, 0);
-	addbytes(buf);
+	ensure(4);
+	Utils.uint32e(num, blob, wh);
+	wh += 4;
     }
     
     public void addstring2(String str) {
@@ -154,7 +193,7 @@ public class Message implements java.io.Serializable {
 	
     public void addstring(String str) {
 	addstring2(str);
-	addbytes(new byte[] {0});
+	adduint8(0);
     }
 	
     public void addcoord(Coord c) {
@@ -196,7 +235,7 @@ public class Message implements java.io.Serializable {
     }
 	
     public boolean eom() {
-	return(off >= blob.length);
+	return(off >= wh);
     }
 	
     public int int8() {
@@ -247,7 +286,7 @@ public class Message implements java.io.Serializable {
     }
     
     public byte[] bytes() {
-	return(bytes(blob.length - off));
+	return(bytes(wh - off));
     }
 	
     public Coord coord() {
@@ -271,7 +310,7 @@ public class Message implements java.io.Serializable {
     public Object[] list() {
 	ArrayList<Object> ret = new ArrayList<Object>();
 	list: while(true) {
-	    if(off >= blob.length)
+	    if(off >= wh)
 		break;
 	    int t = uint8();
 	    switch(t) {
@@ -327,19 +366,25 @@ public class Message implements java.io.Serializable {
     }
 
     public Message inflate(int length) {
-	Message ret = new Message(0);
-	Inflater z = new Inflater();
+	Inflater z = inflaters.get();
+	if(z == null)
+	    inflaters.set(z = new Inflater());
+	else
+	    z.reset();
 	z.setInput(blob, off, length);
-	byte[] buf = new byte[10000];
+	Message ret = new Message(0, new byte[Math.max(length * 4, 1024)]);
+	ret.wh = 0;
 	while(true) {
 	    try {
+		if(ret.wh == ret.blob.length)
+		    ret.ensure(ret.blob.length);
 		int len;
-		if((len = z.inflate(buf)) == 0) {
+		if((len = z.inflate(ret.blob, ret.wh, ret.blob.length - ret.wh)) == 0) {
 		    if(!z.finished())
 			throw(new RuntimeException("Got unterminated gzip blob"));
 		    break;
 		}
-		ret.addbytes(buf, 0, len);
+		ret.wh += len;
 	    } catch(java.util.zip.DataFormatException e) {
 		throw(new RuntimeException("Got malformed gzip blob", e));
 	    }
@@ -348,13 +393,13 @@ public class Message implements java.io.Serializable {
     }
 
     public Message inflate() {
-	return(inflate(blob.length - off));
+	return(inflate(wh - off));
     }
 
     public String toString() {
 	String ret = "";
-	for(byte b : blob) {
-	    ret += String.format("%02x ", b);
+	for(int i = 0; i < wh; i++) {
+	    ret += String.format("%02x ", blob[i]);
 	}
 	return("Message(" + type + "): " + ret);
     }
@@ -27,6 +27,7 @@
 package haven;
 
 import java.util.*;
+import dolda.xiphutil.VorbisStream;
 
 public class Music {
     public static double volume = 1.0;
@@ -42,13 +43,14 @@ public class Music {
 	public final Resource res;
 	private int state;
 	private Audio.DataClip cur = null;
+	private final Map<Resource.Audio, VorbisStream> streams = new HashMap<Resource.Audio, VorbisStream>();
 
 	public Jukebox(Resource res, boolean loop) {
 	    this.res = res;
 	    this.state = loop?0:1;
 	}
 
-	public int get(double[][] buf) {
+	public int get(float[][] buf) {
 	    int ns = buf[0].length;
 	    int nch = buf.length;
 	    for(int i = 0; i < nch; i++) {
@@ -61,7 +63,13 @@ public class Music {
 		    return(-1);
 		try {
 		    List<Resource.Audio> clips = new ArrayList<Resource.Audio>(res.layers(Resource.audio));
-		    cur = new Audio.DataClip(clips.get((int)(Math.random() * clips.size())).pcmstream());
+		    Resource.Audio clip = clips.get((int)(Math.random() * clips.size()));
+		    VorbisStream vs = streams.get(clip);
+		    if(vs == null)
+			streams.put(clip, vs = clip.stream());
+		    else
+			vs.seek(0);
+		    cur = new Audio.DataClip(vs.pcmstream());
 		    if(state == 1)
 			state = 2;
 		} catch(Loading l) {
@@ -69,7 +77,7 @@ public class Music {
 		}
 	    }
 	    int ret = cur.get(buf);
-	    double vol = volume;
+	    float vol = (float)volume;
 	    if(ret < 0) {
 		cur = null;
 	    } else {
@@ -27,30 +27,108 @@
 package haven;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class OCache implements Iterable<Gob> {
     /* XXX: Use weak refs */
     private Collection<Collection<Gob>> local = new LinkedList<Collection<Gob>>();
-    private Map<Long, Gob> objs = new TreeMap<Long, Gob>();
+    /* Only modified with this locked, but read without it by
+     * getgob(long), so that gobs may look each other up while they
+     * are being ticked. */
+    private Map<Long, Gob> objs = new ConcurrentSkipListMap<Long, Gob>();
     private Map<Long, Integer> deleted = new TreeMap<Long, Integer>();
     private Glob glob;
+    /* Gobs are indexed by the map cut their position lies in, so
+     * that the map view need only consider those near what it is
+     * looking at. Moving gobs are kept apart, since where they are
+     * drawn strays from their position. */
+    public static final Coord cellsz = MCache.cutsz.mul(MCache.tilesz);
+    private final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+    private final Cell movers = new Cell(0, 0);
+
+    static class Cell {
+	final int x, y;
+	final Collection<Gob> gobs = new HashSet<Gob>();
+
+	Cell(int x, int y) {
+	    this.x = x;
+	    this.y = y;
+	}
+    }
+
+    public interface CellFilter {
+	/* Coordinates are in units of cellsz. */
+	public boolean visible(int x, int y);
+    }
 	
     public OCache(Glob glob) {
 	this.glob = glob;
     }
+
+    private static long cellkey(int x, int y) {
+	return((((long)x) << 32) | (y & 0xffffffffL));
+    }
+
+    private void index(Gob g) {
+	if(objs.get(g.id) != g)
+	    return;
+	Cell nc;
+	if(g.getattr(Moving.class) != null) {
+	    nc = movers;
+	} else {
+	    int x = Utils.floordiv(g.rc.x, cellsz.x), y = Utils.floordiv(g.rc.y, cellsz.y);
+	    if((g.ocell != null) && (g.ocell != movers) && (g.ocell.x == x) && (g.ocell.y == y))
+		return;
+	    long k = cellkey(x, y);
+	    if((nc = cells.get(k)) == null)
+		cells.put(k, nc = new Cell(x, y));
+	}
+	if(nc == g.ocell)
+	    return;
+	unindex(g);
+	nc.gobs.add(g);
+	g.ocell = nc;
+    }
+
+    private void unindex(Gob g) {
+	Cell c = g.ocell;
+	if(c != null) {
+	    c.gobs.remove(g);
+	    if(c.gobs.isEmpty() && (c != movers))
+		cells.remove(cellkey(c.x, c.y));
+	    g.ocell = null;
+	}
+    }
+
+    /* Adds to dst all gobs in cells passed by filter, as well as all
+     * moving and local gobs. Must be called with this locked, like
+     * iteration. */
+    public void visible(CellFilter filter, Collection<? super Gob> dst) {
+	for(Cell c : cells.values()) {
+	    if(filter.visible(c.x, c.y))
+		dst.addAll(c.gobs);
+	}
+	dst.addAll(movers.gobs);
+	for(Collection<Gob> lc : local)
+	    dst.addAll(lc);
+    }
 	
     public synchronized void remove(long id, int frame) {
 	if(objs.containsKey(id)) {
 	    if(!deleted.containsKey(id) || deleted.get(id) < frame) {
 		Gob old = objs.remove(id);
 		deleted.put(id, frame);
+		unindex(old);
 		old.dispose();
 	    }
 	}
     }
     
     public synchronized void remove(long id) {
-	objs.remove(id);
+	Gob old = objs.remove(id);
+	if(old != null)
+	    unindex(old);
     }
 	
     public synchronized void tick() {
@@ -59,13 +137,78 @@ public class OCache implements Iterable<Gob> {
 	}
     }
 	
+    /* Gobs are ticked with this locked, so that no changes from the
+     * server come in meanwhile. With haven.partick on, the attributes
+     * that implement GAttrib.Parallel are first ticked in parallel,
+     * and everything else, such as sprites and anything loaded from
+     * resources, is then ticked on this thread. Anything a gob does
+     * to the cache or to other gobs during its tick must be passed to
+     * defer(), and is run in order after all gobs are done. */
+    private final Queue<Runnable> deferred = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean ticking = false;
+    private Gob[] tickbuf = new Gob[0];
+    private static final int tickgrain = 32;
+
+    public void defer(Runnable r) {
+	deferred.add(r);
+	if(!ticking) {
+	    synchronized(this) {
+		commit();
+	    }
+	}
+    }
+
+    private void commit() {
+	Runnable r;
+	while((r = deferred.poll()) != null)
+	    r.run();
+    }
+
+    private static class Tick extends RecursiveAction {
+	final Gob[] gobs;
+	final int from, to, dt;
+
+	Tick(Gob[] gobs, int from, int to, int dt) {
+	    this.gobs = gobs;
+	    this.from = from;
+	    this.to = to;
+	    this.dt = dt;
+	}
+
+	protected void compute() {
+	    if(to - from <= tickgrain) {
+		for(int i = from; i < to; i++)
+		    gobs[i].partick(dt);
+	    } else {
+		int mid = (from + to) >>> 1;
+		invokeAll(new Tick(gobs, from, mid, dt), new Tick(gobs, mid, to, dt));
+	    }
+	}
+    }
+
     public void ctick(int dt) {
 	synchronized(this) {
-	    ArrayList<Gob> copy = new ArrayList<Gob>();
-	    for(Gob g : this)
-		copy.add(g);
-	    for(Gob g : copy)
-		g.ctick(dt);
+	    int n = 0;
+	    for(Gob g : this) {
+		if(n >= tickbuf.length)
+		    tickbuf = Arrays.copyOf(tickbuf, Math.max(n * 2, 64));
+		tickbuf[n++] = g;
+	    }
+	    ticking = true;
+	    try {
+		if(Config.partick) {
+		    if(n > tickgrain)
+			ForkJoinPool.commonPool().invoke(new Tick(tickbuf, 0, n, dt));
+		    else
+			new Tick(tickbuf, 0, n, dt).compute();
+		}
+		for(int i = 0; i < n; i++)
+		    tickbuf[i].ctick(dt);
+	    } finally {
+		ticking = false;
+		Arrays.fill(tickbuf, 0, n, null);
+		commit();
+	    }
 	}
     }
 	
@@ -85,7 +228,7 @@ public class OCache implements Iterable<Gob> {
 	local.remove(gob);
     }
 	
-    public synchronized Gob getgob(long id) {
+    public Gob getgob(long id) {
 	return(objs.get(id));
     }
 	
@@ -103,6 +246,7 @@ public class OCache implements Iterable<Gob> {
 	    } else {
 		Gob g = new Gob(glob, Coord.z, id, frame);
 		objs.put(id, g);
+		index(g);
 		return(g);
 	    }
 	} else {
@@ -115,20 +259,22 @@ public class OCache implements Iterable<Gob> {
 	/* XXX: Clean up in deleted */
     }
 
-    private long nextvirt = -1;
+    private final AtomicLong nextvirt = new AtomicLong(-1);
     public class Virtual extends Gob {
 	public Virtual(Coord c, double a) {
-	    super(OCache.this.glob, c, nextvirt--, 0);
+	    super(OCache.this.glob, c, nextvirt.getAndDecrement(), 0);
 	    this.a = a;
 	    virtual = true;
-	    synchronized(OCache.this) {
-		objs.put(id, this);
-	    }
+	    defer(() -> {
+		    objs.put(id, this);
+		    index(this);
+		});
 	}
     }
     
     public synchronized void move(Gob g, Coord c, double a) {
 	g.move(c, a);
+	index(g);
     }
 	
     public synchronized void cres(Gob g, Indir<Resource> res, Message sdt) {
@@ -144,6 +290,7 @@ public class OCache implements Iterable<Gob> {
     public synchronized void linbeg(Gob g, Coord s, Coord t, int c) {
 	LinMove lm = new LinMove(g, s, t, c);
 	g.setattr(lm);
+	index(g);
     }
 	
     public synchronized void linstep(Gob g, int l) {
@@ -151,10 +298,12 @@ public class OCache implements Iterable<Gob> {
 	if((m == null) || !(m instanceof LinMove))
 	    return;
 	LinMove lm = (LinMove)m;
-	if((l < 0) || (l >= lm.c))
+	if((l < 0) || (l >= lm.c)) {
 	    g.delattr(Moving.class);
-	else
+	    index(g);
+	} else {
 	    lm.setl(l);
+	}
     }
 	
     public synchronized void speak(Gob g, float zo, String text) {
@@ -230,11 +379,13 @@ public class OCache implements Iterable<Gob> {
     public synchronized void follow(Gob g, long oid, Indir<Resource> xfres, String xfname) {
 	if(oid == 0xffffffffl) {
 	    g.delattr(Following.class);
+	    index(g);
 	} else {
 	    Following flw = g.getattr(Following.class);
 	    if(flw == null) {
 		flw = new Following(g, oid, xfres, xfname);
 		g.setattr(flw);
+		index(g);
 	    } else {
 		synchronized(flw) {
 		    flw.tgt = oid;
@@ -249,10 +400,12 @@ public class OCache implements Iterable<Gob> {
 
     public synchronized void homostop(Gob g) {
 	g.delattr(Homing.class);
+	index(g);
     }
 
     public synchronized void homing(Gob g, long oid, Coord tc, int v) {
 	g.setattr(new Homing(g, oid, tc, v));
+	index(g);
     }
 	
     public synchronized void homocoord(Gob g, Coord tc, int v) {
@@ -309,4 +462,96 @@ public class OCache implements Iterable<Gob> {
 	else
 	    g.setattr(new GobIcon(g, res));
     }
+
+    /* Benchmark of setting up a synthetic gob population, spread
+     * over 3x3 grids, for rendering with and without culling against
+     * a default orthographic camera. */
+    public static void main(String[] args) throws Exception {
+	int n = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+	Glob glob = new Glob(null);
+	MCache map = glob.map;
+	map.synthgrids();
+	OCache oc = glob.oc;
+	Random rnd = new Random(1);
+	Coord gsz = MCache.cmaps.mul(MCache.tilesz);
+	for(int i = 0; i < n; i++) {
+	    Gob g = oc.getgob(i + 1, 0);
+	    oc.move(g, new Coord(rnd.nextInt(gsz.x * 3) - gsz.x, rnd.nextInt(gsz.y * 3) - gsz.y), rnd.nextDouble() * Math.PI * 2);
+	    g.loc.tick();
+	}
+	float field = (float)(100 * Math.sqrt(2)), aspect = 0.75f;
+	Matrix4f view = PointedCam.compute(new Coord3f(gsz.x / 2, -gsz.y / 2, 15), 500, (float)Math.PI / 6, -(float)Math.PI / 4);
+	Matrix4f proj = Projection.makeortho(new Matrix4f(), -field, field, -field * aspect, field * aspect, 1, 5000);
+	final ViewCull cull = new ViewCull(map, proj.mul(view), gsz.div(2).div(cellsz), 2, 100, 20, 200);
+	RenderList rl = new RenderList(null);
+	for(int round = 0; round < 5; round++) {
+	    for(final boolean culled : new boolean[] {false, true}) {
+		final List<Gob> vis = new ArrayList<Gob>();
+		Rendered root = new Rendered() {
+			public void draw(GOut g) {}
+			public boolean setup(RenderList rl) {
+			    vis.clear();
+			    synchronized(oc) {
+				if(culled) {
+				    oc.visible(cull, vis);
+				} else {
+				    for(Gob gob : oc)
+					vis.add(gob);
+				}
+				for(Gob gob : vis)
+				    rl.add(gob, GLState.compose(gob.loc, gob.olmod, gob.save));
+			    }
+			    return(false);
+			}
+		    };
+		int frames = 50;
+		long st = System.nanoTime();
+		for(int i = 0; i < frames; i++)
+		    rl.setup(root, new GLState.Buffer(null));
+		long t = System.nanoTime() - st;
+		System.out.printf("%s: %d of %d gobs, %.2f ms/frame%n", culled ? "culled" : "all", vis.size(), n, (t * 1e-6) / frames);
+	    }
+	}
+	/* Tick every gob with some animation-like work, serially and in
+	 * parallel, along with a follower and a few virtual gobs, which
+	 * must go away once they have no overlays. */
+	class Busy extends GAttrib implements GAttrib.Parallel {
+	    float[] q = {1, 0, 0, 0};
+
+	    Busy(Gob gob) {
+		super(gob);
+	    }
+
+	    public void ctick(int dt) {
+		for(int i = 0; i < 500; i++) {
+		    float a = (float)Math.sin(i + dt);
+		    q[0] = (q[0] * 0.9f) + (a * 0.1f);
+		    q[1] = (float)Math.sqrt(Math.abs(q[0]));
+		}
+	    }
+	}
+	for(Gob g : oc)
+	    g.setattr(new Busy(g));
+	Gob flw = oc.getgob(n + 1, 0);
+	flw.setattr(new Following(flw, 1, null, null));
+	for(int i = 0; i < 10; i++)
+	    oc.new Virtual(Coord.z, 0);
+	for(int round = 0; round < 4; round++) {
+	    Config.partick = (round % 2) == 1;
+	    int frames = 50;
+	    long st = System.nanoTime();
+	    for(int i = 0; i < frames; i++)
+		oc.ctick(20);
+	    long t = System.nanoTime() - st;
+	    int nv = 0;
+	    synchronized(oc) {
+		for(Gob g : oc)
+		    nv += g.virtual ? 1 : 0;
+	    }
+	    System.out.printf("%s tick: %.2f ms/frame, %d virtual left%n", Config.partick ? "parallel" : "serial", (t * 1e-6) / frames, nv);
+	}
+	float[] fm = flw.loc.fin(Matrix4f.id).m, tm = oc.getgob(1).loc.fin(Matrix4f.id).m;
+	if((fm[12] != tm[12]) || (fm[13] != tm[13]) || (fm[14] != tm[14]))
+	    throw(new AssertionError("follower not placed with its target"));
+    }
 }
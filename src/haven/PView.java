@@ -42,6 +42,7 @@ public abstract class PView extends Widget {
     protected Light.Model lm;
     private final WidgetContext cstate = new WidgetContext();
     private final WidgetRenderState rstate = new WidgetRenderState();
+    private final Light.LightList lights = new Light.LightList();
     private GLState pstate;
     
     public static class RenderContext extends GLState.Abstract {
@@ -218,13 +219,18 @@ public abstract class PView extends Widget {
 	    States.fsaa.prep(def);
 	try {
 	    lm.prep(def);
-	    new Light.LightList().prep(def);
+	    /* The same list is used every frame, so that retained
+	     * slots in the render list need not be set up again. */
+	    lights.clear();
+	    lights.prep(def);
 	    rls.setup(scene, def);
 	    if(curf != null)
 		curf.tick("setup");
 	    rls.fin();
-	    if(curf != null)
+	    if(curf != null) {
 		curf.tick("sort");
+		curf.info = rls.stats();
+	    }
 	    GOut rg;
 	    if(cstate.cur.fb != null) {
 		GLState.Buffer gb = g.basicstate();
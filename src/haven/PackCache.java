@@ -0,0 +1,665 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.net.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/*
+ * Stores all cached data in a single append-only pack file, in the
+ * same per-server directory that BaseFileCache uses. A record
+ * superseding an earlier one with the same name simply appends a
+ * new copy; the dead space is reclaimed by compacting the pack in
+ * the background once it outweighs the live data.
+ *
+ * File layout: a header of {u32 magic, u32 version, i64 end},
+ * followed by records of {u32 magic, u32 reclen, u8 flags, u16
+ * namelen, name, data}. Only data before `end' is valid, so that a
+ * writer dying in the middle of an append leaves no partial record
+ * behind. Appends happen under an exclusive lock of the first byte
+ * of the lock file, and readers catch up with other processes under a
+ * shared lock of it.
+ *
+ * Since a mapped file can be neither replaced nor truncated on all
+ * platforms, compaction writes a new generation of the pack,
+ * pack.N.dat, and then points pack.cur ({u32 magic, u32 version, i64
+ * generation}) at it. Generation zero is pack.dat. The live entries
+ * are copied without locking the pack, holding only a shared lock of
+ * the second byte of the lock file, which keeps the generation being
+ * copied from being deleted. Only what was appended meanwhile is
+ * copied with the pack locked exclusively, just before switching to
+ * the new generation. Old generations are deleted once no process
+ * has them mapped or is copying from them any longer. The pack
+ * is mapped in fixed-size windows, and entries not wholly inside a
+ * complete window are read into the heap instead.
+ *
+ * The pack is kept within a byte budget (haven.cachesize, in MB) by
+ * evicting the least recently used entries when compacting. Access
+ * times are only tracked in memory, so entries not used by this
+ * process are considered older than all that are, in order of
+ * their age in the pack.
+ */
+public class PackCache implements ResCache {
+    private static final int MAGIC = 0x4850414b, RECMAGIC = 0x48524543;
+    private static final int VERSION = 1;
+    private static final int HDRLEN = 16, RECHDR = 11;
+    private static final int F_DEL = 1;
+    private static final long COMPACTMIN = 16 << 20;
+    private static final long WINDOW = 16 << 20;
+    private static final int MAXWINDOWS = 8;
+    public final URI id;
+    private final Path base, lockf, curf;
+    private final BaseFileCache legacy;
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+    private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+	protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+	    return(size() > MAXWINDOWS);
+	}
+    };
+    private FileChannel ch;
+    private Path pack;
+    private long gen = -1;
+    private long scanned, live;
+    private boolean stale = false;
+    private final long budget;
+    private boolean compacting = false;
+    private final Object compactmon = new Object();
+    private long nextcompact = 0, nextpurge = 0;
+    private long clock = 0;
+    private long hits, misses, stores, evicted, evbytes, compactions;
+
+    private static class Entry {
+	final long off;
+	final int reclen, dlen;
+	long atime = 0;
+
+	Entry(long off, int reclen, int dlen) {
+	    this.off = off;
+	    this.reclen = reclen;
+	    this.dlen = dlen;
+	}
+
+	long doff() {return(off + reclen - dlen);}
+    }
+
+    public PackCache(URI id, long budget) throws IOException {
+	this.id = id;
+	this.budget = budget;
+	this.base = BaseFileCache.findbase(id);
+	this.lockf = base.resolve("pack.lock");
+	this.curf = base.resolve("pack.cur");
+	this.legacy = BaseFileCache.get(id);
+	synchronized(this) {
+	    try(LockedFile lk = lock(false)) {
+		try {
+		    open(readgen());
+		    scan(readend());
+		} catch(IOException e) {
+		    /* Start over in a new generation rather than
+		     * truncating, as other processes may still
+		     * have the broken one mapped. */
+		    open(newgen());
+		}
+		purge();
+	    }
+	}
+    }
+
+    private static final Map<URI, PackCache> current = new CacheMap<>();
+    public static PackCache get(URI id) throws IOException {
+	synchronized(current) {
+	    PackCache ret = current.get(id);
+	    if(ret == null)
+		current.put(id, ret = new PackCache(id, Config.cachesize * 1048576L));
+	    return(ret);
+	}
+    }
+
+    public static PackCache create() {
+	try {
+	    if(Config.cachebase != null)
+		return(get(Config.cachebase));
+	    if(Config.resurl != null)
+		return(get(Config.resurl.toURI()));
+	    return(get(Utils.uri("urn:haven-cache:default")));
+	} catch(Exception e) {
+	    return(null);
+	}
+    }
+
+    private LockedFile lock(boolean shared) throws IOException {
+	/* As with BaseFileCache, callers synchronize on this object
+	 * as well, since a JVM cannot hold overlapping locks. */
+	return(LockedFile.lock(lockf, 0, 1, shared));
+    }
+
+    private LockedFile genlock(boolean shared) throws IOException {
+	return(LockedFile.lock(lockf, 1, 1, shared));
+    }
+
+    private Path packfile(long gen) {
+	return(base.resolve((gen == 0) ? "pack.dat" : String.format("pack.%d.dat", gen)));
+    }
+
+    private long readgen() throws IOException {
+	try(FileChannel fp = FileChannel.open(curf, READ)) {
+	    ByteBuffer buf = ByteBuffer.allocate(16);
+	    readall(fp, buf, 0);
+	    if((buf.getInt(0) != MAGIC) || (buf.getInt(4) != VERSION))
+		throw(new IOException("invalid cache pack pointer in " + curf));
+	    return(buf.getLong(8));
+	} catch(NoSuchFileException e) {
+	    return(0);
+	}
+    }
+
+    /* Written in place, since it is never mapped. */
+    private void writegen(long gen) throws IOException {
+	try(FileChannel fp = FileChannel.open(curf, WRITE, CREATE)) {
+	    ByteBuffer buf = ByteBuffer.allocate(16);
+	    buf.putInt(MAGIC).putInt(VERSION).putLong(gen);
+	    buf.flip();
+	    writeall(fp, buf, 0);
+	    fp.force(true);
+	}
+    }
+
+    private static void writehdr(FileChannel ch, long end) throws IOException {
+	ByteBuffer hdr = ByteBuffer.allocate(HDRLEN);
+	hdr.putInt(MAGIC).putInt(VERSION).putLong(end);
+	hdr.flip();
+	writeall(ch, hdr, 0);
+    }
+
+    private void open(long gen) throws IOException {
+	if(ch != null)
+	    ch.close();
+	Path pack = packfile(gen);
+	ch = Utils.ioretry(() -> FileChannel.open(pack, READ, WRITE, CREATE));
+	this.pack = pack;
+	this.gen = gen;
+	windows.clear();
+	scanned = HDRLEN;
+	live = 0;
+	index.clear();
+	if(ch.size() < HDRLEN)
+	    writehdr(ch, HDRLEN);
+    }
+
+    /* Creates an empty pack in a fresh generation and makes it
+     * current. Must be called with the pack locked exclusively. */
+    private long newgen() throws IOException {
+	long ng = Math.max(gen, 0) + 1;
+	while(Files.exists(packfile(ng)))
+	    ng++;
+	try(FileChannel out = FileChannel.open(packfile(ng), WRITE, CREATE_NEW)) {
+	    writehdr(out, HDRLEN);
+	    out.force(true);
+	}
+	writegen(ng);
+	return(ng);
+    }
+
+    /* Deletes all generations but the current one. Those still
+     * mapped somewhere cannot be deleted on some platforms, and none
+     * are deleted while a compaction is copying from one; they are
+     * tried again later. Must be called with the pack locked
+     * exclusively, so that no one is about to open one. */
+    private void purge() {
+	boolean left = false;
+	try(LockedFile gl = LockedFile.trylock(lockf, 1, 1, false)) {
+	    if(gl == null) {
+		stale = true;
+		return;
+	    }
+	    try(DirectoryStream<Path> dir = Files.newDirectoryStream(base, "pack*.dat")) {
+		for(Path f : dir) {
+		    if(f.equals(pack))
+			continue;
+		    try {
+			Files.deleteIfExists(f);
+		    } catch(IOException e) {
+			left = true;
+		    }
+		}
+	    }
+	} catch(IOException | OverlappingFileLockException e) {
+	    /* The latter if this process is compacting. */
+	    left = true;
+	}
+	stale = left;
+    }
+
+    private static void readall(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+	while(buf.hasRemaining()) {
+	    int rv = ch.read(buf, pos);
+	    if(rv < 0)
+		throw(new EOFException());
+	    pos += rv;
+	}
+    }
+
+    private static void writeall(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+	while(buf.hasRemaining())
+	    pos += ch.write(buf, pos);
+    }
+
+    private long readend() throws IOException {
+	ByteBuffer hdr = ByteBuffer.allocate(HDRLEN);
+	readall(ch, hdr, 0);
+	if((hdr.getInt(0) != MAGIC) || (hdr.getInt(4) != VERSION))
+	    throw(new IOException("invalid cache pack header in " + pack));
+	return(hdr.getLong(8));
+    }
+
+    /* Returns the bytes [off, off + len) of the pack, which must lie
+     * before limit. Only windows wholly before limit are ever mapped,
+     * so that a mapping never reaches past the end of the file. */
+    private ByteBuffer region(long off, int len, long limit) throws IOException {
+	long w = off / WINDOW;
+	long wend = (w + 1) * WINDOW;
+	if((off + len <= wend) && (wend <= limit)) {
+	    MappedByteBuffer m = windows.get(w);
+	    if(m == null)
+		windows.put(w, m = ch.map(FileChannel.MapMode.READ_ONLY, w * WINDOW, WINDOW));
+	    ByteBuffer ret = m.duplicate();
+	    ret.position((int)(off - (w * WINDOW)));
+	    ret.limit(ret.position() + len);
+	    return(ret.slice());
+	}
+	ByteBuffer ret = ByteBuffer.allocate(len);
+	readall(ch, ret, off);
+	ret.flip();
+	return(ret.asReadOnlyBuffer());
+    }
+
+    private void index(String name, Entry ent, int flags) {
+	Entry prev = index.remove(name);
+	if(prev != null)
+	    live -= prev.reclen;
+	if((flags & F_DEL) == 0) {
+	    index.put(name, ent);
+	    live += ent.reclen;
+	}
+    }
+
+    private void scan(long end) throws IOException {
+	while(scanned < end) {
+	    long p = scanned;
+	    if(end - p < RECHDR)
+		throw(new IOException("corrupt cache pack record at " + p + " in " + pack));
+	    ByteBuffer h = region(p, RECHDR, end);
+	    if(h.getInt(0) != RECMAGIC)
+		throw(new IOException("corrupt cache pack record at " + p + " in " + pack));
+	    int reclen = h.getInt(4);
+	    int flags = h.get(8);
+	    int nmlen = h.getShort(9) & 0xffff;
+	    if((reclen < RECHDR + nmlen) || (end - p < reclen))
+		throw(new IOException("corrupt cache pack record at " + p + " in " + pack));
+	    byte[] nm = new byte[nmlen];
+	    region(p + RECHDR, nmlen, end).get(nm);
+	    index(new String(nm, Utils.utf8), new Entry(p, reclen, reclen - RECHDR - nmlen), flags);
+	    scanned = p + reclen;
+	}
+    }
+
+    /* Must be called with the pack locked. */
+    private void sync() throws IOException {
+	long cur = readgen();
+	if(cur != gen)
+	    open(cur);
+	scan(readend());
+    }
+
+    private void append(String name, byte[] data, int flags) throws IOException {
+	byte[] nm = name.getBytes(Utils.utf8);
+	int reclen = RECHDR + nm.length + data.length;
+	ByteBuffer rec = ByteBuffer.allocate(reclen);
+	rec.putInt(RECMAGIC).putInt(reclen).put((byte)flags).putShort((short)nm.length).put(nm).put(data);
+	rec.flip();
+	synchronized(this) {
+	    try(LockedFile lk = lock(false)) {
+		sync();
+		long end = scanned;
+		writeall(ch, rec, end);
+		ByteBuffer nend = ByteBuffer.allocate(8);
+		nend.putLong(0, end + reclen);
+		writeall(ch, nend, 8);
+		Entry ent = new Entry(end, reclen, data.length);
+		ent.atime = ++clock;
+		index(name, ent, flags);
+		scanned = end + reclen;
+		if((flags & F_DEL) == 0)
+		    stores++;
+	    }
+	}
+	checkcompact();
+    }
+
+    private ByteBuffer get(Entry ent) throws IOException {
+	return(region(ent.doff(), ent.dlen, scanned));
+    }
+
+    private ByteBuffer migrate(String name) throws IOException {
+	byte[] data;
+	try(InputStream in = legacy.fetch(name)) {
+	    data = Utils.readall(in);
+	}
+	append(name, data, 0);
+	synchronized(this) {
+	    hits++;
+	}
+	try {
+	    legacy.remove(name);
+	} catch(IOException e) {
+	}
+	return(ByteBuffer.wrap(data));
+    }
+
+    /* The returned buffer is read-only, and a view directly into the
+     * mapped pack file unless the entry lies outside the complete
+     * windows. */
+    public ByteBuffer fetchbuf(String name) throws IOException {
+	synchronized(this) {
+	    Entry ent = index.get(name);
+	    if(ent == null) {
+		try(LockedFile lk = lock(true)) {
+		    sync();
+		}
+		ent = index.get(name);
+	    }
+	    if(ent != null) {
+		ent.atime = ++clock;
+		hits++;
+		return(get(ent));
+	    }
+	}
+	try {
+	    return(migrate(name));
+	} catch(FileNotFoundException e) {
+	    synchronized(this) {
+		misses++;
+	    }
+	    throw(e);
+	}
+    }
+
+    public InputStream fetch(String name) throws IOException {
+	return(new BufferInputStream(fetchbuf(name)));
+    }
+
+    public OutputStream store(String name) throws IOException {
+	return(new ByteArrayOutputStream() {
+		private boolean closed = false;
+
+		public void close() throws IOException {
+		    if(!closed) {
+			closed = true;
+			append(name, toByteArray(), 0);
+		    }
+		}
+	    });
+    }
+
+    public void remove(String name) throws IOException {
+	synchronized(this) {
+	    try(LockedFile lk = lock(true)) {
+		sync();
+	    }
+	    if(!index.containsKey(name))
+		throw(new FileNotFoundException(name));
+	}
+	append(name, new byte[0], F_DEL);
+    }
+
+    public Collection<String> names() {
+	synchronized(this) {
+	    return(new ArrayList<String>(index.keySet()));
+	}
+    }
+
+    private void checkcompact() {
+	synchronized(this) {
+	    long dead = scanned - HDRLEN - live;
+	    if(stale && (System.currentTimeMillis() >= nextpurge)) {
+		nextpurge = System.currentTimeMillis() + 10000;
+		try(LockedFile lk = lock(false)) {
+		    purge();
+		} catch(IOException e) {
+		}
+	    }
+	    if(compacting || (System.currentTimeMillis() < nextcompact))
+		return;
+	    if(((dead < COMPACTMIN) || (dead < live)) && (live <= budget))
+		return;
+	    compacting = true;
+	}
+	Thread th = new HackThread(() -> {
+		try {
+		    compact();
+		} catch(IOException e) {
+		    throw(new RuntimeException(e));
+		} finally {
+		    synchronized(PackCache.this) {
+			compacting = false;
+			nextcompact = System.currentTimeMillis() + 10000;
+		    }
+		}
+	}, "Cache compactor");
+	th.setDaemon(true);
+	th.start();
+    }
+
+    private static void copy(FileChannel from, long off, long len, FileChannel to, long pos) throws IOException {
+	long n = 0;
+	while(n < len)
+	    n += from.transferTo(off + n, len - n, to.position(pos + n));
+    }
+
+    /* Copies the live entries into a new generation in three steps:
+     * the index is snapshotted with this locked, the snapshotted
+     * entries are copied with neither this nor the pack locked, and
+     * whatever was appended meanwhile is copied with both locked,
+     * just before the new generation is made current. */
+    public void compact() throws IOException {
+	/* A JVM cannot hold overlapping locks of the generation even
+	 * when shared, so compactions by this process are serialized. */
+	synchronized(compactmon) {
+	    compact0();
+	}
+    }
+
+    private void compact0() throws IOException {
+	List<Entry> ents;
+	long gen0, end0;
+	int nev = 0;
+	long evb = 0;
+	FileChannel src;
+	LockedFile gl;
+	synchronized(this) {
+	    try(LockedFile lk = lock(true)) {
+		sync();
+		ents = new ArrayList<Entry>(index.values());
+		gen0 = gen;
+		end0 = scanned;
+		/* Taken while the pack is locked, so that the
+		 * generation cannot be purged in between. */
+		gl = genlock(true);
+		try {
+		    src = FileChannel.open(pack, READ);
+		} catch(IOException e) {
+		    gl.close();
+		    throw(e);
+		}
+	    }
+	    if(live > budget) {
+		/* Evict down to a bit below the budget, so as to not
+		 * compact again on the very next store. */
+		Collections.sort(ents, (a, b) -> (a.atime != b.atime) ? Long.compare(b.atime, a.atime) : Long.compare(b.off, a.off));
+		long keep = 0;
+		int n;
+		for(n = 0; n < ents.size(); n++) {
+		    if(keep + ents.get(n).reclen > (budget / 4) * 3)
+			break;
+		    keep += ents.get(n).reclen;
+		}
+		for(Entry ent : ents.subList(n, ents.size())) {
+		    nev++;
+		    evb += ent.dlen;
+		}
+		ents = new ArrayList<Entry>(ents.subList(0, n));
+	    }
+	}
+	Collections.sort(ents, (a, b) -> Long.compare(a.off, b.off));
+	Path npack = null;
+	boolean done = false;
+	try {
+	    long ng = gen0 + 1;
+	    FileChannel out;
+	    while(true) {
+		try {
+		    out = FileChannel.open(npack = packfile(ng), WRITE, CREATE_NEW);
+		    break;
+		} catch(FileAlreadyExistsException e) {
+		    ng++;
+		}
+	    }
+	    try {
+		long pos = HDRLEN;
+		for(Entry ent : ents) {
+		    copy(src, ent.off, ent.reclen, out, pos);
+		    pos += ent.reclen;
+		}
+		synchronized(this) {
+		    try(LockedFile lk = lock(false)) {
+			sync();
+			if(gen != gen0) {
+			    /* Another process compacted meanwhile. */
+			    return;
+			}
+			/* Records appended since the snapshot, including
+			 * deletions, are copied as they are, so that
+			 * they supersede the snapshotted ones as they
+			 * did before. */
+			copy(src, end0, scanned - end0, out, pos);
+			pos += scanned - end0;
+			writehdr(out, pos);
+			out.force(true);
+			out.close();
+			writegen(ng);
+			done = true;
+			Map<String, Long> atimes = new HashMap<String, Long>();
+			for(Map.Entry<String, Entry> ent : index.entrySet())
+			    atimes.put(ent.getKey(), ent.getValue().atime);
+			open(ng);
+			scan(readend());
+			for(Map.Entry<String, Entry> ent : index.entrySet())
+			    ent.getValue().atime = atimes.getOrDefault(ent.getKey(), 0L);
+			/* Only counted once the new generation is current. */
+			evicted += nev;
+			evbytes += evb;
+			compactions++;
+		    }
+		}
+	    } finally {
+		out.close();
+	    }
+	} finally {
+	    src.close();
+	    gl.close();
+	    if(!done && (npack != null))
+		Files.deleteIfExists(npack);
+	}
+	/* Purged only now that the old generation is no longer
+	 * being copied from. */
+	synchronized(this) {
+	    try(LockedFile lk = lock(false)) {
+		purge();
+	    }
+	}
+    }
+
+    public String stats() {
+	synchronized(this) {
+	    long n = hits + misses;
+	    return(String.format("%s: %d entries, %,d/%,d bytes live (%,d in pack), hit rate %.1f%% (%d/%d), %d stored, %d evicted (%,d bytes), %d compactions",
+				 this, index.size(), live, budget, scanned, (n == 0) ? 0.0 : (hits * 100.0) / n, hits, n,
+				 stores, evicted, evbytes, compactions));
+	}
+    }
+
+    static {
+	Console.setscmd("cachestat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    synchronized(current) {
+			for(PackCache cache : current.values())
+			    cons.out.println(cache.stats());
+		    }
+		}
+	    });
+    }
+
+    public String toString() {
+	return("PackCache(" + pack + ")");
+    }
+
+    public static void main(String[] args) throws Exception {
+	if((args.length < 3) || !args[0].equals("bench")) {
+	    System.err.println("usage: PackCache bench {file|pack} LIST [CACHE-ID]");
+	    System.err.println("Drop the OS page cache beforehand to measure cold starts.");
+	    System.exit(1);
+	}
+	URI id = Utils.uri("urn:haven-cache:" + ((args.length > 3) ? args[3] : "default"));
+	long st = System.nanoTime();
+	ResCache cache = args[1].equals("pack") ? get(id) : BaseFileCache.get(id);
+	long ot = System.nanoTime();
+	int n = 0, miss = 0;
+	long bytes = 0;
+	byte[] buf = new byte[65536];
+	try(BufferedReader in = Files.newBufferedReader(Utils.path(args[2]), Utils.utf8)) {
+	    for(String ln = in.readLine(); ln != null; ln = in.readLine()) {
+		int p = ln.indexOf(':');
+		String nm = "res/" + ((p < 0) ? ln : ln.substring(0, p));
+		try(InputStream fp = cache.fetch(nm)) {
+		    for(int rv = fp.read(buf); rv >= 0; rv = fp.read(buf))
+			bytes += rv;
+		    n++;
+		} catch(FileNotFoundException e) {
+		    miss++;
+		}
+	    }
+	}
+	long et = System.nanoTime();
+	System.out.printf("%s: open %.1f ms, %d fetched (%d missing), %,d bytes in %.1f ms\n",
+			  cache, (ot - st) * 1e-6, n, miss, bytes, (et - ot) * 1e-6);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.nio.*;
+import static haven.MCache.tilesz;
+
+/* Finds what lies under a point on the screen by casting a ray
+ * through the scene on the CPU, instead of drawing it in flat colours
+ * and reading pixels back. All hits are given as a fraction along the
+ * segment from the near to the far clip plane, so that hits found in
+ * different spaces can be compared. */
+public class Picker {
+    public final Coord3f s, e;
+
+    public Picker(Coord3f s, Coord3f e) {
+	this.s = s;
+	this.e = e;
+    }
+
+    private static Coord3f unproject(Matrix4f inv, float x, float y, float z) {
+	float[] h = inv.mul4(new float[] {x, y, z, 1});
+	return(new Coord3f(h[0] / h[3], h[1] / h[3], h[2] / h[3]));
+    }
+
+    /* @clip is the product of the projection and view matrices, and
+     * @c is a pixel in a view of size @sz. */
+    public static Picker unproject(Matrix4f clip, Coord sz, Coord c) {
+	Matrix4f inv = clip.invert();
+	float x = (((c.x + 0.5f) * 2) / sz.x) - 1;
+	float y = 1 - (((c.y + 0.5f) * 2) / sz.y);
+	return(new Picker(unproject(inv, x, y, -1), unproject(inv, x, y, 1)));
+    }
+
+    public Coord3f at(float t) {
+	return(new Coord3f(s.x + ((e.x - s.x) * t), s.y + ((e.y - s.y) * t), s.z + ((e.z - s.z) * t)));
+    }
+
+    /* Two-sided ray/triangle intersection (Moller-Trumbore), giving
+     * the hit fraction along o + d*t in [0, 1], or -1. */
+    private static float tri(float ox, float oy, float oz, float dx, float dy, float dz,
+			     float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
+	float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+	float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+	float px = (dy * e2z) - (dz * e2y), py = (dz * e2x) - (dx * e2z), pz = (dx * e2y) - (dy * e2x);
+	float det = (e1x * px) + (e1y * py) + (e1z * pz);
+	if((det > -1e-9f) && (det < 1e-9f))
+	    return(-1);
+	float id = 1 / det;
+	float sx = ox - ax, sy = oy - ay, sz = oz - az;
+	float u = ((sx * px) + (sy * py) + (sz * pz)) * id;
+	if((u < 0) || (u > 1))
+	    return(-1);
+	float qx = (sy * e1z) - (sz * e1y), qy = (sz * e1x) - (sx * e1z), qz = (sx * e1y) - (sy * e1x);
+	float v = ((dx * qx) + (dy * qy) + (dz * qz)) * id;
+	if((v < 0) || (u + v > 1))
+	    return(-1);
+	float t = ((e2x * qx) + (e2y * qy) + (e2z * qz)) * id;
+	if((t < 0) || (t > 1))
+	    return(-1);
+	return(t);
+    }
+
+    /* Clips [t0, t1] of o + d*t to the slab [lo, hi) along one axis. */
+    private static boolean slab(float o, float d, float lo, float hi, float[] t) {
+	if(d == 0)
+	    return((o >= lo) && (o < hi));
+	float a = (lo - o) / d, b = (hi - o) / d;
+	if(a > b) {float x = a; a = b; b = x;}
+	if(a > t[0]) t[0] = a;
+	if(b < t[1]) t[1] = b;
+	return(t[0] <= t[1]);
+    }
+
+    public static class MapHit {
+	public final float t;
+	/* In the same units as MapView.checkmapclick. */
+	public final Coord mc;
+
+	public MapHit(float t, Coord mc) {
+	    this.t = t;
+	    this.mc = mc;
+	}
+    }
+
+    /* Intersects the tile with the two triangles MapMesh.splitquad
+     * would make of it, with the map's Y axis rather than the
+     * renderer's. */
+    private static float tile(MCache map, int tx, int ty, float ox, float oy, float oz, float dx, float dy, float dz) {
+	float z1 = map.getz(tx, ty), z2 = map.getz(tx, ty + 1), z3 = map.getz(tx + 1, ty + 1), z4 = map.getz(tx + 1, ty);
+	float x0 = tx * tilesz.x, y0 = ty * tilesz.y, x1 = x0 + tilesz.x, y1 = y0 + tilesz.y;
+	float a, b;
+	if(Math.abs(z1 - z3) > Math.abs(z2 - z4)) {
+	    a = tri(ox, oy, oz, dx, dy, dz, x0, y0, z1, x0, y1, z2, x1, y1, z3);
+	    b = tri(ox, oy, oz, dx, dy, dz, x0, y0, z1, x1, y1, z3, x1, y0, z4);
+	} else {
+	    a = tri(ox, oy, oz, dx, dy, dz, x0, y0, z1, x0, y1, z2, x1, y0, z4);
+	    b = tri(ox, oy, oz, dx, dy, dz, x0, y1, z2, x1, y1, z3, x1, y0, z4);
+	}
+	if(a < 0)
+	    return(b);
+	if(b < 0)
+	    return(a);
+	return(Math.min(a, b));
+    }
+
+    /* Finds the first tile in [ul, br) that the ray hits, by walking
+     * the tiles under it in order. Tiles that are not loaded are not
+     * drawn, and so are passed through. */
+    public MapHit map(MCache map, Coord ul, Coord br) {
+	float ox = s.x, oy = -s.y, oz = s.z;
+	float dx = e.x - s.x, dy = -(e.y - s.y), dz = e.z - s.z;
+	float[] tr = {0, 1};
+	if(!slab(ox, dx, ul.x * tilesz.x, br.x * tilesz.x, tr) || !slab(oy, dy, ul.y * tilesz.y, br.y * tilesz.y, tr))
+	    return(null);
+	int tx = Utils.clip(Utils.floordiv(ox + (dx * tr[0]), tilesz.x), ul.x, br.x - 1);
+	int ty = Utils.clip(Utils.floordiv(oy + (dy * tr[0]), tilesz.y), ul.y, br.y - 1);
+	int sx = (dx > 0) ? 1 : -1, sy = (dy > 0) ? 1 : -1;
+	float nx = (dx == 0) ? Float.POSITIVE_INFINITY : ((((tx + ((dx > 0) ? 1 : 0)) * tilesz.x) - ox) / dx);
+	float ny = (dy == 0) ? Float.POSITIVE_INFINITY : ((((ty + ((dy > 0) ? 1 : 0)) * tilesz.y) - oy) / dy);
+	float ix = (dx == 0) ? 0 : Math.abs(tilesz.x / dx), iy = (dy == 0) ? 0 : Math.abs(tilesz.y / dy);
+	while(true) {
+	    float t;
+	    try {
+		t = tile(map, tx, ty, ox, oy, oz, dx, dy, dz);
+	    } catch(Loading l) {
+		t = -1;
+	    }
+	    if(t >= 0) {
+		int px = Utils.clip((int)Math.floor(ox + (dx * t)) - (tx * tilesz.x), 0, tilesz.x - 1);
+		int py = Utils.clip((int)Math.floor(oy + (dy * t)) - (ty * tilesz.y), 0, tilesz.y - 1);
+		return(new MapHit(t, new Coord((tx * tilesz.x) + px, (ty * tilesz.y) + py)));
+	    }
+	    if(nx < ny) {
+		if(nx > tr[1])
+		    break;
+		tx += sx;
+		nx += ix;
+		if((tx < ul.x) || (tx >= br.x))
+		    break;
+	    } else {
+		if(ny > tr[1])
+		    break;
+		ty += sy;
+		ny += iy;
+		if((ty < ul.y) || (ty >= br.y))
+		    break;
+	    }
+	}
+	return(null);
+    }
+
+    /* Whether the flat image of a renderable is known without
+     * drawing it. */
+    public static boolean known(Rendered r) {
+	return((r instanceof FastMesh) || (r instanceof FRendered.Meshed) || !(r instanceof FRendered));
+    }
+
+    /* The mesh that a flat renderable draws, if any. */
+    public static FastMesh flatmesh(Rendered r) {
+	if(r instanceof FastMesh)
+	    return((FastMesh)r);
+	if(r instanceof FRendered.Meshed)
+	    return(((FRendered.Meshed)r).flatmesh());
+	return(null);
+    }
+
+    /* Intersects the ray with a mesh drawn with the model matrix
+     * @xf, giving the nearest hit or -1. */
+    public float mesh(Matrix4f xf, FastMesh m) {
+	Matrix4f inv = xf.invert();
+	Coord3f ms = inv.mul4(s), me = inv.mul4(e);
+	float ox = ms.x, oy = ms.y, oz = ms.z;
+	float dx = me.x - ox, dy = me.y - oy, dz = me.z - oz;
+	if(!(m instanceof MorphedMesh)) {
+	    /* The cached bounds of morphed meshes are those of whatever
+	     * pose they were first computed for. */
+	    Coord3f nb = m.nbounds(), pb = m.pbounds();
+	    if(nb == null)
+		return(-1);
+	    float[] tr = {0, 1};
+	    if(!slab(ox, dx, nb.x, Math.nextUp(pb.x), tr) ||
+	       !slab(oy, dy, nb.y, Math.nextUp(pb.y), tr) ||
+	       !slab(oz, dz, nb.z, Math.nextUp(pb.z), tr))
+		return(-1);
+	}
+	VertexBuf.VertexArray va = m.vert.buf(VertexBuf.VertexArray.class);
+	if(va == null)
+	    return(-1);
+	FloatBuffer v = va.data;
+	ShortBuffer ind = m.indb;
+	float ret = -1;
+	for(int i = 0, n = m.num * 3; i < n; i += 3) {
+	    int a = (ind.get(i) & 0xffff) * 3, b = (ind.get(i + 1) & 0xffff) * 3, c = (ind.get(i + 2) & 0xffff) * 3;
+	    float t = tri(ox, oy, oz, dx, dy, dz,
+			  v.get(a), v.get(a + 1), v.get(a + 2),
+			  v.get(b), v.get(b + 1), v.get(b + 2),
+			  v.get(c), v.get(c + 1), v.get(c + 2));
+	    if((t >= 0) && ((ret < 0) || (t < ret)))
+		ret = t;
+	}
+	return(ret);
+    }
+
+    private static FastMesh box(float w, float h) {
+	float[] v = new float[8 * 3];
+	for(int i = 0; i < 8; i++) {
+	    v[(i * 3) + 0] = ((i & 1) == 0) ? -w : w;
+	    v[(i * 3) + 1] = ((i & 2) == 0) ? -w : w;
+	    v[(i * 3) + 2] = ((i & 4) == 0) ? 0 : h;
+	}
+	short[] ind = {0, 2, 3, 0, 3, 1, 4, 5, 7, 4, 7, 6, 0, 1, 5, 0, 5, 4,
+		       2, 6, 7, 2, 7, 3, 0, 4, 6, 0, 6, 2, 1, 3, 7, 1, 7, 5};
+	return(new FastMesh(new VertexBuf(new VertexBuf.VertexArray(Utils.bufcp(v))), ind));
+    }
+
+    /* Checks map picks against testing every tile, and times map
+     * and mesh picks. */
+    public static void main(String[] args) throws Exception {
+	int n = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+	MCache map = new MCache(null);
+	Random rnd = new Random(1);
+	map.synthgrids();
+	for(int y = -1; y <= 1; y++) {
+	    for(int x = -1; x <= 1; x++) {
+		MCache.Grid g = map.getgrid(new Coord(x, y));
+		for(int ty = 0; ty < MCache.cmaps.y; ty++) {
+		    for(int tx = 0; tx < MCache.cmaps.x; tx++) {
+			double ax = (tx + (x * MCache.cmaps.x)) / 10.0, ay = (ty + (y * MCache.cmaps.y)) / 13.0;
+			g.z[tx + (ty * MCache.cmaps.x)] = (int)((Math.sin(ax) * Math.cos(ay) * 40) + rnd.nextInt(8));
+		    }
+		}
+	    }
+	}
+	Coord ul = MCache.cmaps.mul(-1), br = MCache.cmaps.mul(2).sub(1, 1);
+	Coord gsz = MCache.cmaps.mul(tilesz);
+	Coord sz = new Coord(800, 600);
+	Matrix4f view = PointedCam.compute(new Coord3f(gsz.x / 2, -gsz.y / 2, 15), 500, (float)Math.PI / 6, -(float)Math.PI / 4);
+	Matrix4f[] projs = {
+	    Projection.makefrustum(new Matrix4f(), -0.5f, 0.5f, -0.375f, 0.375f, 1, 5000),
+	    Projection.makeortho(new Matrix4f(), -200, 200, -150, 150, 1, 5000),
+	};
+	FastMesh box = box(5, 20);
+	List<Matrix4f> gobs = new ArrayList<Matrix4f>();
+	for(int i = 0; i < 2000; i++) {
+	    float x = rnd.nextInt((gsz.x * 3) - tilesz.x) - gsz.x, y = rnd.nextInt((gsz.y * 3) - tilesz.y) - gsz.y;
+	    gobs.add(Transform.makexlate(new Matrix4f(), new Coord3f(x, -y, map.getcz(x, y))));
+	}
+	for(Matrix4f proj : projs) {
+	    Matrix4f clip = proj.mul(view);
+	    int bad = 0, hits = 0;
+	    for(int i = 0; i < 200; i++) {
+		Picker ray = unproject(clip, sz, new Coord(rnd.nextInt(sz.x), rnd.nextInt(sz.y)));
+		MapHit h = ray.map(map, ul, br);
+		float bt = -1;
+		int bx = 0, by = 0;
+		for(int ty = ul.y; ty < br.y; ty++) {
+		    for(int tx = ul.x; tx < br.x; tx++) {
+			float t = tile(map, tx, ty, ray.s.x, -ray.s.y, ray.s.z, ray.e.x - ray.s.x, ray.s.y - ray.e.y, ray.e.z - ray.s.z);
+			if((t >= 0) && ((bt < 0) || (t < bt))) {
+			    bt = t;
+			    bx = tx;
+			    by = ty;
+			}
+		    }
+		}
+		if(h != null)
+		    hits++;
+		if((h == null) ? (bt >= 0) : ((bt < 0) || (h.mc.div(tilesz).x != bx) || (h.mc.div(tilesz).y != by)))
+		    bad++;
+	    }
+	    System.out.printf("%d/200 rays hit the map, %d differ from exhaustive search%n", hits, bad);
+	    int seen = 0, missed = 0;
+	    for(Matrix4f xf : gobs) {
+		float[] c = clip.mul(xf).mul4(new float[] {0, 0, 10, 1});
+		float x = c[0] / c[3], y = c[1] / c[3];
+		if((x < -1) || (x > 1) || (y < -1) || (y > 1))
+		    continue;
+		seen++;
+		Coord pc = new Coord((int)(((x + 1) / 2) * sz.x), (int)(((1 - y) / 2) * sz.y));
+		if(unproject(clip, sz, pc).mesh(xf, box) < 0)
+		    missed++;
+	    }
+	    System.out.printf("%d meshes in view, %d missed through their centres%n", seen, missed);
+	    for(int round = 0; round < 3; round++) {
+		long st = System.nanoTime();
+		int mh = 0, gh = 0;
+		for(int i = 0; i < n; i++) {
+		    Picker ray = unproject(clip, sz, new Coord(rnd.nextInt(sz.x), rnd.nextInt(sz.y)));
+		    if(ray.map(map, ul, br) != null)
+			mh++;
+		}
+		long t1 = System.nanoTime();
+		for(int i = 0; i < n / 10; i++) {
+		    Picker ray = unproject(clip, sz, new Coord(rnd.nextInt(sz.x), rnd.nextInt(sz.y)));
+		    for(Matrix4f xf : gobs) {
+			if(ray.mesh(xf, box) >= 0)
+			    gh++;
+		    }
+		}
+		long t2 = System.nanoTime();
+		System.out.printf("map: %.1f us/pick (%d), %d meshes: %.1f us/pick (%d)%n",
+				  (t1 - st) / (n * 1e3), mh, gobs.size(), (t2 - t1) / ((n / 10) * 1e3), gh);
+	    }
+	}
+    }
+}
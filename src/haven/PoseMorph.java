@@ -26,19 +26,23 @@
 
 package haven;
 
+import java.util.*;
+import java.util.concurrent.*;
 import java.nio.*;
+import java.lang.ref.*;
 import haven.MorphedMesh.Morpher;
 import haven.MorphedMesh.MorphedBuf;
 import haven.Skeleton.Pose;
 
 public class PoseMorph implements Morpher.Factory {
     public final Pose pose;
-    private float[][] offs;
+    private final float[] offs, boff = new float[16];
+    private long sig;
     private int seq = -1;
 
     public PoseMorph(Pose pose) {
 	this.pose = pose;
-	offs = new float[pose.skel().blist.length][16];
+	offs = new float[pose.skel().blist.length * 16];
     }
 
     public static boolean boned(FastMesh mesh) {
@@ -76,8 +80,15 @@ public class PoseMorph implements Morpher.Factory {
 	if(seq == pose.seq)
 	    return;
 	seq = pose.seq;
-	for(int i = 0; i < offs.length; i++)
-	    pose.boneoff(i, offs[i]);
+	long sig = 0;
+	for(int i = 0, o = 0; o < offs.length; i++) {
+	    pose.boneoff(i, boff);
+	    for(int u = 0; u < 16; u++, o++) {
+		offs[o] = boff[u];
+		sig = (sig * 31) + Float.floatToIntBits(boff[u]);
+	    }
+	}
+	this.sig = sig;
     }
 
     public static class BoneArray extends VertexBuf.IntArray {
@@ -97,6 +108,203 @@ public class PoseMorph implements Morpher.Factory {
 	}
     }
 
+    private static float[] array(FloatBuffer buf) {
+	float[] ret = new float[buf.capacity()];
+	((FloatBuffer)buf.duplicate().rewind()).get(ret, 0, ret.length);
+	return(ret);
+    }
+
+    private static class Skinned {
+	long sig;
+	final float[] offs, pos, nrm;
+	/* Number of morphers currently using this result; guarded by
+	 * the skin. Morphers that are dropped without updating again
+	 * are never subtracted, which only keeps the result from
+	 * being refilled. */
+	int refs = 1;
+
+	Skinned(long sig, float[] offs, float[] pos, float[] nrm) {
+	    this.sig = sig;
+	    this.offs = offs;
+	    this.pos = pos;
+	    this.nrm = nrm;
+	}
+    }
+
+    /* The source data of a vertex buffer, with its bones translated
+     * for one skeleton, as arrays. Since every mesh made from the same
+     * buffer and skeleton is skinned alike for the same bone offsets,
+     * results are shared between the morphers using them. Only the
+     * morphers hold them strongly, so a result lives no longer than
+     * the last morpher showing it, and a morpher whose result is not
+     * shared refills it in place for its next pose. */
+    private static class Skin {
+	final int num, apv;
+	final float[] pos, nrm, wl;
+	final int[] bl;
+	final Map<Long, WeakReference<Skinned>> recent = new HashMap<Long, WeakReference<Skinned>>();
+	int purgeat = 16;
+	int nskinned = 0, nshared = 0, nreused = 0;
+
+	Skin(VertexBuf from, int[] bl, int apv) {
+	    this.num = from.num;
+	    this.apv = apv;
+	    this.pos = array(from.buf(VertexBuf.VertexArray.class).data);
+	    this.nrm = array(from.buf(VertexBuf.NormalArray.class).data);
+	    this.wl = array(from.buf(WeightArray.class).data);
+	    this.bl = bl;
+	}
+
+	void skin(float[] offs, float[] npos, float[] nnrm, int from, int to) {
+	    int apv = this.apv;
+	    float[] pos = this.pos, nrm = this.nrm, wl = this.wl;
+	    int[] bl = this.bl;
+	    for(int i = from, vo = from * 3, ao = from * apv; i < to; i++, vo += 3, ao += apv) {
+		float opx = pos[vo], opy = pos[vo + 1], opz = pos[vo + 2];
+		float onx = nrm[vo], ony = nrm[vo + 1], onz = nrm[vo + 2];
+		float npx = 0, npy = 0, npz = 0, nnx = 0, nny = 0, nnz = 0;
+		float rw = 1;
+		for(int o = 0; o < apv; o++) {
+		    int bi = bl[ao + o];
+		    if(bi < 0)
+			break;
+		    float bw = wl[ao + o];
+		    int x = bi * 16;
+		    npx += ((offs[x + 0] * opx) + (offs[x + 4] * opy) + (offs[x +  8] * opz) + offs[x + 12]) * bw;
+		    npy += ((offs[x + 1] * opx) + (offs[x + 5] * opy) + (offs[x +  9] * opz) + offs[x + 13]) * bw;
+		    npz += ((offs[x + 2] * opx) + (offs[x + 6] * opy) + (offs[x + 10] * opz) + offs[x + 14]) * bw;
+		    nnx += ((offs[x + 0] * onx) + (offs[x + 4] * ony) + (offs[x +  8] * onz)) * bw;
+		    nny += ((offs[x + 1] * onx) + (offs[x + 5] * ony) + (offs[x +  9] * onz)) * bw;
+		    nnz += ((offs[x + 2] * onx) + (offs[x + 6] * ony) + (offs[x + 10] * onz)) * bw;
+		    rw -= bw;
+		}
+		npos[vo] = npx + (opx * rw); npos[vo + 1] = npy + (opy * rw); npos[vo + 2] = npz + (opz * rw);
+		nnrm[vo] = nnx + (onx * rw); nnrm[vo + 1] = nny + (ony * rw); nnrm[vo + 2] = nnz + (onz * rw);
+	    }
+	}
+
+	/* Returns the result for the given offsets on behalf of a
+	 * morpher, which gives up its previous result, prev. */
+	Skinned get(Skinned prev, long sig, float[] offs) {
+	    Skinned reuse = null;
+	    synchronized(this) {
+		WeakReference<Skinned> ref = recent.get(sig);
+		Skinned r = (ref == null) ? null : ref.get();
+		if((r != null) && Arrays.equals(r.offs, offs)) {
+		    if(r != prev) {
+			r.refs++;
+			if(prev != null)
+			    prev.refs--;
+			nshared++;
+		    }
+		    return(r);
+		}
+		if(prev != null) {
+		    if(prev.refs == 1) {
+			/* Unpublish it first, so that no one else can
+			 * take it up while it is being refilled. */
+			ref = recent.get(prev.sig);
+			if((ref != null) && (ref.get() == prev))
+			    recent.remove(prev.sig);
+			reuse = prev;
+		    } else {
+			prev.refs--;
+		    }
+		}
+	    }
+	    Skinned ret;
+	    if(reuse != null) {
+		ret = reuse;
+		ret.sig = sig;
+		System.arraycopy(offs, 0, ret.offs, 0, offs.length);
+	    } else {
+		ret = new Skinned(sig, offs.clone(), new float[pos.length], new float[nrm.length]);
+	    }
+	    if(num >= grain * 2)
+		ForkJoinPool.commonPool().invoke(new Task(this, ret.offs, ret.pos, ret.nrm, 0, num));
+	    else
+		skin(ret.offs, ret.pos, ret.nrm, 0, num);
+	    synchronized(this) {
+		recent.put(sig, new WeakReference<Skinned>(ret));
+		if(recent.size() > purgeat) {
+		    for(Iterator<WeakReference<Skinned>> i = recent.values().iterator(); i.hasNext();) {
+			if(i.next().get() == null)
+			    i.remove();
+		    }
+		    purgeat = Math.max(16, recent.size() * 2);
+		}
+		nskinned++;
+		if(reuse != null)
+		    nreused++;
+	    }
+	    return(ret);
+	}
+    }
+
+    private static final int grain = 1024;
+    private static class Task extends RecursiveAction {
+	final Skin skin;
+	final float[] offs, npos, nnrm;
+	final int from, to;
+
+	Task(Skin skin, float[] offs, float[] npos, float[] nnrm, int from, int to) {
+	    this.skin = skin;
+	    this.offs = offs;
+	    this.npos = npos;
+	    this.nnrm = nnrm;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	protected void compute() {
+	    if(to - from <= grain) {
+		skin.skin(offs, npos, nnrm, from, to);
+	    } else {
+		int mid = (from + to) >>> 1;
+		invokeAll(new Task(skin, offs, npos, nnrm, from, mid), new Task(skin, offs, npos, nnrm, mid, to));
+	    }
+	}
+    }
+
+    private static final Map<VertexBuf, Map<Skeleton, Skin>> skins = new WeakHashMap<VertexBuf, Map<Skeleton, Skin>>();
+    private static Skin skin(VertexBuf from, Skeleton skel, BoneArray nb) {
+	synchronized(skins) {
+	    Map<Skeleton, Skin> sm = skins.get(from);
+	    if(sm == null)
+		skins.put(from, sm = new HashMap<Skeleton, Skin>());
+	    Skin ret = sm.get(skel);
+	    if(ret == null) {
+		int[] bl = new int[nb.data.capacity()];
+		nb.data.duplicate().get(bl, 0, bl.length);
+		sm.put(skel, ret = new Skin(from, bl, nb.n));
+	    }
+	    return(ret);
+	}
+    }
+
+    public static String stats() {
+	int n = 0, skinned = 0, shared = 0, reused = 0;
+	synchronized(skins) {
+	    for(Map<Skeleton, Skin> sm : skins.values()) {
+		for(Skin skin : sm.values()) {
+		    synchronized(skin) {
+			n++;
+			skinned += skin.nskinned;
+			shared += skin.nshared;
+			reused += skin.nreused;
+		    }
+		}
+	    }
+	}
+	return(String.format("%d skins, %d skinned (%d in place), %d shared", n, skinned, reused, shared));
+    }
+
+    private static void put(FloatBuffer dst, float[] src) {
+	dst.rewind();
+	dst.put(src, 0, src.length);
+	dst.rewind();
+    }
+
     public Morpher create(final MorphedBuf vb) {
 	BoneArray ob = vb.from.buf(BoneArray.class);
 	BoneArray nb = vb.buf(BoneArray.class);
@@ -113,17 +321,35 @@ public class PoseMorph implements Morpher.Factory {
 	    else
 		nb.data.put(i, xl[ob.data.get(i)]);
 	}
+	final Skin skin = skin(vb.from, pose.skel(), nb);
+	final FloatBuffer opos = vb.from.buf(VertexBuf.VertexArray.class).data, onrm = vb.from.buf(VertexBuf.NormalArray.class).data;
 	return(new Morpher() {
 		private int pseq = -1;
+		private Skinned cur = null;
+		private boolean fresh = false;
+
 		public boolean update() {
 		    if(pseq == pose.seq)
 			return(false);
 		    PoseMorph.this.update();
 		    pseq = pose.seq;
+		    fresh = false;
 		    return(true);
 		}
 
+		private Skinned cur() {
+		    if(!fresh) {
+			cur = skin.get(cur, sig, offs);
+			fresh = true;
+		    }
+		    return(cur);
+		}
+
 		public void morphp(FloatBuffer dst, FloatBuffer src) {
+		    if(src == opos) {
+			put(dst, cur().pos);
+			return;
+		    }
 		    BoneArray ba = vb.buf(BoneArray.class);
 		    int apv = ba.n;
 		    IntBuffer bl = ba.data;
@@ -138,10 +364,10 @@ public class PoseMorph implements Morpher.Factory {
 			    if(bi < 0)
 				break;
 			    float bw = wl.get(ao + o);
-			    float[] xf = offs[bi];
-			    npx += ((xf[ 0] * opx) + (xf[ 4] * opy) + (xf[ 8] * opz) + xf[12]) * bw;
-			    npy += ((xf[ 1] * opx) + (xf[ 5] * opy) + (xf[ 9] * opz) + xf[13]) * bw;
-			    npz += ((xf[ 2] * opx) + (xf[ 6] * opy) + (xf[10] * opz) + xf[14]) * bw;
+			    int x = bi * 16;
+			    npx += ((offs[x + 0] * opx) + (offs[x + 4] * opy) + (offs[x +  8] * opz) + offs[x + 12]) * bw;
+			    npy += ((offs[x + 1] * opx) + (offs[x + 5] * opy) + (offs[x +  9] * opz) + offs[x + 13]) * bw;
+			    npz += ((offs[x + 2] * opx) + (offs[x + 6] * opy) + (offs[x + 10] * opz) + offs[x + 14]) * bw;
 			    rw -= bw;
 			}
 			npx += opx * rw; npy += opy * rw; npz += opz * rw;
@@ -152,6 +378,10 @@ public class PoseMorph implements Morpher.Factory {
 		}
 
 		public void morphd(FloatBuffer dst, FloatBuffer src) {
+		    if(src == onrm) {
+			put(dst, cur().nrm);
+			return;
+		    }
 		    BoneArray ba = vb.buf(BoneArray.class);
 		    int apv = ba.n;
 		    IntBuffer bl = ba.data;
@@ -166,10 +396,10 @@ public class PoseMorph implements Morpher.Factory {
 			    if(bi < 0)
 				break;
 			    float bw = wl.get(ao + o);
-			    float[] xf = offs[bi];
-			    nnx += ((xf[ 0] * onx) + (xf[ 4] * ony) + (xf[ 8] * onz)) * bw;
-			    nny += ((xf[ 1] * onx) + (xf[ 5] * ony) + (xf[ 9] * onz)) * bw;
-			    nnz += ((xf[ 2] * onx) + (xf[ 6] * ony) + (xf[10] * onz)) * bw;
+			    int x = bi * 16;
+			    nnx += ((offs[x + 0] * onx) + (offs[x + 4] * ony) + (offs[x +  8] * onz)) * bw;
+			    nny += ((offs[x + 1] * onx) + (offs[x + 5] * ony) + (offs[x +  9] * onz)) * bw;
+			    nnz += ((offs[x + 2] * onx) + (offs[x + 6] * ony) + (offs[x + 10] * onz)) * bw;
 			    rw -= bw;
 			}
 			nnx += onx * rw; nny += ony * rw; nnz += onz * rw;
@@ -180,4 +410,99 @@ public class PoseMorph implements Morpher.Factory {
 		}
 	    });
     }
+
+    /* Updates @n meshes of @nv vertices each per frame, posed in
+     * @np different ways, comparing the buffer-based loop with the
+     * shared array-based one. */
+    public static void main(String[] args) throws Exception {
+	int n = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+	int np = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+	int nv = (args.length > 2) ? Integer.parseInt(args[2]) : 3000;
+	int nb = 40, apv = 2;
+	Random rnd = new Random(1);
+	List<Skeleton.Bone> bones = new ArrayList<Skeleton.Bone>();
+	for(int i = 0; i < nb; i++) {
+	    Skeleton.Bone b = new Skeleton.Bone("b" + i, new Coord3f(0, 0, 1), new Coord3f(1, 0, 0), 0);
+	    if(i > 0)
+		b.parent = bones.get(rnd.nextInt(i));
+	    bones.add(b);
+	}
+	Skeleton skel = new Skeleton(bones);
+	float[] pos = new float[nv * 3], nrm = new float[nv * 3], wl = new float[nv * apv];
+	int[] bl = new int[nv * apv];
+	for(int i = 0; i < nv; i++) {
+	    for(int o = 0; o < 3; o++) {
+		pos[(i * 3) + o] = rnd.nextFloat() * 10;
+		nrm[(i * 3) + o] = rnd.nextFloat();
+	    }
+	    float w = rnd.nextFloat();
+	    bl[(i * apv) + 0] = rnd.nextInt(nb); wl[(i * apv) + 0] = w;
+	    bl[(i * apv) + 1] = rnd.nextInt(nb); wl[(i * apv) + 1] = 1 - w;
+	}
+	String[] names = new String[nb];
+	for(int i = 0; i < nb; i++)
+	    names[i] = "b" + i;
+	IntBuffer bb = Utils.mkibuf(bl.length);
+	bb.put(bl).rewind();
+	FastMesh mesh = new FastMesh(new VertexBuf(new VertexBuf.VertexArray(Utils.bufcp(pos)), new VertexBuf.NormalArray(Utils.bufcp(nrm)),
+						   new BoneArray(apv, bb, names), new WeightArray(apv, Utils.bufcp(wl))),
+				     new short[] {0, 1, 2});
+	Pose[] poses = new Pose[np];
+	for(int i = 0; i < np; i++)
+	    poses[i] = skel.new Pose(skel.bindpose);
+	MorphedMesh[] meshes = new MorphedMesh[n];
+	Morpher[] morphs = new Morpher[n];
+	for(int i = 0; i < n; i++) {
+	    final Morpher[] m = {null};
+	    final PoseMorph pm = new PoseMorph(poses[i % np]);
+	    meshes[i] = new MorphedMesh(mesh, new Morpher.Factory() {
+		    public Morpher create(MorphedBuf vb) {
+			return(m[0] = pm.create(vb));
+		    }
+		});
+	    morphs[i] = m[0];
+	}
+	for(int round = 0; round < 6; round++) {
+	    boolean old = (round % 2) == 0;
+	    long tt = 0;
+	    int frames = 20;
+	    for(int f = 0; f < frames; f++) {
+		for(int i = 0; i < np; i++) {
+		    Pose p = poses[i];
+		    for(int b = 0; b < nb; b++) {
+			double a = (f * 0.01) + b + i;
+			p.lrot[b][0] = (float)Math.cos(a);
+			p.lrot[b][1] = (float)Math.sin(a);
+			p.lrot[b][2] = p.lrot[b][3] = 0;
+		    }
+		    p.gbuild();
+		}
+		long st = System.nanoTime();
+		for(int i = 0; i < n; i++) {
+		    MorphedBuf vb = (MorphedBuf)meshes[i].vert;
+		    Morpher m = morphs[i];
+		    m.update();
+		    FloatBuffer opos = vb.from.buf(VertexBuf.VertexArray.class).data, onrm = vb.from.buf(VertexBuf.NormalArray.class).data;
+		    if(old) {
+			m.morphp(vb.buf(VertexBuf.VertexArray.class).data, opos.duplicate());
+			m.morphd(vb.buf(VertexBuf.NormalArray.class).data, onrm.duplicate());
+		    } else {
+			m.morphp(vb.buf(VertexBuf.VertexArray.class).data, opos);
+			m.morphd(vb.buf(VertexBuf.NormalArray.class).data, onrm);
+		    }
+		}
+		tt += System.nanoTime() - st;
+	    }
+	    System.out.printf("%s: %.2f ms/frame%n", old ? "buffers" : "arrays", tt / (frames * 1e6));
+	}
+	/* Check that both ways agree. */
+	MorphedBuf vb = (MorphedBuf)meshes[0].vert;
+	FloatBuffer a = Utils.mkfbuf(nv * 3);
+	morphs[0].morphp(a, vb.from.buf(VertexBuf.VertexArray.class).data.duplicate());
+	morphs[0].morphp(vb.buf(VertexBuf.VertexArray.class).data, vb.from.buf(VertexBuf.VertexArray.class).data);
+	float md = 0;
+	for(int i = 0; i < nv * 3; i++)
+	    md = Math.max(md, Math.abs(a.get(i) - vb.buf(VertexBuf.VertexArray.class).data.get(i)));
+	System.out.printf("max difference %g; %s%n", md, stats());
+    }
 }
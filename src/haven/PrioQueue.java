@@ -28,37 +28,159 @@ package haven;
 
 import java.util.*;
 
-public class PrioQueue<E extends Prioritized> extends LinkedList<E> {
-    public E peek() {
-	E rv = null;
-	int mp = 0;
-	for(E e : this) {
-	    int ep = e.priority();
-	    if((rv == null) || (ep > mp)) {
-		mp = ep;
-		rv = e;
-	    }
+/* A binary max-heap ordered by Prioritized.priority(), with elements
+ * of equal priority returned in insertion order. Priorities are
+ * sampled when an element is added; if an element's priority
+ * changes while queued, update() must be called for it to take
+ * effect. */
+public class PrioQueue<E extends Prioritized> extends AbstractQueue<E> {
+    private final Map<E, Entry<E>> index = new IdentityHashMap<E, Entry<E>>();
+    @SuppressWarnings("unchecked")
+    private Entry<E>[] heap = (Entry<E>[])new Entry[16];
+    private int n = 0;
+    private long seq = 0;
+
+    private static class Entry<E> {
+	final E e;
+	final long seq;
+	int prio, idx;
+
+	Entry(E e, int prio, long seq) {
+	    this.e = e;
+	    this.prio = prio;
+	    this.seq = seq;
+	}
+
+	boolean before(Entry<E> o) {
+	    if(prio != o.prio)
+		return(prio > o.prio);
+	    return(seq < o.seq);
 	}
-	return(rv);
     }
-    
-    public E element() {
-	E rv;
-	if((rv = peek()) == null)
-	    throw(new NoSuchElementException());
-	return(rv);
+
+    private void set(int i, Entry<E> ent) {
+	heap[i] = ent;
+	ent.idx = i;
+    }
+
+    private void up(int i) {
+	Entry<E> ent = heap[i];
+	while(i > 0) {
+	    int p = (i - 1) >> 1;
+	    if(!ent.before(heap[p]))
+		break;
+	    set(i, heap[p]);
+	    i = p;
+	}
+	set(i, ent);
+    }
+
+    private void down(int i) {
+	Entry<E> ent = heap[i];
+	while(true) {
+	    int c = (i << 1) + 1;
+	    if(c >= n)
+		break;
+	    if((c + 1 < n) && heap[c + 1].before(heap[c]))
+		c++;
+	    if(!heap[c].before(ent))
+		break;
+	    set(i, heap[c]);
+	    i = c;
+	}
+	set(i, ent);
+    }
+
+    private void removeat(int i) {
+	index.remove(heap[i].e);
+	Entry<E> last = heap[--n];
+	heap[n] = null;
+	if(i < n) {
+	    set(i, last);
+	    down(i);
+	    up(last.idx);
+	}
+    }
+
+    public boolean offer(E e) {
+	if(e == null)
+	    throw(new NullPointerException());
+	if(index.containsKey(e)) {
+	    update(e);
+	    return(true);
+	}
+	if(n == heap.length)
+	    heap = Arrays.copyOf(heap, heap.length * 2);
+	Entry<E> ent = new Entry<E>(e, e.priority(), seq++);
+	index.put(e, ent);
+	set(n++, ent);
+	up(ent.idx);
+	return(true);
+    }
+
+    /* Re-samples the priority of a queued element and restores
+     * the heap order around it. Returns false if the element is
+     * not queued. */
+    public boolean update(E e) {
+	Entry<E> ent = index.get(e);
+	if(ent == null)
+	    return(false);
+	int op = ent.prio;
+	ent.prio = e.priority();
+	if(ent.prio > op)
+	    up(ent.idx);
+	else if(ent.prio < op)
+	    down(ent.idx);
+	return(true);
+    }
+
+    public E peek() {
+	return((n == 0) ? null : heap[0].e);
     }
-    
+
     public E poll() {
-	E rv = peek();
-	remove(rv);
+	if(n == 0)
+	    return(null);
+	E rv = heap[0].e;
+	removeat(0);
 	return(rv);
     }
-    
-    public E remove() {
-	E rv;
-	if((rv = poll()) == null)
-	    throw(new NoSuchElementException());
-	return(rv);
+
+    public boolean contains(Object o) {
+	return(index.containsKey(o));
+    }
+
+    public boolean remove(Object o) {
+	Entry<E> ent = index.get(o);
+	if(ent == null)
+	    return(false);
+	removeat(ent.idx);
+	return(true);
+    }
+
+    public void clear() {
+	Arrays.fill(heap, 0, n, null);
+	index.clear();
+	n = 0;
+    }
+
+    public int size() {
+	return(n);
+    }
+
+    public Iterator<E> iterator() {
+	return(new Iterator<E>() {
+		int i = 0;
+
+		public boolean hasNext() {
+		    return(i < n);
+		}
+
+		public E next() {
+		    if(i >= n)
+			throw(new NoSuchElementException());
+		    return(heap[i++].e);
+		}
+	    });
     }
 }
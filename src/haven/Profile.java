@@ -57,6 +57,7 @@ public class Profile {
     public class Frame {
 	public String nm[];
 	public long total, prt[];
+	public String info = null;
 	private List<Long> pw = new LinkedList<Long>();
 	private List<String> nw = new LinkedList<String>();
 	private long then, last;
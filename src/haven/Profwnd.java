@@ -68,8 +68,12 @@ public class Profwnd extends Window {
 	    Profile.Frame f = prof.hist[x];
 	    if(f != null) {
 		for(int i = 0; i < f.prt.length; i++) {
-		    if((t -= f.prt[i]) < 0)
-			return(String.format("%.2f ms, %s: %.2f ms", (((double)f.total) / 1000000), f.nm[i], (((double)f.prt[i]) / 1000000)));
+		    if((t -= f.prt[i]) < 0) {
+			String ret = String.format("%.2f ms, %s: %.2f ms", (((double)f.total) / 1000000), f.nm[i], (((double)f.prt[i]) / 1000000));
+			if(f.info != null)
+			    ret += " (" + f.info + ")";
+			return(ret);
+		    }
 		}
 	    }
 	}
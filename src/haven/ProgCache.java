@@ -0,0 +1,366 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.lang.reflect.*;
+import haven.glsl.ShaderMacro;
+
+/* Programs made only from shader macros that are reachable from
+ * static fields can be named, and are therefore shared between
+ * appliers and remembered between sessions. The combinations that
+ * have been used are kept in the resource cache, and are built in
+ * the background and linked a few per frame at startup, so that
+ * they are ready before they are first needed. */
+public class ProgCache {
+    public static final String cachename = "glsl/progs";
+    public static final int maxsaved = 512;
+    public static int warmrate = 2;
+    private static final Map<List<ShaderMacro>, Entry> progs = new HashMap<List<ShaderMacro>, Entry>();
+    private static final LinkedList<Entry> warm = new LinkedList<Entry>();
+    private static final Map<ShaderMacro, String> names = new WeakHashMap<ShaderMacro, String>();
+    private static boolean loaded = false, dirty = false;
+    private static long lastsave = 0;
+    private static int nloaded = 0, nwarmed = 0, nfailed = 0;
+
+    public static class Entry {
+	public final List<ShaderMacro> mods;
+	public final String[] names;
+	public final Defer.Future<ShaderMacro.Program> prog;
+	boolean used;
+
+	private Entry(List<ShaderMacro> mods, String[] names, boolean used) {
+	    this.mods = mods;
+	    this.names = names;
+	    this.prog = build(mods);
+	    this.used = used;
+	}
+    }
+
+    public static Defer.Future<ShaderMacro.Program> build(final Collection<ShaderMacro> mods) {
+	return(Defer.later(new Defer.Callable<ShaderMacro.Program>() {
+		    public ShaderMacro.Program call() {
+			return(ShaderMacro.Program.build(mods));
+		    }
+		}));
+    }
+
+    private static String path(Object v, ShaderMacro m, int depth) {
+	if(v == m)
+	    return("");
+	if(depth <= 0)
+	    return(null);
+	if(v instanceof GLState) {
+	    try {
+		v = ((GLState)v).shaders();
+	    } catch(RuntimeException e) {
+		return(null);
+	    }
+	}
+	if((v instanceof ShaderMacro[]) || (v instanceof ShaderMacro[][])) {
+	    Object[] a = (Object[])v;
+	    for(int i = 0; i < a.length; i++) {
+		String p = path(a[i], m, depth - 1);
+		if(p != null)
+		    return(":" + i + p);
+	    }
+	}
+	return(null);
+    }
+
+    private static String find(Class<?> cl, ShaderMacro m) {
+	if(cl.getClassLoader() != ProgCache.class.getClassLoader())
+	    return(null);
+	for(Field f : cl.getDeclaredFields()) {
+	    if(!Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive())
+		continue;
+	    Object v;
+	    try {
+		f.setAccessible(true);
+		v = f.get(null);
+	    } catch(Exception e) {
+		continue;
+	    }
+	    String p = path(v, m, 2);
+	    if(p != null)
+		return(cl.getName() + ":" + f.getName() + p);
+	}
+	return(null);
+    }
+
+    /* Macros are looked for in their own class and its enclosing
+     * classes, and in those of the state that supplied them. */
+    public static String name(ShaderMacro m, Class<?> from) {
+	synchronized(names) {
+	    String nm = names.get(m);
+	    if(nm != null)
+		return(nm);
+	}
+	String nm = null;
+	for(Class<?> c = m.getClass(); (nm == null) && (c != null); c = c.getEnclosingClass())
+	    nm = find(c, m);
+	for(Class<?> c = from; (nm == null) && (c != null); c = c.getEnclosingClass())
+	    nm = find(c, m);
+	if(nm != null) {
+	    synchronized(names) {
+		names.put(m, nm);
+	    }
+	}
+	return(nm);
+    }
+
+    public static ShaderMacro resolve(String nm) {
+	String[] p = nm.split(":");
+	if(p.length < 2)
+	    return(null);
+	try {
+	    Class<?> cl = Class.forName(p[0], true, ProgCache.class.getClassLoader());
+	    Field f = cl.getDeclaredField(p[1]);
+	    f.setAccessible(true);
+	    Object v = f.get(null);
+	    for(int i = 2; i < p.length; i++) {
+		if(v instanceof GLState)
+		    v = ((GLState)v).shaders();
+		v = ((Object[])v)[Integer.parseInt(p[i])];
+	    }
+	    if(!(v instanceof ShaderMacro))
+		return(null);
+	    synchronized(names) {
+		names.put((ShaderMacro)v, nm);
+	    }
+	    return((ShaderMacro)v);
+	} catch(Exception e) {
+	    return(null);
+	} catch(LinkageError e) {
+	    return(null);
+	}
+    }
+
+    /* Returns null if any of the macros cannot be named, in which
+     * case the program is private to the caller. */
+    public static Entry get(List<ShaderMacro> mods, List<Class<?>> from) {
+	synchronized(progs) {
+	    Entry e = progs.get(mods);
+	    if(e != null) {
+		if(!e.used) {
+		    e.used = true;
+		    dirty = true;
+		}
+		return(e);
+	    }
+	}
+	String[] nms = new String[mods.size()];
+	for(int i = 0; i < nms.length; i++) {
+	    if((nms[i] = name(mods.get(i), from.get(i))) == null)
+		return(null);
+	}
+	synchronized(progs) {
+	    Entry e = progs.get(mods);
+	    if(e == null) {
+		progs.put(mods, e = new Entry(mods, nms, true));
+		dirty = true;
+	    }
+	    return(e);
+	}
+    }
+
+    private static void load() {
+	if(ResCache.global == null)
+	    return;
+	List<String> lines = new ArrayList<String>();
+	try {
+	    BufferedReader in = new BufferedReader(new InputStreamReader(ResCache.global.fetch(cachename), "UTF-8"));
+	    try {
+		String ln;
+		while((ln = in.readLine()) != null)
+		    lines.add(ln);
+	    } finally {
+		in.close();
+	    }
+	} catch(IOException e) {
+	    return;
+	}
+	outer: for(String ln : lines) {
+	    String[] nms = ln.trim().split(" +");
+	    if((nms.length == 0) || nms[0].equals(""))
+		continue;
+	    List<ShaderMacro> mods = new ArrayList<ShaderMacro>(nms.length);
+	    for(String nm : nms) {
+		ShaderMacro m = resolve(nm);
+		if(m == null)
+		    continue outer;
+		mods.add(m);
+	    }
+	    synchronized(progs) {
+		if(progs.containsKey(mods))
+		    continue;
+		Entry e = new Entry(mods, nms, false);
+		progs.put(mods, e);
+		warm.add(e);
+		nloaded++;
+	    }
+	}
+    }
+
+    private static void save() {
+	final List<String> lines = new ArrayList<String>();
+	synchronized(progs) {
+	    for(int pass = 0; pass < 2; pass++) {
+		for(Entry e : progs.values()) {
+		    if((e.used == (pass == 0)) && (lines.size() < maxsaved)) {
+			StringBuilder buf = new StringBuilder();
+			for(String nm : e.names) {
+			    if(buf.length() > 0)
+				buf.append(' ');
+			    buf.append(nm);
+			}
+			lines.add(buf.toString());
+		    }
+		}
+	    }
+	    dirty = false;
+	}
+	Defer.later(new Defer.Callable<Object>() {
+		public Object call() {
+		    try {
+			Writer out = new OutputStreamWriter(ResCache.global.store(cachename), "UTF-8");
+			try {
+			    for(String ln : lines)
+				out.write(ln + "\n");
+			} finally {
+			    out.close();
+			}
+		    } catch(IOException e) {
+		    }
+		    return(null);
+		}
+	    });
+    }
+
+    private static void drop(Entry e) {
+	synchronized(progs) {
+	    if(progs.get(e.mods) == e)
+		progs.remove(e.mods);
+	    nfailed++;
+	    dirty = true;
+	}
+    }
+
+    /* Called once per frame from the render thread. Linking does not
+     * change the current program, so it may be done at any time
+     * outside of state application. */
+    public static void frame(GOut g) {
+	if(!loaded) {
+	    loaded = true;
+	    load();
+	}
+	if(g.gc.pref.progmode.val.on) {
+	    for(int i = 0; i < warmrate;) {
+		Entry e;
+		synchronized(progs) {
+		    e = null;
+		    for(Iterator<Entry> it = warm.iterator(); it.hasNext();) {
+			Entry c = it.next();
+			if(c.prog.done()) {
+			    it.remove();
+			    e = c;
+			    break;
+			}
+		    }
+		}
+		if(e == null)
+		    break;
+		try {
+		    e.prog.get().link(g);
+		    nwarmed++;
+		    i++;
+		} catch(RuntimeException exc) {
+		    drop(e);
+		}
+	    }
+	}
+	long now = System.currentTimeMillis();
+	if(dirty && (ResCache.global != null) && (now - lastsave > 10000)) {
+	    lastsave = now;
+	    save();
+	}
+    }
+
+    public static String stats() {
+	synchronized(progs) {
+	    return(String.format("%d named, %d loaded, %d linked ahead, %d queued, %d failed", progs.size(), nloaded, nwarmed, warm.size(), nfailed));
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	/* Times the CPU side of program generation for the given
+	 * macro names, or for a few stock combinations. */
+	List<String[]> sets = new ArrayList<String[]>();
+	if(args.length > 0) {
+	    for(String arg : args)
+		sets.add(arg.split(","));
+	} else {
+	    sets.add(new String[] {"haven.glsl.Tex2D:mod"});
+	    sets.add(new String[] {"haven.glsl.Tex2D:mod", "haven.TexGL:mkcentroid"});
+	    sets.add(new String[] {"haven.glsl.Tex2D:clip"});
+	    sets.add(new String[] {"haven.Light:vlight", "haven.glsl.Tex2D:mod"});
+	    sets.add(new String[] {"haven.Light:plight", "haven.glsl.Tex2D:mod", "haven.glsl.Tex2D:clip"});
+	}
+	int n = 200;
+	for(String[] nms : sets) {
+	    List<ShaderMacro> mods = new ArrayList<ShaderMacro>();
+	    for(String nm : nms) {
+		ShaderMacro m = resolve(nm);
+		if(m == null)
+		    throw(new RuntimeException("Could not resolve " + nm));
+		synchronized(names) {
+		    names.clear();
+		}
+		if(!nm.equals(name(m, null)))
+		    throw(new RuntimeException("Name does not round-trip: " + nm + " -> " + name(m, null)));
+		mods.add(m);
+	    }
+	    for(int i = 0; i < 20; i++)
+		ShaderMacro.Program.build(mods);
+	    long st = System.nanoTime();
+	    for(int i = 0; i < n; i++)
+		ShaderMacro.Program.build(mods);
+	    double bt = (System.nanoTime() - st) / (n * 1000.0);
+	    st = System.nanoTime();
+	    for(int i = 0; i < n; i++) {
+		synchronized(names) {
+		    names.clear();
+		}
+		for(ShaderMacro m : mods)
+		    name(m, null);
+	    }
+	    double nt = (System.nanoTime() - st) / (n * 1000.0);
+	    System.out.printf("%s: build %.1f us, naming %.1f us%n", Arrays.asList(nms), bt, nt);
+	}
+    }
+}
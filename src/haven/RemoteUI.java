@@ -50,26 +50,35 @@ public class RemoteUI implements UI.Receiver, UI.Runner {
 	}
     }
 
+    private void apply(Session.UIMsg msg) throws InterruptedException {
+	if(msg.type == Message.RMSG_NEWWDG) {
+	    ui.newwidget(msg.id, msg.name, msg.parent, msg.pargs, msg.args);
+	} else if(msg.type == Message.RMSG_WDGMSG) {
+	    ui.uimsg(msg.id, msg.name, msg.args);
+	} else if(msg.type == Message.RMSG_DSTWDG) {
+	    ui.destroy(msg.id);
+	}
+    }
+
     public Session run(UI ui) throws InterruptedException {
 	this.ui = ui;
 	ui.setreceiver(this);
 	while(true) {
-	    Message msg;
-	    while((msg = sess.getuimsg()) != null) {
-		if(msg.type == Message.RMSG_NEWWDG) {
-		    int id = msg.uint16();
-		    String type = msg.string();
-		    int parent = msg.uint16();
-		    Object[] pargs = msg.list();
-		    Object[] cargs = msg.list();
-		    ui.newwidget(id, type, parent, pargs, cargs);
-		} else if(msg.type == Message.RMSG_WDGMSG) {
-		    int id = msg.uint16();
-		    String name = msg.string();
-		    ui.uimsg(id, name, msg.list());
-		} else if(msg.type == Message.RMSG_DSTWDG) {
-		    int id = msg.uint16();
-		    ui.destroy(id);
+	    Session.UIMsg msg;
+	    /* Queued messages are applied under one acquisition of
+	     * the UI lock. Once a batch has run for longer than the
+	     * budget, the lock is given up until the next frame has
+	     * ticked, so that bursts are spread over frames instead
+	     * of stalling one. */
+	    synchronized(ui) {
+		long budget = Config.uibudget * 1000000L;
+		long st = System.nanoTime();
+		while((msg = sess.getuimsg()) != null) {
+		    apply(msg);
+		    if(System.nanoTime() - st > budget) {
+			ui.wait(100);
+			st = System.nanoTime();
+		    }
 		}
 	    }
 	    synchronized(sess) {
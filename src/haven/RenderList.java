@@ -35,6 +35,10 @@ public class RenderList {
     private Slot curp = null;
     private GLState.Global[] gstates = new GLState.Global[0];
     private static final ThreadLocal<RenderList> curref = new ThreadLocal<RenderList>();
+    private Slot[] free = new Slot[100];
+    private int nfree = 0;
+    private final Map<Rendered, Kept> kept = new IdentityHashMap<Rendered, Kept>();
+    private int frame = 0, nkept = 0;
     
     public class Slot {
 	public Rendered r;
@@ -42,22 +46,68 @@ public class RenderList {
 	public Rendered.Order o;
 	public boolean d;
 	public Slot p;
+	private boolean kept = false;
+    }
+
+    /* The slots set up for a retained renderable, along with what
+     * they were set up from, and their states and draw flags as they
+     * were before postsetup and fin changed them. */
+    private class Kept {
+	final GLState t;
+	final GLState[] ps;
+	final int ver;
+	final Slot[] slots;
+	final GLState.Buffer[] os;
+	final boolean[] d;
+	final GLState.Global[] gstates;
+	int used;
+
+	Kept(Rendered.Retained r, GLState t, GLState[] ps, int from, int to) {
+	    this.t = t;
+	    this.ps = ps;
+	    this.ver = r.version();
+	    this.slots = Arrays.copyOfRange(list, from, to);
+	    this.os = new GLState.Buffer[slots.length];
+	    this.d = new boolean[slots.length];
+	    for(int i = 0; i < slots.length; i++) {
+		slots[i].kept = true;
+		os[i] = slots[i].os.copy();
+		d[i] = slots[i].d;
+	    }
+	    Map<GLState.Global, GLState.Global> gstates = new IdentityHashMap<GLState.Global, GLState.Global>();
+	    getgstates(gstates, slots, 0, slots.length, false);
+	    this.gstates = gstates.keySet().toArray(new GLState.Global[0]);
+	    this.used = frame;
+	}
+
+	boolean valid(Rendered.Retained r, GLState t, GLState[] ps) {
+	    if((used == frame) || (this.t != t) || (ver != r.version()) || (this.ps.length != ps.length))
+		return(false);
+	    for(int i = 0; i < ps.length; i++) {
+		if(this.ps[i] != ps[i])
+		    return(false);
+	    }
+	    return(true);
+	}
     }
     
     public RenderList(GLConfig cfg) {
 	this.cfg = cfg;
     }
     
-    private Slot getslot() {
+    private void put(Slot s) {
 	int i = cur++;
 	if(i >= list.length) {
 	    Slot[] n = new Slot[i * 2];
 	    System.arraycopy(list, 0, n, 0, i);
 	    list = n;
 	}
-	Slot s;
-	if((s = list[i]) == null)
-	    s = list[i] = new Slot();
+	list[i] = s;
+    }
+
+    private Slot getslot() {
+	Slot s = (nfree > 0) ? free[--nfree] : new Slot();
+	put(s);
 	return(s);
     }
 
@@ -125,14 +175,47 @@ public class RenderList {
     }
 
     public void add(Rendered r, GLState t) {
-	Slot s = getslot();
 	if(curp == null)
 	    throw(new RuntimeException("Tried to set up relative slot with no parent"));
+	if(r instanceof Rendered.Retained) {
+	    addkept((Rendered.Retained)r, t);
+	    return;
+	}
+	Slot s = getslot();
+	curp.cs.copy(s.os);
+	if(t != null)
+	    t.prep(s.os);
+	s.os.copy(s.cs);
+	setup(s, r);
+    }
+
+    private void addkept(Rendered.Retained r, GLState t) {
+	GLState[] ps = curp.cs.states();
+	Kept k = kept.get(r);
+	if((k != null) && k.valid(r, t, ps)) {
+	    for(int i = 0; i < k.slots.length; i++) {
+		Slot s = k.slots[i];
+		k.os[i].copy(s.os);
+		s.d = k.d[i];
+		put(s);
+	    }
+	    k.slots[0].p = curp;
+	    k.used = frame;
+	    nkept += k.slots.length;
+	    return;
+	}
+	ps = ps.clone();
+	int from = cur;
+	Slot s = getslot();
 	curp.cs.copy(s.os);
 	if(t != null)
 	    t.prep(s.os);
 	s.os.copy(s.cs);
 	setup(s, r);
+	/* If it is added more than once in a frame, only the first
+	 * is kept. */
+	if((k == null) || (k.used != frame))
+	    kept.put(r, new Kept(r, t, ps, from, cur));
     }
     
     public void add2(Rendered r, GLState.Buffer t) {
@@ -170,7 +253,7 @@ public class RenderList {
 		return(1);
 	    int az = a.o.mainz(), bz = b.o.mainz();
 	    if(az != bz)
-		return(az - bz);
+		return((az < bz) ? -1 : 1);
 	    if(a.o != b.o)
 		throw(new RuntimeException("Found two different orderings with the same main-Z: " + a.o + " and " + b.o));
 	    int ret = a.o.cmp().compare(a.r, b.r, a.os, b.os);
@@ -181,13 +264,11 @@ public class RenderList {
     };
     
     private GLState[] dbc = new GLState[0];
-    private GLState.Global[] getgstates() {
-	/* This is probably a fast way to intern the states. */
-	IdentityHashMap<GLState.Global, GLState.Global> gstates = new IdentityHashMap<GLState.Global, GLState.Global>(this.gstates.length);
+    private void getgstates(Map<GLState.Global, GLState.Global> gstates, Slot[] list, int from, int to, boolean skipkept) {
 	for(int i = 0; i < dbc.length; i++)
 	    dbc[i] = null;
-	for(int i = 0; i < cur; i++) {
-	    if(!list[i].d)
+	for(int i = from; i < to; i++) {
+	    if(!list[i].d || (skipkept && list[i].kept))
 		continue;
 	    GLState.Buffer ctx = list[i].os;
 	    GLState[] sl = ctx.states();
@@ -204,9 +285,97 @@ public class RenderList {
 		dbc[o] = st;
 	    }
 	}
+    }
+
+    private final IdentityHashMap<GLState.Global, GLState.Global> gstates2 = new IdentityHashMap<GLState.Global, GLState.Global>();
+    private GLState.Global[] getgstates() {
+	/* This is probably a fast way to intern the states. */
+	IdentityHashMap<GLState.Global, GLState.Global> gstates = gstates2;
+	gstates.clear();
+	getgstates(gstates, list, 0, cur, true);
+	/* Retained slots were scanned when they were set up. */
+	for(Kept k : kept.values()) {
+	    if(k.used == frame) {
+		for(GLState.Global gs : k.gstates)
+		    gstates.put(gs, gs);
+	    }
+	}
+	if(gstates.size() == this.gstates.length) {
+	    int i = 0;
+	    for(GLState.Global gs : gstates.keySet()) {
+		if(this.gstates[i++] != gs)
+		    return(gstates.keySet().toArray(new GLState.Global[0]));
+	    }
+	    return(this.gstates);
+	}
 	return(gstates.keySet().toArray(new GLState.Global[0]));
     }
 
+    private long[] keys = new long[0], keys2;
+    private Slot[] sorted = new Slot[0];
+
+    /* Sorts the drawn slots by main-Z and then by identity, as cmp
+     * would, with a radix sort on a key packing the two. Runs of
+     * slots with an order that compares further are then sorted with
+     * cmp proper, and undrawn slots are put last. */
+    private int sort() {
+	if(keys.length < cur) {
+	    keys = new long[list.length];
+	    keys2 = new long[list.length];
+	    sorted = new Slot[list.length];
+	}
+	int n = 0, u = cur;
+	for(int i = 0; i < cur; i++) {
+	    Slot s = list[i];
+	    if(s.d) {
+		keys[n] = (((long)(s.o.mainz() ^ Integer.MIN_VALUE)) << 32) | (System.identityHashCode(s.r) & 0xffffffffL);
+		sorted[n++] = s;
+	    } else {
+		sorted[--u] = s;
+	    }
+	}
+	long[] k = keys, k2 = keys2;
+	Slot[] f = sorted, t = list;
+	int[] count = new int[256];
+	for(int sh = 0; sh < 64; sh += 8) {
+	    Arrays.fill(count, 0);
+	    for(int i = 0; i < n; i++)
+		count[(int)(k[i] >>> sh) & 0xff]++;
+	    if((n == 0) || (count[(int)(k[0] >>> sh) & 0xff] == n))
+		continue;
+	    for(int i = 0, a = 0; i < 256; i++) {
+		int c = count[i];
+		count[i] = a;
+		a += c;
+	    }
+	    for(int i = 0; i < n; i++) {
+		int o = count[(int)(k[i] >>> sh) & 0xff]++;
+		k2[o] = k[i];
+		t[o] = f[i];
+	    }
+	    long[] kt = k; k = k2; k2 = kt;
+	    Slot[] st = f; f = t; t = st;
+	}
+	if(f != list)
+	    System.arraycopy(f, 0, list, 0, n);
+	/* Undrawn slots were stored in reverse. */
+	for(int i = u, o = cur - 1; i < cur; i++, o--)
+	    list[i] = sorted[o];
+	for(int i = 0; i < n;) {
+	    Rendered.Order o = list[i].o;
+	    int z = o.mainz(), e = i + 1;
+	    while((e < n) && (list[e].o.mainz() == z)) {
+		if(list[e].o != o)
+		    throw(new RuntimeException("Found two different orderings with the same main-Z: " + o + " and " + list[e].o));
+		e++;
+	    }
+	    if((e - i > 1) && (o.cmp() != Rendered.Order.nocmp))
+		Arrays.sort(list, i, e, cmp);
+	    i = e;
+	}
+	return(n);
+    }
+
     public void fin() {
 	for(int i = 0; i < cur; i++) {
 	    if((list[i].o = list[i].os.get(Rendered.order)) == null)
@@ -214,7 +383,7 @@ public class RenderList {
 	    if(list[i].os.get(Rendered.skip.slot) != null)
 		list[i].d = false;
 	}
-	Arrays.sort(list, 0, cur, cmp);
+	sort();
     }
 
     public static class RLoad extends Loading {
@@ -222,6 +391,7 @@ public class RenderList {
 	    return(new RLoad() {
 		    public boolean canwait() {return(l.canwait());}
 		    public void waitfor() throws InterruptedException {l.waitfor();}
+		    public boolean waitfor(Runnable cb) {return(l.waitfor(cb));}
 		});
 	}
     }
@@ -241,12 +411,18 @@ public class RenderList {
     public void render(GOut g) {
 	for(GLState.Global gs : gstates)
 	    gs.prerender(this, g);
-	for(int i = 0; i < cur; i++) {
-	    Slot s = list[i];
-	    if(!s.d)
-		break;
-	    g.st.set(s.os);
-	    render(g, s.r);
+	boolean pdefer = g.st.defer;
+	g.st.defer = ignload;
+	try {
+	    for(int i = 0; i < cur; i++) {
+		Slot s = list[i];
+		if(!s.d)
+		    break;
+		g.st.set(s.os);
+		render(g, s.r);
+	    }
+	} finally {
+	    g.st.defer = pdefer;
 	}
 	for(GLState.Global gs : gstates)
 	    gs.postrender(this, g);
@@ -255,11 +431,119 @@ public class RenderList {
     public void rewind() {
 	if(curp != null)
 	    throw(new RuntimeException("Tried to rewind RenderList while adding to it."));
+	for(int i = 0; i < cur; i++) {
+	    Slot s = list[i];
+	    if(!s.kept) {
+		if(nfree >= free.length)
+		    free = Arrays.copyOf(free, free.length * 2);
+		free[nfree++] = s;
+	    }
+	}
+	for(Iterator<Kept> i = kept.values().iterator(); i.hasNext();) {
+	    if(i.next().used != frame)
+		i.remove();
+	}
 	cur = 0;
+	nkept = 0;
+	frame++;
+    }
+
+    public String stats() {
+	return(String.format("%d slots, %d kept", cur, nkept));
     }
 
     public void dump(java.io.PrintStream out) {
 	for(Slot s : slots())
 	    out.println((s.d?" ":"!") + s.r + ": " + s.os);
     }
+
+    private static class BLayer implements Rendered {
+	final GLState st;
+	BLayer(GLState st) {this.st = st;}
+	public void draw(GOut g) {}
+	public boolean setup(RenderList rl) {
+	    rl.prepo(st);
+	    return(true);
+	}
+    }
+
+    private static class BCut implements Rendered {
+	final List<Rendered> parts = new ArrayList<Rendered>();
+	public void draw(GOut g) {}
+	public boolean setup(RenderList rl) {
+	    for(Rendered p : parts)
+		rl.add(p, null);
+	    return(true);
+	}
+    }
+
+    private static class BRCut extends BCut implements Rendered.Retained {
+	public int version() {return(0);}
+    }
+
+    /* Times setting up and sorting a scene of map-cut-like and
+     * gob-like renderables, with and without retaining the cuts. */
+    public static void main(String[] args) throws Exception {
+	int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+	int ngobs = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+	Random rnd = new Random(1);
+	final GLState[] mats = new GLState[40];
+	for(int i = 0; i < mats.length; i++)
+	    mats[i] = new States.ColState(rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(256), 255);
+	final Rendered.Order[] ords = {Rendered.deflt, new Rendered.Order.Default(1000), new Rendered.Order.Default(1001), Rendered.last};
+	for(final boolean retain : new boolean[] {false, true}) {
+	    final List<BCut> cuts = new ArrayList<BCut>();
+	    final List<Location> locs = new ArrayList<Location>();
+	    for(int i = 0; i < 25; i++) {
+		BCut cut = retain ? new BRCut() : new BCut();
+		for(int o = 0; o < 25; o++)
+		    cut.parts.add(new BLayer(GLState.compose(mats[rnd.nextInt(mats.length)], ords[1 + rnd.nextInt(2)])));
+		cuts.add(cut);
+		locs.add(Location.xlate(new Coord3f(i * 275, 0, 0)));
+	    }
+	    final List<BCut> gobs = new ArrayList<BCut>();
+	    for(int i = 0; i < ngobs; i++) {
+		BCut gob = new BCut();
+		for(int o = 0; o < 3; o++)
+		    gob.parts.add(new BLayer((o < 2) ? mats[rnd.nextInt(mats.length)] : GLState.compose(mats[rnd.nextInt(mats.length)], ords[(i % 2) * 3])));
+		gobs.add(gob);
+	    }
+	    Rendered root = new Rendered() {
+		    public void draw(GOut g) {}
+		    public boolean setup(RenderList rl) {
+			for(int i = 0; i < cuts.size(); i++)
+			    rl.add(cuts.get(i), locs.get(i));
+			for(BCut gob : gobs)
+			    rl.add(gob, Location.xlate(new Coord3f(0, 0, 0)));
+			return(false);
+		    }
+		};
+	    RenderList rl = new RenderList(null);
+	    GLState.Buffer def = new GLState.Buffer(null);
+	    long stime = 0, ftime = 0, ctime = 0;
+	    for(int f = 0; f < frames; f++) {
+		long st = System.nanoTime();
+		rl.setup(root, def);
+		long t1 = System.nanoTime();
+		Slot[] bk = Arrays.copyOf(rl.list, rl.cur);
+		long t2 = System.nanoTime();
+		rl.fin();
+		long t3 = System.nanoTime();
+		Arrays.sort(bk, cmp);
+		long t4 = System.nanoTime();
+		for(int i = 0; i < bk.length; i++) {
+		    if(bk[i] != rl.list[i])
+			throw(new AssertionError("Sort order differs from comparator at " + i));
+		}
+		if(f >= frames / 2) {
+		    stime += t1 - st;
+		    ftime += t3 - t2;
+		    ctime += t4 - t3;
+		}
+	    }
+	    int n = frames - (frames / 2);
+	    System.out.printf("%s: setup %.1f us, fin %.1f us, comparator sort %.1f us per frame (%s)%n",
+			      retain ? "retained" : "rebuilt", stime / (n * 1e3), ftime / (n * 1e3), ctime / (n * 1e3), rl.stats());
+	}
+    }
 }
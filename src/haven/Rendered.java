@@ -40,6 +40,14 @@ public interface Rendered extends Drawn {
     public static abstract class Order<T extends Rendered> extends GLState {
 	public abstract int mainz();
 	public abstract RComparator<? super T> cmp();
+
+	/* Orders that use this do not order their renderables further
+	 * than by main-Z. */
+	public static final RComparator<Rendered> nocmp = new RComparator<Rendered>() {
+	    public int compare(Rendered a, Rendered b, GLState.Buffer sa, GLState.Buffer sb) {
+		return(0);
+	    }
+	};
 	
 	public void apply(GOut g) {}
 	public void unapply(GOut g) {}
@@ -58,18 +66,21 @@ public interface Rendered extends Drawn {
 		return(z);
 	    }
 	    
-	    private RComparator<Rendered> cmp = new RComparator<Rendered>() {
-		public int compare(Rendered a, Rendered b, GLState.Buffer sa, GLState.Buffer sb) {
-		    return(0);
-		}
-	    };
-	    
 	    public RComparator<Rendered> cmp() {
-		return(cmp);
+		return(nocmp);
 	    }
 	}
     }
 
+    /* A renderable whose setup depends only on its version and on
+     * the state it is added with, and which does nothing but add to
+     * the render list while being set up. A RenderList may then reuse
+     * the slots it last set up for it instead of setting it up again,
+     * so its version must also change when anything it adds does. */
+    public static interface Retained extends Rendered {
+	public int version();
+    }
+
     public final static Order deflt = new Order.Default(0);
     public final static Order first = new Order.Default(Integer.MIN_VALUE);
     public final static Order last = new Order.Default(Integer.MAX_VALUE);
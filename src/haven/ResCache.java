@@ -31,6 +31,7 @@ import java.io.*;
 public interface ResCache {
     public OutputStream store(String name) throws IOException;
     public InputStream fetch(String name) throws IOException;
+    public void remove(String name) throws IOException;
     
     public static ResCache global = StupidJavaCodeContainer.makeglobal();
     
@@ -40,6 +41,8 @@ public interface ResCache {
 	    if((ret = JnlpCache.create()) != null)
 		return(ret);
 	    if(Config.fscache) {
+		if(Config.packcache && ((ret = PackCache.create()) != null))
+		    return(ret);
 		if((ret = BaseFileCache.create()) != null)
 		    return(ret);
 	    }
@@ -60,5 +63,9 @@ public interface ResCache {
 	public InputStream fetch(String name) throws IOException {
 	    throw(new FileNotFoundException());
 	}
+
+	public void remove(String name) throws IOException {
+	    throw(new FileNotFoundException());
+	}
     }
 }
@@ -63,13 +63,13 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 
     static {
 	if(!Config.nolocalres)
-	    loader = new Loader(new JarSource());
+	    loader = new Loader(new JarSource(), Config.resthreads);
 	try {
 	    String dir = Config.resdir;
 	    if(dir == null)
 		dir = System.getenv("SALEM_RESDIR");
 	    if(dir != null)
-		chainloader(new Loader(new FileSource(Utils.path(dir))));
+		chainloader(new Loader(new FileSource(Utils.path(dir)), Config.resthreads));
 	} catch(Exception e) {
 	    /* Ignore these. We don't want to be crashing the client
 	     * for users just because of errors in development
@@ -78,12 +78,17 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
     }
 	
     private LoadException error;
-    private Collection<Layer> layers = new LinkedList<Layer>();
+    private volatile LayerSlot[] layers = new LayerSlot[0];
+    private transient volatile Map<Class<?>, LayerSlot[]> lindex = new HashMap<Class<?>, LayerSlot[]>();
     public final String name;
     public int ver;
     public boolean loading;
     public ResSource source;
     private transient Indir<Resource> indir = null;
+    private transient volatile Loader queued = null;
+    private transient Loader from = null;
+    private transient long qstart;
+    private transient Collection<Runnable> loadcbs = null;
     int prio = 0;
 
     public static class Spec implements Indir<Resource> {
@@ -114,7 +119,7 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
     public static void addcache(ResCache cache) {
 	CacheSource src = new CacheSource(cache);
 	prscache = src;
-	chainloader(new Loader(src));
+	chainloader(new Loader(src, Config.resthreads));
     }
 
     public static void addurl(URL url) {
@@ -127,7 +132,7 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 		    }
 		};
 	}
-	chainloader(new Loader(src));
+	chainloader(new Loader(src, Config.httpthreads));
     }
     
     private static void chainloader(Loader nl) {
@@ -197,8 +202,21 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 
     public static int qdepth() {
 	int ret = 0;
-	for(Loader l = loader; l != null; l = l.next)
-	    ret += l.queue.size();
+	for(Loader l = loader; l != null; l = l.next) {
+	    synchronized(l.queue) {
+		ret += l.queue.size();
+	    }
+	}
+	return(ret);
+    }
+
+    public static List<String> loadstats() {
+	List<String> ret = new ArrayList<String>();
+	for(Loader l = loader; l != null; l = l.next) {
+	    ret.add(l.stats());
+	    if((l.src instanceof HttpSource) && (((HttpSource)l.src).stats() != null))
+		ret.add(((HttpSource)l.src).stats());
+	}
 	return(ret);
     }
     
@@ -207,10 +225,40 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
     }
     
     public void boostprio(int newprio) {
-	if(prio < newprio)
+	if(prio < newprio) {
 	    prio = newprio;
+	    Loader l = queued;
+	    if(l != null)
+		l.boost(this);
+	}
     }
     
+    /* Runs cb once this resource has finished loading, immediately
+     * if it already has. */
+    public void onload(Runnable cb) {
+	synchronized(this) {
+	    if(loading) {
+		boostprio(10);
+		if(loadcbs == null)
+		    loadcbs = new LinkedList<Runnable>();
+		loadcbs.add(cb);
+		return;
+	    }
+	}
+	cb.run();
+    }
+
+    /* Must be called with this locked. */
+    private void loaddone() {
+	loading = false;
+	notifyAll();
+	if(loadcbs != null) {
+	    for(Runnable cb : loadcbs)
+		cb.run();
+	    loadcbs = null;
+	}
+    }
+
     public Resource loadwaitint() throws InterruptedException {
 	synchronized(this) {
 	    boostprio(10);
@@ -283,6 +331,13 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	public InputStream get(String name) throws IOException {
 	    return(cache.fetch("res/" + name));
 	}
+
+	public void invalidate(String name) {
+	    try {
+		cache.remove("res/" + name);
+	    } catch(IOException e) {
+	    }
+	}
 	
 	public String toString() {
 	    return("cache source backed by " + cache);
@@ -354,6 +409,8 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
     
     public static class HttpSource implements ResSource, Serializable {
 	private final transient SslHelper ssl;
+	private transient HttpPipe pipe = null;
+	private transient boolean nopipe = false;
 	public URL baseurl;
 	
 	{
@@ -376,14 +433,57 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	    /* This is "kinda" ugly. It is, actually, how the Java
 	     * documentation recommend that it be done, though... */
 	    try {
-		return(new URL(new URI(raw.getProtocol(), raw.getHost(), raw.getPath(), raw.getRef()).toASCIIString()));
+		return(new URL(new URI(raw.getProtocol(), null, raw.getHost(), raw.getPort(), raw.getPath(), null, raw.getRef()).toASCIIString()));
 	    } catch(URISyntaxException e) {
 		throw(new IOException(e));
 	    }
 	}
 
+	private static boolean proxied(URL url) {
+	    ProxySelector sel = ProxySelector.getDefault();
+	    if(sel == null)
+		return(false);
+	    try {
+		for(Proxy p : sel.select(url.toURI())) {
+		    if(p.type() != Proxy.Type.DIRECT)
+			return(true);
+		}
+	    } catch(URISyntaxException e) {
+		return(true);
+	    }
+	    return(false);
+	}
+
+	/* The pipe talks directly to the server, so URLConnection is
+	 * used instead when a proxy is configured for it, and once it
+	 * has redirected a request. */
+	private HttpPipe pipe(URL url) {
+	    synchronized(this) {
+		if(!Config.httppipe || nopipe)
+		    return(null);
+		if(pipe == null) {
+		    if(!(url.getProtocol().equals("http") || url.getProtocol().equals("https")) || proxied(url)) {
+			nopipe = true;
+			return(null);
+		    }
+		    pipe = new HttpPipe(baseurl, ssl, 2, 8);
+		}
+		return(pipe);
+	    }
+	}
+
 	public InputStream get(String name) throws IOException {
 	    URL resurl = encodeurl(new URL(baseurl, name + ".res"));
+	    HttpPipe pipe = pipe(resurl);
+	    if(pipe != null) {
+		try {
+		    return(new ByteArrayInputStream(pipe.get(resurl.getFile())));
+		} catch(HttpPipe.RedirectException e) {
+		    synchronized(this) {
+			nopipe = true;
+		    }
+		}
+	    }
 	    URLConnection c;
 	    int tries = 0;
 	    while(true) {
@@ -405,19 +505,28 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	    }
 	}
 
+	public String stats() {
+	    HttpPipe pipe = this.pipe;
+	    return((pipe == null) ? null : pipe.stats());
+	}
+
 	public String toString() {
 	    return("HTTP res source (" + baseurl + ")");
 	}
     }
 
     private static class Loader implements Runnable {
-	private ResSource src;
+	private final ResSource src;
+	private final int maxthreads;
 	private Loader next = null;
-	private Queue<Resource> queue = new PrioQueue<Resource>();
-	private transient Thread th = null;
+	private final PrioQueue<Resource> queue = new PrioQueue<Resource>();
+	private final Collection<Thread> pool = new LinkedList<Thread>();
+	private int idle = 0;
+	private long nloaded = 0, nmissed = 0, qtime = 0, ltime = 0;
 	
-	public Loader(ResSource src) {
+	public Loader(ResSource src, int maxthreads) {
 	    this.src = src;
+	    this.maxthreads = Math.max(maxthreads, 1);
 	}
 	
 	public void chain(Loader next) {
@@ -426,52 +535,83 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	
 	public void load(Resource res) {
 	    synchronized(queue) {
+		res.qstart = System.nanoTime();
+		res.queued = this;
 		queue.add(res);
-		queue.notifyAll();
-	    }
-	    synchronized(Loader.this) {
-		if(th == null) {
-		    th = new HackThread(loadergroup, Loader.this, "Haven resource loader");
+		queue.notify();
+		if((queue.size() > idle) && (pool.size() < maxthreads)) {
+		    Thread th = new HackThread(loadergroup, Loader.this, "Haven resource loader");
 		    th.setDaemon(true);
 		    th.start();
+		    pool.add(th);
 		}
 	    }
 	}
+
+	public void boost(Resource res) {
+	    synchronized(queue) {
+		queue.update(res);
+	    }
+	}
 		
 	public void run() {
 	    try {
 		while(true) {
 		    Resource cur;
 		    synchronized(queue) {
-			while((cur = queue.poll()) == null)
-			    queue.wait();
+			idle++;
+			try {
+			    while((cur = queue.poll()) == null)
+				queue.wait();
+			} finally {
+			    idle--;
+			}
+			cur.queued = null;
+			qtime += System.nanoTime() - cur.qstart;
 		    }
+		    long st = System.nanoTime();
+		    boolean ok;
 		    synchronized(cur) {
-			handle(cur);
+			ok = handle(cur);
+		    }
+		    synchronized(queue) {
+			ltime += System.nanoTime() - st;
+			if(ok)
+			    nloaded++;
+			else
+			    nmissed++;
 		    }
 		    cur = null;
 		}
 	    } catch(InterruptedException e) {
 	    } finally {
-		synchronized(Loader.this) {
-		    /* Yes, I know there's a race condition. */
-		    th = null;
+		synchronized(queue) {
+		    pool.remove(Thread.currentThread());
 		}
 	    }
 	}
+
+	public String stats() {
+	    synchronized(queue) {
+		long n = nloaded + nmissed;
+		return(String.format("%s: q %d, thr %d/%d, ok %d, miss %d, wait %.1f ms, load %.1f ms",
+				     src, queue.size(), pool.size() - idle, maxthreads, nloaded, nmissed,
+				     (n == 0) ? 0.0 : (qtime / n) * 1e-6, (n == 0) ? 0.0 : (ltime / n) * 1e-6));
+	    }
+	}
 		
-	private void handle(Resource res) {
+	private boolean handle(Resource res) {
 	    InputStream in = null;
 	    try {
 		res.source = src;
+		res.from = this;
 		try {
 		    try {
 			in = src.get(res.name);
 			res.load(in);
 			res.error = null;
-			res.loading = false;
-			res.notifyAll();
-			return;
+			res.loaddone();
+			return(true);
 		    } catch(IOException e) {
 			throw(new LoadException(e, res));
 		    }
@@ -484,12 +624,18 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 		    error.src = src;
 		    error.prev = res.error;
 		    res.error = error;
+		    if((src instanceof CacheSource) && !(e.getCause() instanceof FileNotFoundException)) {
+			/* Most likely an outdated version, which will
+			 * be replaced if it can be fetched elsewhere
+			 * anyway. */
+			((CacheSource)src).invalidate(res.name);
+		    }
 		    if(next == null) {
-			res.loading = false;
-			res.notifyAll();
+			res.loaddone();
 		    } else {
 			next.load(res);
 		    }
+		    return(false);
 		}
 	    } finally {
 		try {
@@ -536,6 +682,10 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	public void waitfor() throws InterruptedException {
 	    res.loadwaitint();
 	}
+	public boolean waitfor(Runnable cb) {
+	    res.onload(cb);
+	    return(true);
+	}
     }
 	
     public static Coord cdec(byte[] buf, int off) {
@@ -550,6 +700,116 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	}
     }
 
+    /* Layers made by plain LayerConstructors are kept as their raw
+     * data until first asked for, since many resources are loaded
+     * for only a few of their layers. They are constructed without
+     * holding any lock, so that an init() that uses other resources
+     * cannot deadlock; should two threads race, the first one to
+     * finish is kept and the other's copy is dropped. */
+    private static final ThreadLocal<Map<Object, Layer>> building = new ThreadLocal<Map<Object, Layer>>() {
+	protected Map<Object, Layer> initialValue() {
+	    return(new IdentityHashMap<Object, Layer>());
+	}
+    };
+
+    private class LayerSlot implements Serializable {
+	final transient LayerFactory<?> f;
+	final Class<? extends Layer> cl;
+	transient volatile byte[] buf;
+	volatile Layer l;
+
+	LayerSlot(LayerConstructor<?> f, byte[] buf) {
+	    this.f = f;
+	    this.cl = f.cl;
+	    this.buf = buf;
+	}
+
+	LayerSlot(Layer l) {
+	    this.f = null;
+	    this.cl = l.getClass();
+	    this.l = l;
+	}
+
+	Layer get() {
+	    Layer ret = l;
+	    if(ret != null)
+		return(ret);
+	    Map<Object, Layer> cur = building.get();
+	    /* If being called recursively from the layer's own
+	     * init(), just return the constructed layer, same as
+	     * when all layers were constructed before being
+	     * initialized. */
+	    if((ret = cur.get(this)) != null)
+		return(ret);
+	    byte[] data = buf;
+	    if(data == null)
+		return(l);
+	    try {
+		ret = f.cons(Resource.this, data);
+		cur.put(this, ret);
+		try {
+		    ret.init();
+		} finally {
+		    cur.remove(this);
+		}
+	    } catch(haven.Loading e) {
+		throw(e);
+	    } catch(RuntimeException e) {
+		throw(layerfail(e));
+	    }
+	    synchronized(this) {
+		if(l != null)
+		    return(l);
+		l = ret;
+		buf = null;
+	    }
+	    return(ret);
+	}
+    }
+
+    /* A layer that fails to decode is handled as if the resource
+     * had failed to load from its source: a cached copy is dropped
+     * and the resource is queued on the next source in the chain. */
+    private RuntimeException layerfail(RuntimeException e) {
+	synchronized(this) {
+	    if(loading)
+		return(new Loading(this));
+	    LoadException error;
+	    if(e instanceof LoadException)
+		error = (LoadException)e;
+	    else
+		error = new LoadException(e, this);
+	    error.src = source;
+	    error.prev = this.error;
+	    this.error = error;
+	    if(source instanceof CacheSource)
+		((CacheSource)source).invalidate(name);
+	    Loader next = (from == null) ? null : from.next;
+	    if(next != null) {
+		loading = true;
+		next.load(this);
+		return(new Loading(this));
+	    }
+	    return(error);
+	}
+    }
+
+    private LayerSlot[] lslots(Class<?> cl) {
+	Map<Class<?>, LayerSlot[]> idx = lindex;
+	synchronized(idx) {
+	    LayerSlot[] ret = idx.get(cl);
+	    if(ret == null) {
+		List<LayerSlot> buf = new ArrayList<LayerSlot>();
+		for(LayerSlot sl : layers) {
+		    if(cl.isAssignableFrom(sl.cl))
+			buf.add(sl);
+		}
+		idx.put(cl, ret = buf.toArray(new LayerSlot[0]));
+	    }
+	    return(ret);
+	}
+    }
+
     public interface LayerFactory<T extends Layer> {
 	public T cons(Resource res, byte[] buf);
     }
@@ -1277,14 +1537,46 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 
 	public void init() {}
 
-	public InputStream pcmstream() {
+	public dolda.xiphutil.VorbisStream stream() {
 	    try {
-		return(new dolda.xiphutil.VorbisStream(new ByteArrayInputStream(coded)).pcmstream());
+		return(new dolda.xiphutil.VorbisStream(coded));
 	    } catch(IOException e) {
 		throw(new RuntimeException(e));
 	    }
 	}
 
+	public InputStream pcmstream() {
+	    return(stream().pcmstream());
+	}
+
+	/* Plays the clip over and over, seeking the same decoder back
+	 * to the start rather than making a new one each time. */
+	public InputStream loopstream() {
+	    final dolda.xiphutil.VorbisStream vs = stream();
+	    final InputStream pcm = vs.pcmstream();
+	    return(new InputStream() {
+		    public int read(byte[] b, int off, int len) throws IOException {
+			int ret = pcm.read(b, off, len);
+			if(ret < 0) {
+			    vs.seek(0);
+			    ret = pcm.read(b, off, len);
+			}
+			return(ret);
+		    }
+
+		    public int read() throws IOException {
+			byte[] rb = new byte[1];
+			if(read(rb, 0, 1) < 0)
+			    return(-1);
+			return(rb[0] & 0xff);
+		    }
+
+		    public void close() throws IOException {
+			pcm.close();
+		    }
+		});
+	}
+
 	public String layerid() {
 	    return(id);
 	}
@@ -1369,42 +1661,24 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	if(loading && th)
 	    throw(new Loading(this));
 	checkerr();
+	final LayerSlot[] sl = lslots(cl);
 	return(new AbstractCollection<L>() {
 		public int size() {
-		    int s = 0;
-		    for(L l : this)
-			s++;
-		    return(s);
+		    return(sl.length);
 		}
 		
 		public Iterator<L> iterator() {
 		    return(new Iterator<L>() {
-			    Iterator<Layer> i = layers.iterator();
-			    L c = n();
-			    
-			    private L n() {
-				while(i.hasNext()) {
-				    Layer l = i.next();
-				    if(cl.isInstance(l))
-					return(cl.cast(l));
-				}
-				return(null);
-			    }
+			    int i = 0;
 			    
 			    public boolean hasNext() {
-				return(c != null);
+				return(i < sl.length);
 			    }
 			    
 			    public L next() {
-				L ret = c;
-				if(ret == null)
+				if(i >= sl.length)
 				    throw(new NoSuchElementException());
-				c = n();
-				return(ret);
-			    }
-			    
-			    public void remove() {
-				throw(new UnsupportedOperationException());
+				return(cl.cast(sl[i++].get()));
 			    }
 			});
 		}
@@ -1419,11 +1693,10 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	if(loading && th)
 	    throw(new Loading(this));
 	checkerr();
-	for(Layer l : layers) {
-	    if(cl.isInstance(l))
-		return(cl.cast(l));
-	}
-	return(null);
+	LayerSlot[] sl = lslots(cl);
+	if(sl.length == 0)
+	    return(null);
+	return(cl.cast(sl[0].get()));
     }
 	
     public <L extends Layer> L layer(Class<L> cl) {
@@ -1434,12 +1707,10 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	if(loading)
 	    throw(new Loading(this));
 	checkerr();
-	for(Layer l : layers) {
-	    if(cl.isInstance(l)) {
-		L ll = cl.cast(l);
-		if(ll.layerid().equals(id))
-		    return(ll);
-	    }
+	for(LayerSlot sl : lslots(cl)) {
+	    L ll = cl.cast(sl.get());
+	    if(ll.layerid().equals(id))
+		return(ll);
 	}
 	return(null);
     }
@@ -1472,7 +1743,7 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	buf = new byte[2];
 	readall(in, buf);
 	int ver = Utils.uint16d(buf, 0);
-	List<Layer> layers = new LinkedList<Layer>();
+	List<LayerSlot> layers = new ArrayList<LayerSlot>();
 	if(this.ver == -1) {
 	    this.ver = ver;
 	} else {
@@ -1502,11 +1773,41 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	    LayerFactory<?> lc = ltypes.get(tbuf.toString());
 	    if(lc == null)
 		continue;
-	    layers.add(lc.cons(this, buf));
-	}
-	this.layers = layers;
-	for(Layer l : layers)
-	    l.init();
+	    if(lc instanceof LayerConstructor)
+		layers.add(new LayerSlot((LayerConstructor<?>)lc, buf));
+	    else
+		layers.add(new LayerSlot(lc.cons(this, buf)));
+	}
+	this.layers = layers.toArray(new LayerSlot[0]);
+	this.lindex = new HashMap<Class<?>, LayerSlot[]>();
+	for(LayerSlot sl : this.layers) {
+	    if(sl.l != null)
+		sl.l.init();
+	}
+    }
+
+    /* Layers that have not been decoded yet cannot be serialized,
+     * as their factories are not, so they are left out. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+	List<LayerSlot> done = new ArrayList<LayerSlot>();
+	for(LayerSlot sl : layers) {
+	    if(sl.l != null)
+		done.add(sl);
+	}
+	ObjectOutputStream.PutField fields = out.putFields();
+	fields.put("error", error);
+	fields.put("layers", done.toArray(new LayerSlot[0]));
+	fields.put("name", name);
+	fields.put("ver", ver);
+	fields.put("loading", loading);
+	fields.put("source", source);
+	fields.put("prio", prio);
+	out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	lindex = new HashMap<Class<?>, LayerSlot[]>();
     }
 	
     public Indir<Resource> indir() {
@@ -1634,10 +1935,129 @@ public class Resource implements Comparable<Resource>, Prioritized, Serializable
 	}
     }
 
+    static {
+	Console.setscmd("resstat", new Console.Command() {
+		public void run(Console cons, String[] args) {
+		    for(String ln : loadstats())
+			cons.out.println(ln);
+		}
+	    });
+    }
+
     public static void main(String[] args) throws Exception {
 	String cmd = args[0].intern();
 	if(cmd == "update") {
 	    updateloadlist(new File(args[1]));
+	} else if(cmd == "audiobench") {
+	    audiobench(new java.util.jar.JarFile(args[1]), (args.length > 2) ? Integer.parseInt(args[2]) : 5);
+	}
+    }
+
+    /* Measures Vorbis decoding over all audio layers in a resource
+     * jar, both with a new decoder for every pass as clips used to be
+     * looped, and with one seeked back to the start for each. */
+    private static void audiobench(java.util.jar.JarFile jar, int passes) throws IOException {
+	List<byte[]> clips = new ArrayList<byte[]>();
+	for(Enumeration<java.util.jar.JarEntry> i = jar.entries(); i.hasMoreElements();) {
+	    java.util.jar.JarEntry e = i.nextElement();
+	    if(!e.getName().endsWith(".res"))
+		continue;
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(jar.getInputStream(e)));
+	    try {
+		in.skipBytes(18);
+		while(true) {
+		    StringBuilder nm = new StringBuilder();
+		    int c;
+		    while((c = in.read()) > 0)
+			nm.append((char)c);
+		    if(c < 0)
+			break;
+		    byte[] buf = new byte[4];
+		    in.readFully(buf);
+		    buf = new byte[Utils.int32d(buf, 0)];
+		    in.readFully(buf);
+		    if(nm.toString().equals("audio")) {
+			clips.add(buf);
+		    } else if(nm.toString().equals("audio2")) {
+			int[] off = {1};
+			Utils.strd(buf, off);
+			if(buf[0] == 2)
+			    off[0] += 2;
+			clips.add(Arrays.copyOfRange(buf, off[0], buf.length));
+		    }
+		}
+	    } finally {
+		in.close();
+	    }
+	}
+	java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+	dolda.xiphutil.VorbisStream[] vs = new dolda.xiphutil.VorbisStream[clips.size()];
+	float[][] buf = new float[2][4096];
+	double maxd = 0;
+	for(int round = 0; round < 2; round++) {
+	    for(boolean reuse : new boolean[] {false, true}) {
+		long st = mx.getCurrentThreadCpuTime();
+		double dec = 0;
+		for(int p = 0; p < passes; p++) {
+		    for(int i = 0; i < vs.length; i++) {
+			long n = 0;
+			int rate;
+			if(reuse) {
+			    if(vs[i] == null)
+				vs[i] = new dolda.xiphutil.VorbisStream(clips.get(i));
+			    else
+				vs[i].seek(0);
+			    if(buf.length < vs[i].chn)
+				buf = new float[vs[i].chn][4096];
+			    for(int ret; (ret = vs[i].decode(buf, 0, 4096)) >= 0; n += ret);
+			    rate = vs[i].rate;
+			} else {
+			    dolda.xiphutil.VorbisStream s = new dolda.xiphutil.VorbisStream(clips.get(i));
+			    for(float[][] b; (b = s.decode()) != null; n += b[0].length);
+			    rate = s.rate;
+			}
+			dec += (double)n / rate;
+		    }
+		}
+		double cpu = (mx.getCurrentThreadCpuTime() - st) / 1e9;
+		System.out.printf("%s: %d clips, %.1f s decoded in %.2f s CPU, %.1f s/CPU-s%n", reuse ? "seeking" : "fresh", vs.length, dec, cpu, dec / cpu);
+	    }
+	}
+	/* Check that seeking lands on the samples a plain decode from
+	 * the start gives, in every channel and without resampling. */
+	Random rnd = new Random(1);
+	int nseek = 0, bad = 0;
+	for(int i = 0; i < vs.length; i++) {
+	    dolda.xiphutil.VorbisStream s = new dolda.xiphutil.VorbisStream(new ByteArrayInputStream(clips.get(i)));
+	    List<float[][]> parts = new ArrayList<float[][]>();
+	    int len = 0;
+	    for(float[][] b; (b = s.decode()) != null; len += b[0].length)
+		parts.add(b);
+	    float[][] all = new float[s.chn][len];
+	    for(int p = 0, o = 0; p < parts.size(); o += parts.get(p++)[0].length) {
+		for(int ch = 0; ch < s.chn; ch++)
+		    System.arraycopy(parts.get(p)[ch], 0, all[ch], o, parts.get(p)[ch].length);
+	    }
+	    for(int t = 0; t < 20; t++) {
+		int to = (t == 0) ? 0 : rnd.nextInt(len);
+		vs[i].seek(to);
+		int got = 0;
+		for(int ret; (got < 8192) && ((ret = vs[i].decode(buf, 0, 4096)) >= 0); got += ret) {
+		    for(int ch = 0; ch < s.chn; ch++) {
+			for(int o = 0; o < ret; o++) {
+			    if(to + got + o >= len) {
+				bad++;
+				break;
+			    }
+			    maxd = Math.max(maxd, Math.abs(buf[ch][o] - all[ch][to + got + o]));
+			}
+		    }
+		}
+		if(got < Math.min(8192, len - to))
+		    bad++;
+		nseek++;
+	    }
 	}
+	System.out.printf("%d seeks: largest difference %g, %d ending at the wrong place%n", nseek, maxd, bad);
     }
 }
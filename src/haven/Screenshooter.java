@@ -169,7 +169,7 @@ public class Screenshooter extends Window {
 		hdat.addstring(Config.confid);
 		IIOMetadataNode app4 = new IIOMetadataNode("unknown");
 		app4.setAttribute("MarkerTag", "228");
-		app4.setUserObject(hdat.blob);
+		app4.setUserObject(hdat.fin());
 		mseq.appendChild(app4);
 		
 		dat.setFromTree("javax_imageio_jpeg_image_1.0", root);
@@ -252,7 +252,7 @@ public class Screenshooter extends Window {
 	    Message auth = new Message(0);
 	    auth.addstring2(ui.sess.username + "/");
 	    auth.addbytes(ui.sess.sesskey);
-	    conn.addRequestProperty("Authorization", "Haven " + Utils.base64enc(auth.blob));
+	    conn.addRequestProperty("Authorization", "Haven " + Utils.base64enc(auth.fin()));
 	    conn.connect();
 	    OutputStream out = conn.getOutputStream();
 	    try {
@@ -30,6 +30,9 @@ import java.net.*;
 import java.util.*;
 import java.io.*;
 import java.lang.ref.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Session {
     public static final int PVER = 36;
@@ -71,8 +74,11 @@ public class Session {
     public static final int SESSERR_EXPR = 5;
     
     static final int ackthresh = 30;
+    static final int maxdgram = 1000;
+    static final int minrto = 80, maxrto = 4000;
+    static final double mincwnd = 4 * maxdgram, maxcwnd = 256 * maxdgram;
 	
-    DatagramSocket sk;
+    DatagramChannel sk;
     SocketAddress server;
     Thread rworker, sworker, ticker;
     Object[] args;
@@ -81,15 +87,35 @@ public class Session {
     int tseq = 0, rseq = 0;
     int ackseq;
     long acktime = -1;
-    LinkedList<Message> uimsgs = new LinkedList<Message>();
+    LinkedList<UIMsg> uimsgs = new LinkedList<UIMsg>();
     Map<Integer, Message> waiting = new TreeMap<Integer, Message>();
-    LinkedList<Message> pending = new LinkedList<Message>();
+    /* Ordered by sequence number, so that acknowledged messages are
+     * always found at its head. */
+    ArrayDeque<Message> pending = new ArrayDeque<Message>();
     Map<Long, ObjAck> objacks = new TreeMap<Long, ObjAck>();
     String username;
     byte[] cookie;
     final Map<Integer, CachedRes> rescache = new TreeMap<Integer, CachedRes>();
     public final Glob glob;
     public byte[] sesskey;
+    private boolean closereq = false;
+    /* Datagrams sent by threads other than the writer, which sends
+     * them on their behalf. */
+    private final Queue<byte[]> outq = new ConcurrentLinkedQueue<byte[]>();
+    /* If set, every datagram received is written here, as {u32
+     * milliseconds since the first, u16 length, data}, to be replayed
+     * by haven.test.NetStandIn. */
+    private DataOutputStream netrec = null;
+    private long netrecst = 0;
+    public long rxpkts, txpkts, txrel, retxn;
+    /* Reliable transmission state, guarded by pending. */
+    double srtt = -1, rttvar = 0;
+    int rto = 200;
+    double cwnd = 16 * maxdgram, ssthresh = maxcwnd;
+    long lastloss = 0;
+    int dupacks = 0;
+    Message lost = null;
+    private long statt = System.currentTimeMillis(), statretx = 0;
 	
     @SuppressWarnings("serial")
 	public class MessageException extends RuntimeException {
@@ -101,6 +127,35 @@ public class Session {
 	    }
 	}
 	
+    /* UI messages are decoded on the receiving thread, so that the
+     * UI thread only has to apply them. */
+    public static class UIMsg {
+	public final int type, id;
+	public final String name;
+	public final int parent;
+	public final Object[] pargs, args;
+
+	public UIMsg(Message msg) {
+	    this.type = msg.type;
+	    this.id = msg.uint16();
+	    if(type == Message.RMSG_NEWWDG) {
+		this.name = msg.string();
+		this.parent = msg.uint16();
+		this.pargs = msg.list();
+		this.args = msg.list();
+	    } else if(type == Message.RMSG_WDGMSG) {
+		this.name = msg.string();
+		this.parent = -1;
+		this.pargs = null;
+		this.args = msg.list();
+	    } else {
+		this.name = null;
+		this.parent = -1;
+		this.pargs = this.args = null;
+	    }
+	}
+    }
+
     public static class LoadingIndir extends Loading {
 	public final int resid;
 	private final CachedRes res;
@@ -116,6 +171,18 @@ public class Session {
 		    res.wait();
 	    }
 	}
+	public boolean waitfor(Runnable cb) {
+	    synchronized(res) {
+		if(res.resnm == null) {
+		    if(res.setcbs == null)
+			res.setcbs = new LinkedList<Runnable>();
+		    res.setcbs.add(cb);
+		    return(true);
+		}
+	    }
+	    cb.run();
+	    return(true);
+	}
 	public boolean canwait() {return(true);}
     }
 
@@ -124,6 +191,7 @@ public class Session {
 	private String resnm = null;
 	private int resver;
 	private Reference<Indir<Resource>> ind;
+	private Collection<Runnable> setcbs = null;
 	
 	private CachedRes(int id) {
 	    resid = id;
@@ -162,12 +230,19 @@ public class Session {
 	}
 	
 	public void set(String nm, int ver) {
+	    Collection<Runnable> cbs;
 	    synchronized(this) {
 		this.resnm = nm;
 		this.resver = ver;
 		notifyAll();
+		cbs = setcbs;
+		setcbs = null;
 	    }
 	    Resource.load(nm, ver, -5);
+	    if(cbs != null) {
+		for(Runnable cb : cbs)
+		    cb.run();
+	    }
 	}
     }
 
@@ -221,7 +296,7 @@ public class Session {
     }
 	
     private class RWorker extends HackThread {
-	boolean alive;
+	volatile boolean alive;
 		
 	public RWorker() {
 	    super("Session reader");
@@ -229,18 +304,57 @@ public class Session {
 	}
 		
 	private void gotack(int seq) {
+	    long now = System.currentTimeMillis();
+	    int acked = 0;
 	    synchronized(pending) {
-		for(ListIterator<Message> i = pending.listIterator(); i.hasNext(); ) {
-		    Message msg = i.next();
-		    if(msg.seq <= seq)
-			i.remove();
+		Message last = null;
+		boolean clean = true;
+		while(!pending.isEmpty()) {
+		    Message msg = pending.peekFirst();
+		    if((msg.retx == 0) || (Utils.floormod(seq - msg.seq, 65536) >= 32768))
+			break;
+		    pending.removeFirst();
+		    if(msg == lost)
+			lost = null;
+		    last = msg;
+		    acked += msg.size();
+		    if(msg.retx > 1)
+			clean = false;
 		}
+		Message head = pending.peekFirst();
+		if(last == null) {
+		    /* The server acknowledges every packet it receives, so
+		     * repeated acks for the message before the head mean
+		     * that later ones arrived but the head did not. */
+		    if((head != null) && (head.retx > 0) && (seq == Utils.floormod(head.seq - 1, 65536))) {
+			if(++dupacks == 3)
+			    lost = head;
+		    }
+		    return;
+		}
+		dupacks = 0;
+		/* Karn's rule: only unambiguous samples are used, which
+		 * also excludes acks held back by a lost message. */
+		if(clean)
+		    rttsample(now - last.last);
+		/* A partial ack in the face of a retransmission means
+		 * that the new head was lost as well. */
+		if((head != null) && (head.retx > 0) && (last.retx > 1) && (head.last < last.last))
+		    lost = head;
+		if(cwnd < ssthresh)
+		    cwnd += acked;
+		else
+		    cwnd += (double)maxdgram * acked / cwnd;
+		cwnd = Math.min(cwnd, maxcwnd);
+	    }
+	    synchronized(sworker) {
+		sworker.notifyAll();
 	    }
 	}
 		
 	private void getobjdata(Message msg) {
 	    OCache oc = glob.oc;
-	    while(msg.off < msg.blob.length) {
+	    while(!msg.eom()) {
 		int fl = msg.uint8();
 		long id = msg.uint32();
 		int frame = msg.int32();
@@ -488,17 +602,10 @@ public class Session {
 	}
 		
 	private void handlerel(Message msg) {
-	    if(msg.type == Message.RMSG_NEWWDG) {
+	    if((msg.type == Message.RMSG_NEWWDG) || (msg.type == Message.RMSG_WDGMSG) || (msg.type == Message.RMSG_DSTWDG)) {
+		UIMsg umsg = new UIMsg(msg);
 		synchronized(uimsgs) {
-		    uimsgs.add(msg);
-		}
-	    } else if(msg.type == Message.RMSG_WDGMSG) {
-		synchronized(uimsgs) {
-		    uimsgs.add(msg);
-		}
-	    } else if(msg.type == Message.RMSG_DSTWDG) {
-		synchronized(uimsgs) {
-		    uimsgs.add(msg);
+		    uimsgs.add(umsg);
 		}
 	    } else if(msg.type == Message.RMSG_MAPIV) {
 		glob.map.invalblob(msg);
@@ -562,28 +669,33 @@ public class Session {
 	}
 		
 	public void run() {
+	    /* Messages are parsed directly from the receive buffer,
+	     * so anything kept beyond the handling of a packet must
+	     * be copied out of it, as getrel() and Message.derive()
+	     * do. */
+	    ByteBuffer rbuf = ByteBuffer.allocate(65536);
 	    try {
 		alive = true;
-		try {
-		    sk.setSoTimeout(1000);
-		} catch(SocketException e) {
-		    throw(new RuntimeException(e));
-		}
 		while(alive) {
-		    DatagramPacket p = new DatagramPacket(new byte[65536], 65536);
+		    rbuf.clear();
+		    SocketAddress from;
 		    try {
-			sk.receive(p);
-		    } catch(java.nio.channels.ClosedByInterruptException e) {
-			/* Except apparently Sun's J2SE doesn't throw this when interrupted :P*/
-			break;
-		    } catch(SocketTimeoutException e) {
-			continue;
+			from = sk.receive(rbuf);
+		    } catch(ClosedChannelException e) {
+			/* Including interruption, which closes the
+			 * channel, and is how this worker is stopped. */
+			if(!alive)
+			    break;
+			throw(new RuntimeException("Session channel closed unexpectedly", e));
 		    } catch(IOException e) {
 			throw(new RuntimeException(e));
 		    }
-		    if(!p.getSocketAddress().equals(server))
+		    if(!server.equals(from) || (rbuf.position() < 1))
 			continue;
-		    Message msg = new Message(p.getData()[0], p.getData(), 1, p.getLength() - 1);
+		    rxpkts++;
+		    if(netrec != null)
+			record(rbuf.array(), rbuf.position());
+		    Message msg = Message.view(rbuf.get(0), rbuf.array(), 1, rbuf.position() - 1);
 		    if(msg.type == MSG_SESS) {
 			if(state == "conn") {
 			    int error = msg.uint8();
@@ -609,7 +721,7 @@ public class Session {
 				    type &= 0x7f;
 				    len = msg.uint16();
 				} else {
-				    len = msg.blob.length - msg.off;
+				    len = msg.size();
 				}
 				getrel(seq, new Message(type, msg.blob, msg.off, len));
 				msg.off += len;
@@ -633,6 +745,12 @@ public class Session {
 		    }
 		}
 	    } finally {
+		if(netrec != null) {
+		    try {
+			netrec.close();
+		    } catch(IOException e) {
+		    }
+		}
 		synchronized(Session.this) {
 		    state = "dead";
 		    Session.this.notifyAll();
@@ -646,19 +764,145 @@ public class Session {
 	}
     }
 	
+    private void rttsample(long r) {
+	if(srtt < 0) {
+	    srtt = r;
+	    rttvar = r / 2.0;
+	} else {
+	    rttvar = (0.75 * rttvar) + (0.25 * Math.abs(srtt - r));
+	    srtt = (0.875 * srtt) + (0.125 * r);
+	}
+	rto = Utils.clip((int)Math.ceil(srtt + Math.max(ackthresh, 4 * rttvar)), minrto, maxrto);
+    }
+
+    private void congested(long now) {
+	/* At most one window reduction per round trip. */
+	if(now - lastloss > Math.max(srtt, minrto)) {
+	    ssthresh = Math.max(cwnd / 2, mincwnd);
+	    cwnd = ssthresh;
+	    lastloss = now;
+	}
+    }
+
+    /* The time to wait before (re)sending a message which has been
+     * sent retx times. Must be called with pending locked. */
+    private int txtime(int retx) {
+	if(retx == 0)
+	    return(0);
+	return((int)Math.min((long)rto << Math.min(retx - 1, 10), maxrto));
+    }
+
+    /* Returns the time at which msg should next be sent, given that
+     * it is preceded by fl bytes of messages in flight, or -1 if the
+     * congestion window does not admit it. Only the oldest message
+     * is retransmitted on timeout, others only when marked as lost
+     * by gotack(). Must be called with pending locked. */
+    private long txdue(Message msg, int fl) {
+	if(msg.retx == 0)
+	    return(((fl > 0) && (fl + msg.size() > cwnd)) ? -1 : 0);
+	if(msg == lost)
+	    return(0);
+	if(fl > 0)
+	    return(Long.MAX_VALUE);
+	return(msg.last + txtime(msg.retx) + 1);
+    }
+
     private class SWorker extends HackThread {
+	long last = 0;
 		
 	public SWorker() {
 	    super("Session writer");
 	    setDaemon(true);
 	}
+
+	/* Returns the time of the next scheduled transmission. Must
+	 * be called with this worker locked, so that any event
+	 * changing it cannot slip in before waiting. */
+	private long nextevent() {
+	    long next = last + 5000;
+	    synchronized(pending) {
+		int fl = 0;
+		for(Message msg : pending) {
+		    long due = txdue(msg, fl);
+		    if(due < 0)
+			break;
+		    next = Math.min(next, due);
+		    fl += msg.size();
+		}
+	    }
+	    synchronized(objacks) {
+		for(ObjAck a : objacks.values())
+		    next = Math.min(next, Math.min(a.sent + 201, a.recv + 121));
+	    }
+	    if(acktime > 0)
+		next = Math.min(next, acktime + ackthresh);
+	    if(!outq.isEmpty())
+		next = 0;
+	    return(next);
+	}
+
+	/* Sends all reliable messages that are due and within the
+	 * congestion window, coalescing runs of consecutive sequence
+	 * numbers into single packets. */
+	private boolean sendrel(long now) {
+	    synchronized(pending) {
+		if(pending.isEmpty())
+		    return(false);
+		Message rmsg = null;
+		int nseq = -1, fl = 0;
+		long batch = -1;
+		for(Message msg : pending) {
+		    long due = txdue(msg, fl);
+		    if(due < 0)
+			break;
+		    fl += msg.size();
+		    if(now < due) {
+			/* Since packets are lost as a whole, messages
+			 * originally sent together with a retransmitted
+			 * one are resent with it, as far as they fit in
+			 * the same packet. */
+			if((msg.last != batch) || (msg.seq != nseq) || (rmsg.size() + msg.size() + 3 > maxdgram)) {
+			    batch = -1;
+			    continue;
+			}
+		    } else if(msg.retx > 0) {
+			congested(now);
+			lost = null;
+			batch = msg.last;
+		    }
+		    if((rmsg != null) && ((msg.seq != nseq) || (rmsg.size() + msg.size() + 3 > maxdgram))) {
+			sendmsg(rmsg);
+			rmsg = null;
+		    }
+		    if(rmsg == null) {
+			rmsg = new Message(MSG_REL);
+			rmsg.adduint16(msg.seq);
+		    }
+		    if(msg.retx > 0)
+			retxn++;
+		    msg.last = now;
+		    msg.retx++;
+		    rmsg.adduint8(msg.type | 0x80);
+		    rmsg.adduint16(msg.size());
+		    rmsg.addbytes(msg.blob, msg.off, msg.size());
+		    txrel++;
+		    nseq = (msg.seq + 1) % 65536;
+		}
+		if(rmsg != null)
+		    sendmsg(rmsg);
+		return(true);
+	    }
+	}
 		
 	public void run() {
 	    try {
-		long to, last = 0, retries = 0;
+		long retries = 0;
 		while(true) {
-					
 		    long now = System.currentTimeMillis();
+		    synchronized(this) {
+			if(closereq)
+			    throw(new InterruptedException());
+		    }
 		    if(state == "conn") {
 			if(now - last > 2000) {
 			    if(++retries > 5) {
@@ -679,21 +923,14 @@ public class Session {
 			    sendmsg(msg);
 			    last = now;
 			}
-			Thread.sleep(100);
-		    } else {
-			to = 5000;
-			synchronized(pending) {
-			    if(pending.size() > 0)
-				to = 60;
-			}
-			synchronized(objacks) {
-			    if((objacks.size() > 0) && (to > 120))
-				to = 200;
+			synchronized(this) {
+			    if(!closereq && (state == "conn"))
+				this.wait(Math.max(last + 2001 - now, 1));
 			}
+		    } else {
 			synchronized(this) {
-			    if(acktime > 0)
-				to = acktime + ackthresh - now;
-			    if(to > 0)
+			    long to = nextevent() - now;
+			    if(!closereq && (to > 0))
 				this.wait(to);
 			}
 			now = System.currentTimeMillis();
@@ -707,33 +944,12 @@ public class Session {
 			  getThreadGroup().interrupt();
 			  }
 			*/
-			synchronized(pending) {
-			    if(pending.size() > 0) {
-				for(Message msg : pending) {
-				    int txtime;
-				    if(msg.retx == 0)
-					txtime = 0;
-				    else if(msg.retx == 1)
-					txtime = 80;
-				    else if(msg.retx < 4)
-					txtime = 200;
-				    else if(msg.retx < 10)
-					txtime = 620;
-				    else
-					txtime = 2000;
-				    if(now - msg.last > txtime) { /* XXX */
-					msg.last = now;
-					msg.retx++;
-					Message rmsg = new Message(MSG_REL);
-					rmsg.adduint16(msg.seq);
-					rmsg.adduint8(msg.type);
-					rmsg.addbytes(msg.blob);
-					sendmsg(rmsg);
-				    }
-				}
-				beat = false;
-			    }
+			for(byte[] msg = outq.poll(); msg != null; msg = outq.poll()) {
+			    send(msg);
+			    beat = false;
 			}
+			if(sendrel(now))
+			    beat = false;
 			synchronized(objacks) {
 			    Message msg = null;
 			    for(Iterator<ObjAck> i = objacks.values().iterator(); i.hasNext();) {
@@ -746,7 +962,7 @@ public class Session {
 				if(send) {
 				    if(msg == null) {
 					msg = new Message(MSG_OBJACK);
-				    } else if(msg.blob.length > 1000 - 8) {
+				    } else if(msg.size() > maxdgram - 8) {
 					sendmsg(msg);
 					beat = false;
 					msg = new Message(MSG_OBJACK);
@@ -777,6 +993,8 @@ public class Session {
 				sendmsg(new byte[] {MSG_BEAT});
 				last = now;
 			    }
+			} else {
+			    last = now;
 			}
 		    }
 		}
@@ -812,13 +1030,16 @@ public class Session {
 	this.args = args;
 	glob = new Glob(this);
 	try {
-	    sk = new DatagramSocket();
-	} catch(SocketException e) {
+	    sk = DatagramChannel.open();
+	    sk.bind(null);
+	    if(Config.netrec != null)
+		netrec = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(Config.netrec)));
+	} catch(IOException e) {
 	    throw(new RuntimeException(e));
 	}
 	rworker = new RWorker();
-	rworker.start();
 	sworker = new SWorker();
+	rworker.start();
 	sworker.start();
 	ticker = new Ticker();
 	ticker.start();
@@ -834,7 +1055,12 @@ public class Session {
     }
 	
     public void close() {
-	sworker.interrupt();
+	/* Not interrupting the writer, since that would close the
+	 * channel before it has had a chance to say goodbye. */
+	synchronized(sworker) {
+	    closereq = true;
+	    sworker.notifyAll();
+	}
     }
 	
     public synchronized boolean alive() {
@@ -852,7 +1078,7 @@ public class Session {
 	}
     }
 	
-    public Message getuimsg() {
+    public UIMsg getuimsg() {
 	synchronized(uimsgs) {
 	    if(uimsgs.size() == 0)
 		return(null);
@@ -861,16 +1087,63 @@ public class Session {
     }
 	
     public void sendmsg(Message msg) {
-	byte[] buf = new byte[msg.blob.length + 1];
+	byte[] buf = new byte[msg.size() + 1];
 	buf[0] = (byte)msg.type;
-	System.arraycopy(msg.blob, 0, buf, 1, msg.blob.length);
+	System.arraycopy(msg.blob, msg.off, buf, 1, msg.size());
 	sendmsg(buf);
     }
 	
+    /* An interrupted send closes the channel for good, so only the
+     * writer, which is never interrupted while the session is alive,
+     * sends on it. */
     public void sendmsg(byte[] msg) {
+	if(Thread.currentThread() == sworker) {
+	    send(msg);
+	} else {
+	    outq.add(msg);
+	    synchronized(sworker) {
+		sworker.notifyAll();
+	    }
+	}
+    }
+
+    private void send(byte[] msg) {
+	try {
+	    sk.send(ByteBuffer.wrap(msg), server);
+	    txpkts++;
+	} catch(IOException e) {
+	}
+    }
+
+    private void record(byte[] buf, int len) {
 	try {
-	    sk.send(new DatagramPacket(msg, msg.length, server));
+	    long now = System.currentTimeMillis();
+	    if(netrecst == 0)
+		netrecst = now;
+	    netrec.writeInt((int)(now - netrecst));
+	    netrec.writeShort(len);
+	    netrec.write(buf, 0, len);
+	    netrec.flush();
 	} catch(IOException e) {
+	    netrec = null;
+	}
+    }
+
+    public String stats() {
+	long now = System.currentTimeMillis();
+	double rrate = (retxn - statretx) * 1000.0 / Math.max(now - statt, 1);
+	statt = now; statretx = retxn;
+	synchronized(pending) {
+	    int fl = 0;
+	    for(Message msg : pending) {
+		if(msg.retx == 0)
+		    break;
+		fl += msg.size();
+	    }
+	    return(String.format("rx %d pkts, tx %d pkts, %d rel msgs (%d retransmitted, %.1f/s)\n" +
+				 "rtt %.0f ms (var %.0f), rto %d ms, window %.0f bytes, %d in flight, %d pending",
+				 rxpkts, txpkts, txrel, retxn, rrate,
+				 srtt, rttvar, rto, cwnd, fl, pending.size()));
 	}
     }
 }
@@ -966,7 +966,7 @@ public class Store extends Window {
 	    Message auth = new Message(0);
 	    auth.addstring(ui.sess.username);
 	    auth.addbytes(ui.sess.sesskey);
-	    conn.setRequestProperty("Authorization", "Haven " + Utils.base64enc(auth.blob));
+	    conn.setRequestProperty("Authorization", "Haven " + Utils.base64enc(auth.fin()));
 	    return(conn);
 	} catch(IOException e) {
 	    throw(new IOError(e));
@@ -982,7 +982,7 @@ public class Store extends Window {
 	buf.addlist(data);
 	conn.setDoOutput(true);
 	try(OutputStream fp = conn.getOutputStream()) {
-	    fp.write(buf.blob);
+	    fp.write(buf.blob, buf.off, buf.size());
 	} catch(IOException e) {
 	    throw(new IOError(e));
 	}
@@ -30,13 +30,17 @@ import java.awt.Graphics;
 import java.awt.image.*;
 import java.awt.color.ColorSpace;
 import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.media.opengl.*;
+import haven.Defer.Future;
 
 public class TexI extends TexGL {
     public static ComponentColorModel glcm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[] {8, 8, 8, 8}, true, false, ComponentColorModel.TRANSLUCENT, DataBuffer.TYPE_BYTE);
     public BufferedImage back;
     private int fmt = GL.GL_RGBA;
     public Mipmapper mmalg = Mipmapper.avg;
+    private Future<Prepared> prep = null;
 
     public TexI(BufferedImage img) {
 	super(Utils.imgsz(img));
@@ -89,60 +93,206 @@ public class TexI extends TexGL {
 	return(-1);
     }
 
-    protected void fill(GOut g) {
-	GL gl = g.gl;
-	Coord sz = Utils.imgsz(back);
-	int ifmt = detectfmt(back);
-	if((ifmt == GL.GL_RGBA) || (ifmt == GL.GL_BGRA)) {
-	    byte[] pixels = ((DataBufferByte)back.getRaster().getDataBuffer()).getData();
-	    if(sz.equals(tdim)) {
-		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, fmt, tdim.x, tdim.y, 0, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(pixels));
-		if(mipmap)
-		    genmipmap(gl, 1, tdim, pixels, ifmt);
+    /* The pixels of a texture converted to a format GL takes and
+     * with its mipmaps built, so that only uploading them remains
+     * to be done on the render thread. */
+    public static class Prepared {
+	public final Coord sz, tdim;
+	public final Mipmapper mm;
+	public final int ifmt;
+	public final byte[][] data;
+
+	public Prepared(BufferedImage img, Coord tdim, Mipmapper mm) {
+	    this.tdim = tdim;
+	    this.mm = mm;
+	    Coord sz = Utils.imgsz(img);
+	    int ifmt = detectfmt(img);
+	    if(((ifmt == GL.GL_RGB) || (ifmt == GL2.GL_BGR)) && (mm != null) && !(mm instanceof Mipmapper.Mipmapper3))
+		ifmt = -1;
+	    byte[] pixels;
+	    if(ifmt == -1) {
+		pixels = convert(img, tdim);
+		ifmt = GL.GL_RGBA;
+		sz = tdim;
 	    } else {
-		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, fmt, tdim.x, tdim.y, 0, ifmt, GL.GL_UNSIGNED_BYTE, null);
-		gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, sz.x, sz.y, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(pixels));
+		pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+	    }
+	    this.sz = sz;
+	    this.ifmt = ifmt;
+	    List<byte[]> data = new ArrayList<byte[]>();
+	    data.add(pixels);
+	    if((mm != null) && sz.equals(tdim)) {
+		Coord msz = tdim;
+		while((msz.x > 1) || (msz.y > 1)) {
+		    if((ifmt == GL.GL_RGB) || (ifmt == GL2.GL_BGR))
+			pixels = ((Mipmapper.Mipmapper3)mm).gen3(msz, pixels, ifmt);
+		    else
+			pixels = mm.gen4(msz, pixels, ifmt);
+		    data.add(pixels);
+		    msz = Mipmapper.nextsz(msz);
+		}
 	    }
-	} else if((ifmt == GL.GL_RGB) || (ifmt == GL2.GL_BGR)) {
-	    gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
-	    byte[] pixels = ((DataBufferByte)back.getRaster().getDataBuffer()).getData();
+	    this.data = data.toArray(new byte[0][]);
+	}
+
+	public int bytes() {
+	    int ret = 0;
+	    for(byte[] d : data)
+		ret += d.length;
+	    return(ret);
+	}
+
+	public void upload(GL gl, int fmt) {
+	    if((ifmt == GL.GL_RGB) || (ifmt == GL2.GL_BGR))
+		gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
 	    if(sz.equals(tdim)) {
-		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, fmt, tdim.x, tdim.y, 0, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(pixels));
-		if(mipmap)
-		    genmipmap3(gl, 1, tdim, pixels, ifmt);
+		Coord cdim = tdim;
+		for(int i = 0; i < data.length; i++) {
+		    gl.glTexImage2D(GL.GL_TEXTURE_2D, i, fmt, cdim.x, cdim.y, 0, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(data[i]));
+		    cdim = Mipmapper.nextsz(cdim);
+		}
 	    } else {
 		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, fmt, tdim.x, tdim.y, 0, ifmt, GL.GL_UNSIGNED_BYTE, null);
-		gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, sz.x, sz.y, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(pixels));
+		gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, sz.x, sz.y, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(data[0]));
 	    }
-	} else {
-	    /* System.err.println("Weird: " + this); */
-	    byte[] pixels = convert(back, tdim);
-	    gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, fmt, tdim.x, tdim.y, 0, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(pixels));
-	    if(mipmap)
-		genmipmap(gl, 1, tdim, pixels, GL.GL_RGBA);
+	    fbytes += bytes();
 	}
     }
-    
-    private void genmipmap(GL gl, int lev, Coord dim, byte[] data, int ifmt) {
-	Coord ndim = Mipmapper.nextsz(dim);
-	byte[] ndata = mmalg.gen4(dim, data, ifmt);
-	gl.glTexImage2D(GL.GL_TEXTURE_2D, lev, fmt, ndim.x, ndim.y, 0, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(ndata));
-	if((ndim.x > 1) || (ndim.y > 1))
-	    genmipmap(gl, lev + 1, ndim, ndata, ifmt);
+
+    private static final AtomicInteger pending = new AtomicInteger(0);
+    private static int fbytes = 0, lbytes = 0;
+    private static int nprep = 0;
+    private static long ptime = 0, pmax = 0;
+    private static final Loading overbudget = RenderList.RLoad.wrap(new Loading("Texture upload budget exhausted for this frame"));
+
+    private static void prepared(long start) {
+	long t = System.nanoTime() - start;
+	synchronized(pending) {
+	    nprep++;
+	    ptime += t;
+	    pmax = Math.max(pmax, t);
+	}
     }
-	
-    private void genmipmap3(GL gl, int lev, Coord dim, byte[] data, int ifmt) {
-	if(mmalg instanceof Mipmapper.Mipmapper3) {
-	    Coord ndim = Mipmapper.nextsz(dim);
-	    byte[] ndata = ((Mipmapper.Mipmapper3)mmalg).gen3(dim, data, ifmt);
-	    gl.glTexImage2D(GL.GL_TEXTURE_2D, lev, fmt, ndim.x, ndim.y, 0, ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(ndata));
-	    if((ndim.x > 1) || (ndim.y > 1))
-		genmipmap3(gl, lev + 1, ndim, ndata, ifmt);
+
+    /* Textures that can wait, such as mipmapped ones, which are only
+     * used in the scene, are not uploaded once Config.texupload bytes
+     * have been uploaded during a frame. */
+    public static void budget() {
+	if(fbytes >= Config.texupload)
+	    throw(overbudget);
+    }
+
+    /* To be called by the render thread at the start of every frame. */
+    public static void frame() {
+	lbytes = fbytes;
+	fbytes = 0;
+    }
+
+    public static String stats() {
+	synchronized(pending) {
+	    String ret = String.format("%d pending, %,d B/frame, %.1f ms avg, %.1f ms max",
+				       pending.get(), lbytes,
+				       (nprep > 0)?((ptime / nprep) * 1e-6):0.0, pmax * 1e-6);
+	    return(ret);
+	}
+    }
+
+    /* Starts converting the image and building its mipmaps in the
+     * background, so that they are ready by the time the texture is
+     * first drawn. Textures that are not mipmapped are converted
+     * inline when they are first drawn instead, since they cannot
+     * wait for it. */
+    public void prepare() {
+	synchronized(this) {
+	    if((prep != null) || (back == null) || !mipmap)
+		return;
+	    final BufferedImage img = back;
+	    final Coord tdim = this.tdim;
+	    final Mipmapper mm = mmalg;
+	    final long start = System.nanoTime();
+	    pending.incrementAndGet();
+	    prep = Defer.later(new Defer.Callable<Prepared>() {
+		    public Prepared call() {
+			Prepared ret = new Prepared(img, tdim, mm);
+			prepared(start);
+			return(ret);
+		    }
+		});
+	    prep.ondone(pending::decrementAndGet);
+	}
+    }
+
+    @Deprecated
+    public void mipmap() {
+	super.mipmap();
+	prepare();
+    }
+
+    /* Mipmapped textures wait for their preparation, like TexL
+     * does. Others, which may be drawn by the UI, are prepared
+     * here. */
+    private Prepared take(Mipmapper mm) {
+	synchronized(this) {
+	    if((prep != null) && (mm != null)) {
+		Prepared p = prep.get();
+		prep = null;
+		if((p.mm == mm) && p.tdim.equals(tdim))
+		    return(p);
+	    }
+	    if((mm != null) && (back != null)) {
+		prepare();
+		return(take(mm));
+	    }
+	}
+	long start = System.nanoTime();
+	Prepared p = new Prepared(back, tdim, mm);
+	prepared(start);
+	return(p);
+    }
+
+    protected void fill(GOut g) {
+	Prepared p;
+	if(mipmap) {
+	    budget();
+	    try {
+		p = take(mmalg);
+	    } catch(Loading l) {
+		throw(RenderList.RLoad.wrap(l));
+	    }
 	} else {
-	    genmipmap(gl, lev, dim, convert(back, dim), GL.GL_RGBA);
+	    p = take(null);
 	}
+	p.upload(g.gl, fmt);
     }
-	
+
+    public static void main(String[] args) {
+	/* Times the CPU preparation stages, which need no GL context. */
+	int w = (args.length > 0)?Integer.parseInt(args[0]):512;
+	int n = (args.length > 1)?Integer.parseInt(args[1]):20;
+	BufferedImage img = new BufferedImage(w, w, BufferedImage.TYPE_4BYTE_ABGR);
+	Random rnd = new Random(1);
+	for(int y = 0; y < w; y++) {
+	    for(int x = 0; x < w; x++)
+		img.setRGB(x, y, rnd.nextInt());
+	}
+	Coord tdim = new Coord(nextp2(w), nextp2(w));
+	Object[][] cases = {
+	    {"convert", null},
+	    {"avg", Mipmapper.avg},
+	    {"dav", Mipmapper.dav},
+	    {"lanczos", Mipmapper.lanczos},
+	};
+	for(Object[] c : cases) {
+	    for(int i = 0; i < 3; i++)
+		new Prepared(img, tdim, (Mipmapper)c[1]);
+	    long st = System.nanoTime();
+	    int bytes = 0;
+	    for(int i = 0; i < n; i++)
+		bytes = new Prepared(img, tdim, (Mipmapper)c[1]).bytes();
+	    System.out.printf("%-8s %dx%d: %.2f ms, %,d bytes\n", c[0], w, w, ((System.nanoTime() - st) * 1e-6) / n, bytes);
+	}
+    }
+
     public int getRGB(Coord c) {
 	return(back.getRGB(c.x, c.y));
     }
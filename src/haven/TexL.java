@@ -26,15 +26,13 @@
 
 package haven;
 
-import java.util.*;
 import java.awt.image.*;
-import java.nio.ByteBuffer;
 import javax.media.opengl.*;
 import haven.Defer.Future;
 
 public abstract class TexL extends TexGL {
     protected Mipmapper mipmap = null;
-    private Future<Prepared> decode = null;
+    private Future<TexI.Prepared> decode = null;
 
     protected abstract BufferedImage fill();
 
@@ -49,60 +47,13 @@ public abstract class TexL extends TexGL {
 	dispose();
     }
 
-    private class Prepared {
-	BufferedImage img;
-	byte[][] data;
-	int ifmt;
-
-	private Prepared() {
-	    img = fill();
-	    if(!Utils.imgsz(img).equals(dim))
-		throw(new RuntimeException("Generated TexL image from " + TexL.this + " does not match declared size"));
-	    ifmt = TexI.detectfmt(img);
-	    LinkedList<byte[]> data = new LinkedList<byte[]>();
-	    if((ifmt == GL.GL_RGB) || (ifmt == GL2.GL_BGR)) {
-		if((mipmap != null) && !(mipmap instanceof Mipmapper.Mipmapper3))
-		    ifmt = -1;
-	    }
-	    if((ifmt == GL.GL_RGB) || (ifmt == GL2.GL_BGR)) {
-		byte[] pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
-		data.add(pixels);
-		if(mipmap != null) {
-		    Coord msz = dim;
-		    Mipmapper.Mipmapper3 alg = (Mipmapper.Mipmapper3)mipmap;
-		    while((msz.x > 1) || (msz.y > 1)) {
-			pixels = alg.gen3(msz, pixels, ifmt);
-			data.add(pixels);
-			msz = Mipmapper.nextsz(msz);
-		    }
-		}
-	    } else {
-		byte[] pixels;
-		if((ifmt == GL.GL_RGBA) || (ifmt == GL.GL_BGRA)) {
-		    pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
-		} else {
-		    pixels = TexI.convert(img, dim);
-		    ifmt = GL.GL_RGBA;
-		}
-		data.add(pixels);
-		if(mipmap != null) {
-		    Coord msz = dim;
-		    while((msz.x > 1) || (msz.y > 1)) {
-			pixels = mipmap.gen4(msz, pixels, ifmt);
-			data.add(pixels);
-			msz = Mipmapper.nextsz(msz);
-		    }
-		}
-	    }
-	    this.data = data.toArray(new byte[0][]);
-	}
-    }
-
-    private Future<Prepared> prepare() {
-	return(Defer.later(new Defer.Callable<Prepared>() {
-		    public Prepared call() {
-			Prepared ret = new Prepared();
-			return(ret);
+    private Future<TexI.Prepared> prepare() {
+	return(Defer.later(new Defer.Callable<TexI.Prepared>() {
+		    public TexI.Prepared call() {
+			BufferedImage img = fill();
+			if(!Utils.imgsz(img).equals(dim))
+			    throw(new RuntimeException("Generated TexL image from " + TexL.this + " does not match declared size"));
+			return(new TexI.Prepared(img, tdim, mipmap));
 		    }
 		}));
     }
@@ -110,14 +61,9 @@ public abstract class TexL extends TexGL {
     protected void fill(GOut g) {
 	if(decode == null)
 	    decode = prepare();
-	Prepared prep = decode.get();
+	TexI.budget();
+	TexI.Prepared prep = decode.get();
 	decode = null;
-	GL2 gl = g.gl;
-	gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
-	Coord cdim = tdim;
-	for(int i = 0; i < prep.data.length; i++) {
-	    gl.glTexImage2D(GL.GL_TEXTURE_2D, i, GL.GL_RGBA, cdim.x, cdim.y, 0, prep.ifmt, GL.GL_UNSIGNED_BYTE, ByteBuffer.wrap(prep.data[i]));
-	    cdim = Mipmapper.nextsz(cdim);
-	}
+	prep.upload(g.gl, GL.GL_RGBA);
     }
 }
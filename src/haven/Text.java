@@ -262,7 +262,16 @@ public class Text {
 	    tex = new TexI(img);
 	return(tex);
     }
-    
+
+    /* Only the texture is freed; the image remains, and tex() will
+     * make a new one from it. */
+    public void dispose() {
+	if(tex != null) {
+	    tex.dispose();
+	    tex = null;
+	}
+    }
+
     public static void main(String[] args) throws Exception {
 	String cmd = args[0].intern();
 	if(cmd == "render") {
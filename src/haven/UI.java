@@ -34,8 +34,7 @@ import java.awt.event.InputEvent;
 public class UI {
     public RootWidget root;
     private Widget keygrab, mousegrab;
-    public Map<Integer, Widget> widgets = new TreeMap<Integer, Widget>();
-    public Map<Widget, Integer> rwidgets = new HashMap<Widget, Integer>();
+    public IntMap<Widget> widgets = new IntMap<Widget>(256);
     Receiver rcvr;
     public Coord mc = Coord.z, lcc = Coord.z;
     public Session sess;
@@ -109,8 +108,7 @@ public class UI {
 	
     public UI(Coord sz, Session sess) {
 	root = new RootWidget(this, sz);
-	widgets.put(0, root);
-	rwidgets.put(root, 0);
+	bind(root, 0);
 	this.sess = sess;
     }
 	
@@ -120,7 +118,7 @@ public class UI {
 	
     public void bind(Widget w, int id) {
 	widgets.put(id, w);
-	rwidgets.put(w, id);
+	w.wdgid = id;
     }
     
     public void drawafter(AfterDraw ad) {
@@ -133,6 +131,10 @@ public class UI {
 	long now = System.currentTimeMillis();
 	root.tick((now - lasttick) / 1000.0);
 	lasttick = now;
+	/* Lets RemoteUI resume a batch held back for this frame. */
+	synchronized(this) {
+	    notifyAll();
+	}
     }
 
     public void draw(GOut g) {
@@ -163,10 +165,10 @@ public class UI {
     }
 	
     private void removeid(Widget wdg) {
-	if(rwidgets.containsKey(wdg)) {
-	    int id = rwidgets.get(wdg);
-	    widgets.remove(id);
-	    rwidgets.remove(wdg);
+	if(wdg.wdgid >= 0) {
+	    if(widgets.get(wdg.wdgid) == wdg)
+		widgets.remove(wdg.wdgid);
+	    wdg.wdgid = -1;
 	}
 	for(Widget child = wdg.child; child != null; child = child.next)
 	    removeid(child);
@@ -183,19 +185,18 @@ public class UI {
     
     public void destroy(int id) {
 	synchronized(this) {
-	    if(widgets.containsKey(id)) {
-		Widget wdg = widgets.get(id);
+	    Widget wdg = widgets.get(id);
+	    if(wdg != null)
 		destroy(wdg);
-	    }
 	}
     }
 	
     public void wdgmsg(Widget sender, String msg, Object... args) {
 	int id;
 	synchronized(this) {
-	    if(!rwidgets.containsKey(sender))
-		throw(new UIException("Wdgmsg sender (" + sender.getClass().getName() + ") is not in rwidgets", msg, args));
-	    id = rwidgets.get(sender);
+	    if(sender.wdgid < 0)
+		throw(new UIException("Wdgmsg sender (" + sender.getClass().getName() + ") is not bound", msg, args));
+	    id = sender.wdgid;
 	}
 	if(rcvr != null)
 	    rcvr.rcvmsg(id, msg, args);
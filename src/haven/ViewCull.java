@@ -0,0 +1,87 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+/* Culls gob cells against a view frustum, given as the combined
+ * projection and camera matrix, and against the extent of the
+ * drawn map. */
+public class ViewCull implements OCache.CellFilter {
+    private final float[][] planes = new float[6][4];
+    private final MCache map;
+    private final Coord cc;
+    private final int range;
+    private final float margin, zlo, zhi;
+
+    /* The margin extends cells horizontally to account for gobs
+     * whose models reach outside their cell, and zlo and zhi extend
+     * the height of the terrain to account for their height. */
+    public ViewCull(MCache map, Matrix4f clip, Coord cc, int range, float margin, float zlo, float zhi) {
+	this.map = map;
+	this.cc = cc;
+	this.range = range;
+	this.margin = margin;
+	this.zlo = zlo;
+	this.zhi = zhi;
+	float[] m = clip.m;
+	for(int i = 0; i < 3; i++) {
+	    for(int o = 0; o < 4; o++) {
+		planes[i * 2][o]     = m[3 + (o * 4)] + m[i + (o * 4)];
+		planes[i * 2 + 1][o] = m[3 + (o * 4)] - m[i + (o * 4)];
+	    }
+	}
+    }
+
+    /* Tests a box in render coordinates against the frustum. */
+    public boolean visible(float x0, float y0, float z0, float x1, float y1, float z1) {
+	for(float[] p : planes) {
+	    float x = (p[0] > 0) ? x1 : x0;
+	    float y = (p[1] > 0) ? y1 : y0;
+	    float z = (p[2] > 0) ? z1 : z0;
+	    if((p[0] * x) + (p[1] * y) + (p[2] * z) + p[3] < 0)
+		return(false);
+	}
+	return(true);
+    }
+
+    public boolean visible(int x, int y) {
+	if((Math.abs(x - cc.x) > range) || (Math.abs(y - cc.y) > range))
+	    return(false);
+	float z0, z1;
+	try {
+	    MCache.Grid g = map.getgrid(Utils.floordiv(x, MCache.cutn.x), Utils.floordiv(y, MCache.cutn.y));
+	    int ci = Utils.floormod(x, MCache.cutn.x) + (Utils.floormod(y, MCache.cutn.y) * MCache.cutn.x);
+	    z0 = g.czmin[ci] - zlo;
+	    z1 = g.czmax[ci] + zhi;
+	} catch(Loading e) {
+	    return(true);
+	}
+	Coord sz = OCache.cellsz;
+	/* Render coordinates have the Y axis inverted. */
+	return(visible((x * sz.x) - margin, -((y + 1) * sz.y) - margin, z0,
+		       ((x + 1) * sz.x) + margin, -(y * sz.y) + margin, z1));
+    }
+}
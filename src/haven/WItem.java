@@ -120,10 +120,23 @@ public class WItem extends Widget implements DTarget {
     
     public class ShortTip extends ItemTip {
 	public ShortTip(List<ItemInfo> info) {super(shorttip(info));}
+	public ShortTip(BufferedImage img) {super(img);}
     }
     
     public class LongTip extends ItemTip {
 	public LongTip(List<ItemInfo> info) {super(longtip(info));}
+	public LongTip(BufferedImage img) {super(img);}
+    }
+
+    private BufferedImage tipimg(final List<ItemInfo> info, final boolean lng) {
+	Resource res = item.res.get();
+	ItemInfo.TipCache.Key key = new ItemInfo.TipCache.Key(item.rawinfo(), res, lng);
+	Defer.Future<BufferedImage> f = item.glob().tips.get(key, new Defer.Callable<BufferedImage>() {
+		public BufferedImage call() {
+		    return(lng?longtip(item, info):shorttip(info));
+		}
+	    });
+	return(f.get());
     }
 
     private long hoverstart;
@@ -151,11 +164,11 @@ public class WItem extends Widget implements DTarget {
 	    }
 	    if(now - hoverstart < 1000) {
 		if(shorttip == null)
-		    shorttip = new ShortTip(info);
+		    shorttip = new ShortTip(tipimg(info, false));
 		return(shorttip);
 	    } else {
 		if(longtip == null)
-		    longtip = new LongTip(info);
+		    longtip = new LongTip(tipimg(info, true));
 		return(longtip);
 	    }
 	} catch(Loading e) {
@@ -42,6 +42,7 @@ public class Widget {
     public Resource cursor = null;
     public Object tooltip = null;
     private Widget prevtt;
+    int wdgid = -1;
     public final Collection<Anim> anims = new LinkedList<Anim>();
     static Map<String, Factory> types = new TreeMap<String, Factory>();
 
@@ -359,10 +360,7 @@ public class Widget {
     }
 	
     public int wdgid() {
-	Integer id = ui.rwidgets.get(this);
-	if(id == null)
-	    return(-1);
-	return(id);
+	return(wdgid);
     }
 
     public void lostfocus() {
@@ -383,8 +381,8 @@ public class Widget {
 		if(last != null)
 		    last.lostfocus();
 		w.gotfocus();
-		if((ui != null) && ui.rwidgets.containsKey(w) && ui.rwidgets.containsKey(this))
-		    wdgmsg("focus", ui.rwidgets.get(w));
+		if((ui != null) && (w.wdgid >= 0) && (wdgid >= 0))
+		    wdgmsg("focus", w.wdgid);
 	    }
 	    if((parent != null) && canfocus)
 		parent.setfocus(this);
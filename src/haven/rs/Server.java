@@ -135,9 +135,9 @@ public class Server extends Thread {
 			}
 			Message rb = new Message(0);
 			rb.addlist(reply);
-			byte[] rbuf = new byte[4 + rb.blob.length];
-			Utils.uint32e(rb.blob.length, rbuf, 0);
-			System.arraycopy(rb.blob, 0, rbuf, 4, rb.blob.length);
+			byte[] rbuf = new byte[4 + rb.size()];
+			Utils.uint32e(rb.size(), rbuf, 0);
+			System.arraycopy(rb.blob, rb.off, rbuf, 4, rb.size());
 			out.write(rbuf);
 		    } catch(IOException e) {
 			return;
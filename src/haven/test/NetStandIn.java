@@ -0,0 +1,377 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.*;
+
+/*
+ * A stand-in for the server end of the session transport, for
+ * measuring the client's session layer over loopback. It accepts a
+ * session and acknowledges the client's reliable messages as the
+ * server does, and either replays the datagrams recorded by a client
+ * run with haven.netrec=FILE, or sends a synthetic stream of reliable
+ * UI messages. It reports the latency of the client's acks and the
+ * CPU time the client's session threads spent per packet.
+ *
+ * To exercise the client's retransmission, it can also have the
+ * client send a number of reliable messages, while dropping a share
+ * of the packets from the client and delaying every packet it sends
+ * by a random time up to a given jitter.
+ */
+public class NetStandIn {
+    public final DatagramChannel sk;
+    private SocketAddress client = null;
+    private int rseq = 0, nrel = 0;
+    private final Set<Integer> ahead = new HashSet<Integer>();
+    /* {last sequence number, time sent} of every reliable packet
+     * sent and not yet acknowledged, in order. */
+    private final LinkedList<long[]> unacked = new LinkedList<long[]>();
+    private long nacks = 0, acklat = 0, ackmax = 0;
+    public double loss = 0;
+    public int jitter = 0;
+    private final Random rnd = new Random(1);
+    private final ScheduledExecutorService delayed = Executors.newSingleThreadScheduledExecutor(r -> {
+	    Thread th = new Thread(r, "Stand-in jitter");
+	    th.setDaemon(true);
+	    return(th);
+	});
+
+    public NetStandIn() throws IOException {
+	sk = DatagramChannel.open();
+	sk.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    public InetSocketAddress addr() throws IOException {
+	return((InetSocketAddress)sk.getLocalAddress());
+    }
+
+    protected void send(byte[] msg) throws IOException {
+	if(jitter > 0) {
+	    SocketAddress client = this.client;
+	    delayed.schedule(() -> {
+		    try {
+			sk.send(ByteBuffer.wrap(msg), client);
+		    } catch(IOException e) {
+		    }
+		}, rnd.nextInt(jitter + 1), TimeUnit.MILLISECONDS);
+	} else {
+	    sk.send(ByteBuffer.wrap(msg), client);
+	}
+    }
+
+    protected void sendack(int seq) throws IOException {
+	byte[] msg = {Session.MSG_ACK, 0, 0};
+	Utils.uint16e(seq, msg, 1);
+	send(msg);
+    }
+
+    private static boolean covers(int ack, int seq) {
+	return(Utils.floormod(ack - seq, 65536) < 32768);
+    }
+
+    private void gotrel(Message msg) throws IOException {
+	int seq = msg.uint16();
+	while(!msg.eom()) {
+	    int type = msg.uint8();
+	    int len = ((type & 0x80) != 0) ? msg.uint16() : msg.size();
+	    msg.off += len;
+	    if(seq == rseq) {
+		synchronized(ahead) {
+		    do {
+			rseq = (rseq + 1) % 65536;
+			nrel++;
+		    } while(ahead.remove(rseq));
+		    ahead.notifyAll();
+		}
+	    } else if(Utils.floormod(seq - rseq, 65536) < 32768) {
+		ahead.add(seq);
+	    }
+	    seq = (seq + 1) % 65536;
+	}
+	sendack(Utils.floormod(rseq - 1, 65536));
+    }
+
+    private void gotack(int seq) {
+	long now = System.nanoTime();
+	synchronized(unacked) {
+	    while(!unacked.isEmpty() && covers(seq, (int)unacked.getFirst()[0])) {
+		long lat = now - unacked.removeFirst()[1];
+		nacks++;
+		acklat += lat;
+		ackmax = Math.max(ackmax, lat);
+	    }
+	    unacked.notifyAll();
+	}
+    }
+
+    /* Handles one datagram from the client, which is passed as a
+     * view of the receive buffer. */
+    protected void handle(Message msg) throws IOException {
+	switch(msg.type) {
+	case Session.MSG_SESS:
+	    send(new byte[] {Session.MSG_SESS, 0});
+	    break;
+	case Session.MSG_REL:
+	    gotrel(msg);
+	    break;
+	case Session.MSG_ACK:
+	    gotack(msg.uint16());
+	    break;
+	case Session.MSG_CLOSE:
+	    send(new byte[] {Session.MSG_CLOSE});
+	    break;
+	}
+    }
+
+    public void serve() throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate(65536);
+	while(true) {
+	    buf.clear();
+	    SocketAddress from;
+	    try {
+		from = sk.receive(buf);
+	    } catch(ClosedChannelException e) {
+		return;
+	    }
+	    if(buf.position() < 1)
+		continue;
+	    if((buf.get(0) != Session.MSG_SESS) && (rnd.nextDouble() < loss))
+		continue;
+	    synchronized(this) {
+		client = from;
+		notifyAll();
+	    }
+	    handle(Message.view(buf.get(0), buf.array(), 1, buf.position() - 1));
+	}
+    }
+
+    /* Sends a reliable packet, whose submessages are numbered from
+     * seq on, keeping track of it for the ack latency. */
+    public void sendrel(byte[] pkt) throws IOException {
+	int seq = Utils.uint16d(pkt, 1), n = 0;
+	for(int p = 3; p < pkt.length; n++) {
+	    int type = pkt[p++] & 0xff;
+	    if((type & 0x80) == 0)
+		break;
+	    p += 2 + Utils.uint16d(pkt, p);
+	}
+	synchronized(unacked) {
+	    unacked.add(new long[] {Utils.floormod(seq + Math.max(n, 1) - 1, 65536), System.nanoTime()});
+	}
+	send(pkt);
+    }
+
+    /* Replays a recording, in its original timing. Session setup,
+     * acks and closing are left out, since this stand-in does those
+     * itself. */
+    public int replay(InputStream fp) throws IOException, InterruptedException {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(fp));
+	long st = System.currentTimeMillis();
+	int n = 0;
+	while(true) {
+	    int t, len;
+	    byte[] pkt;
+	    try {
+		t = in.readInt();
+		len = in.readUnsignedShort();
+		in.readFully(pkt = new byte[len]);
+	    } catch(EOFException e) {
+		break;
+	    }
+	    if((len < 1) || (pkt[0] == Session.MSG_SESS) || (pkt[0] == Session.MSG_ACK) || (pkt[0] == Session.MSG_CLOSE))
+		continue;
+	    long now = System.currentTimeMillis();
+	    if(st + t > now)
+		Thread.sleep(st + t - now);
+	    if(pkt[0] == Session.MSG_REL)
+		sendrel(pkt);
+	    else
+		send(pkt);
+	    n++;
+	}
+	return(n);
+    }
+
+    /* Sends n packets of reliable UI messages, per submessages in
+     * each, one packet every iv milliseconds. */
+    public int synthetic(int n, int per, int iv) throws IOException, InterruptedException {
+	int seq = 0;
+	for(int i = 0; i < n; i++) {
+	    Message pkt = new Message(Session.MSG_REL);
+	    pkt.adduint16(seq);
+	    for(int o = 0; o < per; o++, seq = (seq + 1) % 65536) {
+		Message sub = new Message(Message.RMSG_WDGMSG);
+		sub.adduint16(1);
+		sub.addstring("tick");
+		sub.addlist(i, o, "stand-in");
+		pkt.adduint8(sub.type | 0x80);
+		pkt.adduint16(sub.size());
+		pkt.addbytes(sub.fin());
+	    }
+	    byte[] buf = new byte[pkt.size() + 1];
+	    buf[0] = (byte)pkt.type;
+	    System.arraycopy(pkt.fin(), 0, buf, 1, pkt.size());
+	    sendrel(buf);
+	    if(iv > 0)
+		Thread.sleep(iv);
+	}
+	return(n);
+    }
+
+    /* Waits until n reliable messages have been received from the
+     * client. */
+    public boolean awaitrel(int n, long timeout) throws InterruptedException {
+	long st = System.currentTimeMillis();
+	synchronized(ahead) {
+	    while(nrel < n) {
+		long left = timeout - (System.currentTimeMillis() - st);
+		if(left <= 0)
+		    return(false);
+		ahead.wait(left);
+	    }
+	}
+	return(true);
+    }
+
+    public void drain(long timeout) throws InterruptedException {
+	long st = System.currentTimeMillis();
+	synchronized(unacked) {
+	    while(!unacked.isEmpty()) {
+		long left = timeout - (System.currentTimeMillis() - st);
+		if(left <= 0)
+		    break;
+		unacked.wait(left);
+	    }
+	}
+    }
+
+    public String stats() {
+	synchronized(unacked) {
+	    return(String.format("%d packets acked (%d unacked), ack latency %.2f ms avg, %.2f ms max; %d reliable messages received",
+				 nacks, unacked.size(), (nacks > 0) ? ((acklat * 1e-6) / nacks) : 0.0, ackmax * 1e-6, nrel));
+	}
+    }
+
+    static long sesscpu() {
+	ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+	long ret = 0;
+	for(Thread th : Thread.getAllStackTraces().keySet()) {
+	    if(th.getName().startsWith("Session "))
+		ret += Math.max(mx.getThreadCpuTime(th.getId()), 0);
+	}
+	return(ret);
+    }
+
+    public static void usage() {
+	System.err.println("usage: NetStandIn [-n PACKETS] [-m MSGS-PER-PACKET] [-i INTERVAL-MS] [RECORDING]");
+	System.err.println("       NetStandIn -c MSGS [-s SIZE] [-l LOSS] [-j JITTER-MS]");
+    }
+
+    public static void main(String[] args) throws Exception {
+	int n = 2000, per = 4, iv = 1, cn = 0, csz = 100;
+	double loss = 0;
+	int jitter = 0;
+	String rec = null;
+	for(int i = 0; i < args.length; i++) {
+	    if(args[i].equals("-n")) {
+		n = Integer.parseInt(args[++i]);
+	    } else if(args[i].equals("-m")) {
+		per = Integer.parseInt(args[++i]);
+	    } else if(args[i].equals("-i")) {
+		iv = Integer.parseInt(args[++i]);
+	    } else if(args[i].equals("-c")) {
+		cn = Integer.parseInt(args[++i]);
+	    } else if(args[i].equals("-s")) {
+		csz = Integer.parseInt(args[++i]);
+	    } else if(args[i].equals("-l")) {
+		loss = Double.parseDouble(args[++i]);
+	    } else if(args[i].equals("-j")) {
+		jitter = Integer.parseInt(args[++i]);
+	    } else if(args[i].startsWith("-")) {
+		usage();
+		System.exit(1);
+	    } else {
+		rec = args[i];
+	    }
+	}
+	NetStandIn srv = new NetStandIn();
+	Thread th = new HackThread(() -> {
+		try {
+		    srv.serve();
+		} catch(IOException e) {
+		    throw(new RuntimeException(e));
+		}
+	}, "Stand-in server");
+	th.setDaemon(true);
+	th.start();
+	Session sess = new Session(srv.addr(), "stand-in", new byte[64]);
+	synchronized(sess) {
+	    while(sess.state != "") {
+		if(sess.connfailed != 0)
+		    throw(new RuntimeException("Connection failure (" + sess.connfailed + ")"));
+		sess.wait();
+	    }
+	}
+	srv.loss = loss;
+	srv.jitter = jitter;
+	long cpu = sesscpu(), st = System.nanoTime();
+	int sent;
+	if(cn > 0) {
+	    for(int i = 0; i < cn; i++)
+		sess.queuemsg(new Message(Message.RMSG_WDGMSG, new byte[csz]));
+	    if(!srv.awaitrel(cn, 600000))
+		throw(new RuntimeException("Timed out waiting for the client's messages"));
+	    System.out.printf("%d messages of %d bytes sent by the client in %.2f s, %.0f%% loss, %d ms jitter%n",
+			      cn, csz, (System.nanoTime() - st) * 1e-9, loss * 100, jitter);
+	    System.out.println(sess.stats());
+	    sess.close();
+	    System.exit(0);
+	}
+	if(rec != null) {
+	    try(InputStream fp = new FileInputStream(rec)) {
+		sent = srv.replay(fp);
+	    }
+	} else {
+	    sent = srv.synthetic(n, per, iv);
+	}
+	srv.drain(5000);
+	double t = (System.nanoTime() - st) * 1e-9;
+	cpu = sesscpu() - cpu;
+	System.out.printf("%d packets in %.2f s, client session threads %.1f us CPU/packet%n", sent, t, (cpu * 1e-3) / Math.max(sess.rxpkts, 1));
+	System.out.println(srv.stats());
+	System.out.println(sess.stats());
+	sess.close();
+	System.exit(0);
+    }
+}
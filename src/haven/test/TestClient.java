@@ -100,11 +100,7 @@ public class TestClient implements Runnable {
 	}
 	
 	public void destroy(Widget w) {
-	    int id;
-	    if(!rwidgets.containsKey(w))
-		id = -1;
-	    else
-		id = rwidgets.get(w);
+	    int id = w.wdgid();
 	    synchronized(robots) {
 		for(Robot r : robots)
 		    r.dstwdg(id, w);